@@ -16,23 +16,44 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /*
  */
@@ -44,6 +65,9 @@ import java.util.GregorianCalendar;
  */
 public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
+    // Used for logging benchmark results
+    private static final String TAG = "NotePadProviderTest";
+
     // A URI that the provider does not offer, for testing error handling.
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
@@ -186,9 +210,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. This should return the export type, the only stream MIME
+        // type for multiple notes.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(1, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_MIME_TYPE, exportTypes[0]);
+        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -222,7 +251,7 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.LIVE_FOLDER_URI, MIME_TYPES_ALL);
         assertNull(mimeType);
 
     }
@@ -524,6 +553,42 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that a cancelled query stops, both before it runs and while its rows are read.
+     */
+    public void testQueryCancellation() {
+        insertData();
+
+        // A query that isn't cancelled returns its rows.
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = getProvider().query(searchUri("note"), null, null, null, null, signal);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // A query cancelled before it runs doesn't run.
+        signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            getProvider().query(NotePad.Notes.CONTENT_URI, null, null, null, null, signal);
+            fail();
+        } catch (OperationCanceledException e) {
+            // continue
+        }
+
+        // Cancelling a query stops the reads of its rows.
+        signal = new CancellationSignal();
+        cursor = getProvider().query(searchUri("note"), null, null, null, null, signal);
+        signal.cancel();
+        try {
+            cursor.getCount();
+            fail();
+        } catch (OperationCanceledException e) {
+            // continue
+        } finally {
+            cursor.close();
+        }
+    }
+
     /*
      * Tests queries against the provider, using the note id URI. This URI encodes a single
      * record ID. The provider should only return 0 or 1 record.
@@ -790,6 +855,1870 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that repeated writes of single notes by id reuse compiled statements.
+     */
+    public void testStatementCache() {
+        final int SAVE_COUNT = 50;
+        StatementCache cache = getProvider().getOpenHelperForTest().getStatementCache();
+
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Note", "This is a note").getContentValues());
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+
+        // Saves the note like the editor does; only the first save compiles a statement.
+        ContentValues values = new ContentValues();
+        for (int index = 0; index < SAVE_COUNT; index++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is save " + index);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + index);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+        assertEquals(misses + 1, cache.getMissCount());
+        assertEquals(hits + SAVE_COUNT - 1, cache.getHitCount());
+
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("This is save " + (SAVE_COUNT - 1), cursor.getString(0));
+        cursor.close();
+
+        // A missing id updates and deletes nothing.
+        Uri missingUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 999);
+        assertEquals(0, mMockResolver.update(missingUri, values, null, null));
+        assertEquals(0, mMockResolver.delete(missingUri, null, null));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+    }
+
+    /*
+     * Tests that patches of a note body are stored as revisions, applied when the note is read
+     * and compacted into the note.
+     */
+    public void testRevisions() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Note", "Hello world").getContentValues());
+
+        // Replaces "world" by "there", then appends "!".
+        assertEquals(1, mMockResolver.update(noteUri, patch(6, 5, "there"), null, null));
+        assertEquals(1, mMockResolver.update(noteUri, patch(11, 0, "!"), null, null));
+        assertEquals("Hello there!", readNote(noteUri));
+
+        // Text that is only in the pending revisions is found once a query of the notes had
+        // them compacted in the background.
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+        catchUpIndexes();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Hello there!", cursor.getString(0));
+        cursor.close();
+        assertSearchCount(1, "there");
+        assertSearchCount(0, "world");
+        assertWholeWordCount(1, "there");
+        List<String> args = new ArrayList<String>();
+        String selection = SearchQuery.parse("there").toLikeSelection(
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, true, false, args);
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, selection,
+                args.toArray(new String[args.size()]), null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The whole-word index holds the body with the revisions applied before they are
+        // compacted.
+        assertEquals(1, mMockResolver.update(noteUri, patch(12, 0, " again"), null, null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "notes_words_pending"));
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_COMPACT,
+                noteUri.toString(), null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+        assertEquals("Hello there! again", readNote(noteUri));
+
+        // Many revisions are compacted without being asked to.
+        for (int index = 0; index < NotePadProvider.MAX_REVISIONS; index++) {
+            mMockResolver.update(noteUri, patch(0, 0, "a"), null, null);
+        }
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME)
+                < NotePadProvider.MAX_REVISIONS);
+
+        // Writing the whole body drops the revisions.
+        mMockResolver.update(noteUri, patch(0, 0, "b"), null, null);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Replaced");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+        assertEquals("Replaced", readNote(noteUri));
+
+        // Patches need a single note without selection, and all of the patch columns.
+        try {
+            mMockResolver.update(NotePad.Notes.CONTENT_URI, patch(0, 0, "c"), null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        try {
+            mMockResolver.update(noteUri, patch(0, 0, "c"), NotePad.Notes.COLUMN_NAME_TITLE
+                    + " = ?", new String[] { "Note" });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        values = patch(0, 0, "c");
+        values.remove(NotePad.Notes.COLUMN_NAME_PATCH_TEXT);
+        try {
+            mMockResolver.update(noteUri, values, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        assertEquals("Replaced", readNote(noteUri));
+    }
+
+    /*
+     * Logs how many bytes an editing session of a large note writes to the log, saving the
+     * whole body each time compared to saving patches.
+     */
+    public void testRevisionBytesWritten() {
+        final int NOTE_LENGTH = 256 * 1024;
+        final int SAVE_COUNT = 20;
+
+        StringBuilder body = new StringBuilder(NOTE_LENGTH);
+        while (body.length() < NOTE_LENGTH) {
+            body.append("This is a long note. ");
+        }
+        String text = body.toString();
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Long", text).getContentValues());
+
+        // Every save appends a word in the middle of the note.
+        int offset = NOTE_LENGTH / 2;
+        long wholeBytes = 0;
+        resetLog();
+        for (int index = 0; index < SAVE_COUNT; index++) {
+            text = text.substring(0, offset) + "word " + text.substring(offset);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            mMockResolver.update(noteUri, values, null, null);
+        }
+        wholeBytes = getLogBytes();
+
+        resetLog();
+        for (int index = 0; index < SAVE_COUNT; index++) {
+            text = text.substring(0, offset) + "word " + text.substring(offset);
+            mMockResolver.update(noteUri, patch(offset, 0, "word "), null, null);
+        }
+        long patchBytes = getLogBytes();
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_COMPACT,
+                noteUri.toString(), null);
+        long compactBytes = getLogBytes();
+
+        Log.i(TAG, SAVE_COUNT + " saves of a " + NOTE_LENGTH + " character note: whole bodies "
+                + wholeBytes + " bytes; patches " + patchBytes + " bytes, "
+                + compactBytes + " bytes including the compaction");
+        assertEquals(text, readNote(noteUri));
+        assertTrue(patchBytes < wholeBytes);
+    }
+
+    /*
+     * Tests that long notes are stored in chunks, that queries return only the first chunk and
+     * that the whole body can be read as a stream.
+     */
+    public void testLongNotes() throws IOException {
+        final int CHUNK_LENGTH = NotePad.Notes.CHUNK_LENGTH;
+
+        // A surrogate pair across the end of the first chunk, which moves into the second one
+        StringBuilder text = new StringBuilder();
+        while (text.length() < CHUNK_LENGTH * 5 / 2) {
+            text.append(text.length() == CHUNK_LENGTH - 1 ? "\uD83D\uDCDD" : "x");
+        }
+        String body = text.toString();
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Long", body).getContentValues());
+
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_CHUNK_COUNT };
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(body.substring(0, CHUNK_LENGTH - 1), cursor.getString(0));
+        assertEquals(3, cursor.getInt(1));
+        cursor.close();
+        assertEquals(body, readBody(noteUri));
+
+        // The stream without options starts with the title
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null)
+                        .createInputStream(), "UTF-8"));
+        assertEquals("Long", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals(body, reader.readLine());
+        reader.close();
+
+        // A patch of a long note goes to its chunks right away
+        body = body.substring(0, CHUNK_LENGTH * 2) + "y" + body.substring(CHUNK_LENGTH * 2 + 1);
+        mMockResolver.update(noteUri, patch(CHUNK_LENGTH * 2, 1, "y"), null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.REVISIONS_TABLE_NAME));
+        assertEquals(body, readBody(noteUri));
+
+        // A chunk that grows too long is split, and the chunks after it move up
+        body = body.substring(0, 10) + "0123456789" + body.substring(10);
+        mMockResolver.update(noteUri, patch(10, 0, "0123456789"), null, null);
+        assertEquals(body, readBody(noteUri));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(body.substring(0, CHUNK_LENGTH), cursor.getString(0));
+        assertEquals(4, cursor.getInt(1));
+        cursor.close();
+
+        // A patch across the end of a chunk
+        body = body.substring(0, CHUNK_LENGTH - 5) + "z" + body.substring(CHUNK_LENGTH + 15);
+        mMockResolver.update(noteUri, patch(CHUNK_LENGTH - 5, 20, "z"), null, null);
+        assertEquals(body, readBody(noteUri));
+
+        // Searches and snippets find words past the first chunk
+        int offset = body.length() - 3;
+        body = body.substring(0, offset) + " needle " + body.substring(offset);
+        mMockResolver.update(noteUri, patch(offset, 0, " needle "), null, null);
+        assertEquals(body, readBody(noteUri));
+        assertSearchCount(1, "needle");
+        assertSearchCount(1, "title:long needle");
+        catchUpIndexes();
+        assertWholeWordCount(1, "needle");
+        assertWholeWordCount(1, "title:long needle");
+
+        // So do the LIKE conditions of case-sensitive searches, which the list runs on the notes
+        for (boolean wholeWord : new boolean[] { false, true }) {
+            List<String> args = new ArrayList<String>();
+            String selection = SearchQuery.parse("needle").toLikeSelection(
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, true, wholeWord, args);
+            cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, selection,
+                    args.toArray(new String[args.size()]), null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            args.clear();
+            selection = SearchQuery.parse("Needle").toLikeSelection(
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, true, wholeWord, args);
+            cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, selection,
+                    args.toArray(new String[args.size()]), null);
+            assertEquals(0, cursor.getCount());
+            cursor.close();
+        }
+
+        cursor = mMockResolver.query(searchUri("needle").buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT, "needle").build(),
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET,
+                        NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).startsWith("…needle "));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+
+        // Updates of several notes store the chunks for each of them
+        Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Other", "Short").getContentValues());
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertEquals(body, readBody(otherUri));
+        assertEquals(4, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+
+        // A short body drops the chunks, and so does deleting the note
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+        assertEquals("Short", readBody(noteUri));
+        mMockResolver.delete(otherUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+    }
+
+    /*
+     * Tests the export of all notes, with bodies made of revisions and chunks and text that
+     * needs escaping.
+     */
+    public void testExport() throws IOException, JSONException {
+        insertData();
+        Uri quotedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("\"Quoted\"", "Line 1\nLine 2\t\\ \u2028 \u0001 \uD83D\uDCDD")
+                        .getContentValues());
+        Uri revisedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Revised", "Hello world").getContentValues());
+        mMockResolver.update(revisedUri, patch(6, 5, "there"), null, null);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NotePad.Notes.CHUNK_LENGTH * 2) {
+            text.append("Long note ").append(text.length()).append('\n');
+        }
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Long", text.toString()).getContentValues());
+
+        List<JSONObject> notes = readExport();
+        assertEquals(TEST_NOTES.length + 3, notes.size());
+        long lastId = 0;
+        for (JSONObject note : notes) {
+            assertTrue(note.getLong(NotePad.Notes._ID) > lastId);
+            lastId = note.getLong(NotePad.Notes._ID);
+            assertEquals(readBody(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                    lastId)), note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+        }
+
+        JSONObject quoted = notes.get(TEST_NOTES.length);
+        assertEquals(ContentUris.parseId(quotedUri), quoted.getLong(NotePad.Notes._ID));
+        assertEquals("\"Quoted\"", quoted.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+        assertEquals("默认分类", quoted.getString(NotePad.Notes.COLUMN_NAME_CATEGORY));
+        assertEquals("Hello there",
+                notes.get(TEST_NOTES.length + 1).getString(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertEquals(ContentUris.parseId(longUri),
+                notes.get(TEST_NOTES.length + 2).getLong(NotePad.Notes._ID));
+        assertEquals(text.toString(),
+                notes.get(TEST_NOTES.length + 2).getString(NotePad.Notes.COLUMN_NAME_NOTE));
+    }
+
+    /*
+     * Logs the throughput of exporting 100,000 notes.
+     */
+    public void testExportThroughput() throws IOException {
+        final int NOTE_COUNT = 100000;
+
+        mDb.beginTransaction();
+        try {
+            for (int index = 0; index < NOTE_COUNT; index++) {
+                mDb.insert(NotePad.Notes.TABLE_NAME, null,
+                        new NoteInfo("Note " + index, "This is note number " + index + ".")
+                                .getContentValues());
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        AssetFileDescriptor file = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_MIME_TYPE, null);
+        InputStream in = file.createInputStream();
+        int lines = 0;
+        long bytes = 0;
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes += count;
+                for (int i = 0; i < count; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        Log.i(TAG, "Exported " + lines + " notes, " + bytes + " bytes in " + elapsed + " ms: "
+                + (lines * 1000L / elapsed) + " notes/s, " + (bytes * 1000L / elapsed / 1024)
+                + " KiB/s");
+        assertEquals(NOTE_COUNT, lines);
+    }
+
+    /*
+     * Tests importing the export of the notes in batches, skipping invalid lines.
+     */
+    public void testImport() throws IOException, JSONException {
+        insertData();
+        List<JSONObject> exported = readExport();
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+
+        StringBuilder file = new StringBuilder();
+        for (JSONObject note : exported) {
+            file.append(note.toString()).append('\n');
+        }
+        file.append("not json\n");
+        file.append("\n");
+        file.append("{\"note\":5}\n");
+        file.append("{\"created\":1}\n");
+        file.append("{\"note\":\"Dated\",\"modified\":-1}\n");
+        file.append("{\"note\":\"Filed\",\"category\":\"Imported\"}\n");
+
+        final List<Integer> progress = new ArrayList<Integer>();
+        NotesImporter importer = new NotesImporter(mMockResolver, 2,
+                new NotesImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(NotesImporter.Result result) {
+                        progress.add(result.imported);
+                    }
+                });
+        NotesImporter.Result result = importer.importNotes(
+                new ByteArrayInputStream(file.toString().getBytes("UTF-8")));
+
+        assertEquals(TEST_NOTES.length + 1, result.imported);
+        assertEquals(4, result.skipped);
+        assertFalse(result.cancelled);
+        assertEquals((TEST_NOTES.length + 2) / 2, progress.size());
+        assertEquals(TEST_NOTES.length + 1, (int) progress.get(progress.size() - 1));
+
+        // The notes come back with new ids, in the order of the file
+        List<JSONObject> imported = readExport();
+        assertEquals(TEST_NOTES.length + 1, imported.size());
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            JSONObject note = imported.get(index);
+            assertEquals(TEST_NOTES[index].title,
+                    note.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+            assertEquals(TEST_NOTES[index].note, note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertEquals(exported.get(index).getLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE),
+                    note.getLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+        }
+        assertEquals("Imported", imported.get(TEST_NOTES.length)
+                .getString(NotePad.Notes.COLUMN_NAME_CATEGORY));
+    }
+
+    /*
+     * Logs the throughput of importing 100,000 notes.
+     */
+    public void testImportThroughput() throws IOException {
+        final int NOTE_COUNT = 100000;
+
+        StringBuilder file = new StringBuilder();
+        for (int index = 0; index < NOTE_COUNT; index++) {
+            file.append("{\"title\":\"Note ").append(index)
+                    .append("\",\"note\":\"This is note number ").append(index)
+                    .append(".\",\"created\":").append(START_DATE + index)
+                    .append(",\"modified\":").append(START_DATE + index)
+                    .append(",\"category\":\"工作\"}\n");
+        }
+        NotesImporter importer = new NotesImporter(mMockResolver,
+                NotesImporter.DEFAULT_BATCH_SIZE, null);
+        NotesImporter.Result result = importer.importNotes(
+                new ByteArrayInputStream(file.toString().getBytes("UTF-8")));
+
+        Log.i(TAG, "Imported " + result.imported + " notes in " + result.elapsedMillis
+                + " ms: " + result.getRowsPerSecond() + " notes/s");
+        assertEquals(NOTE_COUNT, result.imported);
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+    }
+
+    /*
+     * Tests bulk inserts, and logs how long inserting BULK_INSERT_COUNT notes takes compared to
+     * inserting a sample of them one at a time.
+     */
+    public void testBulkInsert() {
+        final int BULK_INSERT_COUNT = 10000;
+        final int SINGLE_INSERT_COUNT = 200;
+
+        ContentValues[] values = new ContentValues[BULK_INSERT_COUNT];
+        for (int index = 0; index < BULK_INSERT_COUNT; index++) {
+            values[index] = new NoteInfo("Bulk" + index, "This is bulk note " + index)
+                    .getContentValues();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int count = mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        long bulkMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(BULK_INSERT_COUNT, count);
+
+        start = SystemClock.elapsedRealtime();
+        for (int index = 0; index < SINGLE_INSERT_COUNT; index++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values[index]);
+        }
+        long singleMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "bulkInsert of " + BULK_INSERT_COUNT + " notes: " + bulkMillis + " ms; "
+                + SINGLE_INSERT_COUNT + " single inserts: " + singleMillis + " ms");
+
+        // Every row is stored and indexed.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(BULK_INSERT_COUNT + SINGLE_INSERT_COUNT, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("bulk"), null, null, null, null);
+        assertEquals(BULK_INSERT_COUNT + SINGLE_INSERT_COUNT, cursor.getCount());
+        cursor.close();
+
+        // A failing row rolls back the whole bulk insert.
+        ContentValues[] badValues = { values[0], new ContentValues() };
+        badValues[1].put("no_such_column", "value");
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, badValues);
+            fail();
+        } catch (SQLException e) {
+            // continue
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(BULK_INSERT_COUNT + SINGLE_INSERT_COUNT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the cache of opened notes serves repeated reads, drops notes as soon as the
+     * provider changes them, and stays within its byte bound.
+     */
+    public void testNoteCache() throws Exception {
+        NoteCache cache = new NoteCache(mMockResolver, 64 * 1024);
+        NoteCache previous = NoteCache.setInstance(cache);
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Cached body");
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Cache");
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            long noteId = ContentUris.parseId(noteUri);
+
+            // The first read queries the provider, the next ones are hits.
+            NoteCache.Note note = cache.get(noteUri);
+            assertEquals(noteId, note.id);
+            assertEquals("Cached", note.title);
+            assertEquals("Cached body", note.note);
+            assertEquals("Cache", note.category);
+            assertEquals(1, note.chunkCount);
+            assertSame(note, cache.get(noteId));
+            assertSame(note, cache.get(noteUri));
+            assertEquals(1, cache.getMissCount());
+            assertEquals(2, cache.getHitCount());
+
+            // An update is seen by the next read, without waiting for the change notification.
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            assertEquals("Renamed", cache.get(noteId).title);
+
+            // So is an update in a batch, once the batch commits.
+            cache.get(noteId);
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            operations.add(ContentProviderOperation.newUpdate(noteUri)
+                    .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Batched body")
+                    .build());
+            getProvider().applyBatch(operations);
+            assertEquals("Batched body", cache.get(noteId).note);
+
+            // Renaming the category changes the category of all notes.
+            Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI,
+                    new String[] { NotePad.Categories._ID },
+                    NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "Cache" }, null);
+            assertTrue(cursor.moveToFirst());
+            long categoryId = cursor.getLong(0);
+            cursor.close();
+            values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_NAME, "Cache renamed");
+            assertEquals(1, mMockResolver.update(
+                    ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, categoryId),
+                    values, null, null));
+            assertEquals("Cache renamed", cache.get(noteId).category);
+
+            // Changes to other notes don't drop the note.
+            note = cache.get(noteId);
+            Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Other", "Other body").getContentValues());
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Other title");
+            assertEquals(1, mMockResolver.update(otherUri, values, null, null));
+            int misses = cache.getMissCount();
+            assertSame(note, cache.get(noteId));
+            assertEquals(misses, cache.getMissCount());
+
+            // Notes that don't fit evict the least recently used ones.
+            char[] body = new char[16 * 1024];
+            Arrays.fill(body, 'x');
+            for (int index = 0; index < 4; index++) {
+                cache.get(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                        new NoteInfo("Large" + index, new String(body)).getContentValues()));
+            }
+            misses = cache.getMissCount();
+            note = cache.get(noteId);
+            assertEquals(misses + 1, cache.getMissCount());
+            assertEquals("Renamed", note.title);
+
+            // A deleted note is gone.
+            assertEquals(1, mMockResolver.delete(noteUri, null, null));
+            assertNull(cache.get(noteId));
+        } finally {
+            NoteCache.setInstance(previous);
+        }
+    }
+
+    /*
+     * Tests that the category repository serves one snapshot until the categories change, and
+     * loads the changed categories on the next read.
+     */
+    public void testCategoryRepository() {
+        CategoryRepository repository = new CategoryRepository(mMockResolver);
+        CategoryRepository previous = CategoryRepository.setInstance(repository);
+        try {
+            assertNull(repository.peekSnapshot());
+            CategoryRepository.Snapshot snapshot = repository.getSnapshot();
+            assertSame(snapshot, repository.peekSnapshot());
+            assertSame(snapshot, repository.getSnapshot());
+
+            // The snapshot holds every category, sorted by name.
+            Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI,
+                    new String[] { NotePad.Categories.COLUMN_NAME_NAME,
+                            NotePad.Categories.COLUMN_NAME_COLOR },
+                    null, null, NotePad.Categories.DEFAULT_SORT_ORDER);
+            assertEquals(cursor.getCount(), snapshot.getCategories().size());
+            List<String> names = snapshot.getNames();
+            while (cursor.moveToNext()) {
+                assertEquals(cursor.getString(0), names.get(cursor.getPosition()));
+                assertEquals(cursor.getInt(1), snapshot.getColor(cursor.getString(0)));
+            }
+            cursor.close();
+            assertNull(snapshot.get("Repository"));
+            assertEquals(CategoryRepository.DEFAULT_COLOR, snapshot.getColor("Repository"));
+
+            // Adding a category replaces the snapshot; the old one doesn't change.
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_NAME, "Repository");
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF4CAF50);
+            Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+            assertNull(repository.peekSnapshot());
+            CategoryRepository.Snapshot added = repository.getSnapshot();
+            assertNotSame(snapshot, added);
+            assertNull(snapshot.get("Repository"));
+            assertEquals(ContentUris.parseId(categoryUri), added.get("Repository").id);
+            assertEquals(0xFF4CAF50, added.getColor("Repository"));
+
+            // So does changing its color.
+            values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFFFF5722);
+            assertEquals(1, mMockResolver.update(categoryUri, values, null, null));
+            assertEquals(0xFFFF5722, repository.getSnapshot().getColor("Repository"));
+
+            // And a note naming a category that doesn't exist yet.
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "New category");
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Repository added");
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            assertNotNull(repository.getSnapshot().get("Repository added"));
+
+            // Writes to notes alone keep the snapshot.
+            snapshot = repository.getSnapshot();
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Plain", "Plain note").getContentValues());
+            assertSame(snapshot, repository.peekSnapshot());
+
+            assertEquals(1, mMockResolver.delete(categoryUri, null, null));
+            assertNull(repository.getSnapshot().get("Repository"));
+        } finally {
+            CategoryRepository.setInstance(previous);
+        }
+    }
+
+    /*
+     * Tests that a search whose terms extend the previous ones is refined within the previous
+     * matches, and gives the same notes as a full search.
+     */
+    public void testSearchRefiner() {
+        insertData();
+        String selection = "LOWER(" + NotePad.Notes.COLUMN_NAME_NOTE + ") LIKE ?";
+        SearchRefiner refiner = new SearchRefiner();
+
+        long[] ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%note%" }, "key", terms("note"), null);
+        assertEquals(TEST_NOTES.length, ids.length);
+
+        // The refined search is restricted to the previous matches, and matches like a full one.
+        for (String pattern : new String[] { "is note", "is note 1" }) {
+            ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                    new String[] { "%" + pattern + "%" }, "key", terms(pattern), null);
+            long[] full = new SearchRefiner().search(mMockResolver, NotePad.Notes.CONTENT_URI,
+                    selection, new String[] { "%" + pattern + "%" }, "key", terms(pattern), null);
+            assertTrue(Arrays.equals(full, ids));
+        }
+
+        // Nothing matches once the previous search matched nothing.
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%missing%" }, "key", terms("missing"), null);
+        assertEquals(0, ids.length);
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%missing note%" }, "key", terms("missing note"), null);
+        assertEquals(0, ids.length);
+
+        // A search that isn't an extension, or has other options, is a full search.
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%note%" }, "key", terms("note"), null);
+        assertEquals(TEST_NOTES.length, ids.length);
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, null, null,
+                "other key", terms("is note"), null);
+        assertEquals(TEST_NOTES.length, ids.length);
+
+        // Containment is decided on the parsed terms, not the text: "is OR" drops the
+        // operator being typed, so it doesn't narrow "is O".
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%is o%" }, "key", terms("is o"), null);
+        assertEquals(0, ids.length);
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%is%" }, "key", terms("is OR"), null);
+        assertEquals(TEST_NOTES.length, ids.length);
+
+        // After the notes change, the previous matches are not used.
+        refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%missing%" }, "key", terms("missing"), null);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Found", "missing no more").getContentValues());
+        refiner.reset();
+        ids = refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%missing no%" }, "key", terms("missing no"), null);
+        assertEquals(1, ids.length);
+
+        // Too many matches aren't kept.
+        ContentValues[] values = new ContentValues[SearchRefiner.MAX_IDS];
+        for (int index = 0; index < values.length; index++) {
+            values[index] = new NoteInfo("Many" + index, "Many notes").getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        assertNull(refiner.search(mMockResolver, NotePad.Notes.CONTENT_URI, selection,
+                new String[] { "%note%" }, "key", terms("note"), null));
+    }
+
+    /*
+     * Tests that search history is buffered, collapses repeated queries, and is trimmed to the
+     * newest entries when written.
+     */
+    public void testSearchHistoryBuffer() {
+        // The provider stamps inserts with the current time, so older times are set afterwards.
+        int extra = 5;
+        for (int index = 0; index < SearchHistoryManager.MAX_HISTORY_ITEMS + extra; index++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.SearchHistory.COLUMN_NAME_QUERY, "old" + index);
+            values.put(NotePad.SearchHistory.COLUMN_NAME_RESULT_COUNT, index);
+            Uri historyUri = mMockResolver.insert(NotePad.SearchHistory.CONTENT_URI, values);
+            values = new ContentValues();
+            values.put(NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP, START_DATE + index);
+            assertEquals(1, mMockResolver.update(historyUri, values, null, null));
+        }
+
+        // Saving only fills the buffer.
+        SearchHistoryManager manager = new SearchHistoryManager(getMockContext());
+        manager.saveSearchQuery("meeting", 1);
+        manager.saveSearchQuery("meeting", 3);
+        Cursor cursor = mMockResolver.query(NotePad.SearchHistory.CONTENT_URI, null,
+                NotePad.SearchHistory.COLUMN_NAME_QUERY + " = ?", new String[] { "meeting" },
+                null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Reading writes the buffer first; the repeated query is written once with its latest
+        // count, and only the newest entries are kept.
+        List<SearchHistoryManager.SearchHistoryItem> history = manager.getSearchHistory();
+        assertEquals(SearchHistoryManager.MAX_HISTORY_ITEMS, history.size());
+        assertEquals("meeting", history.get(0).query);
+        assertEquals(3, history.get(0).resultCount);
+        for (int index = 1; index < history.size(); index++) {
+            assertEquals("old" + (SearchHistoryManager.MAX_HISTORY_ITEMS + extra - index),
+                    history.get(index).query);
+        }
+
+        // Clearing drops the buffer as well.
+        manager.saveSearchQuery("pending", 1);
+        manager.clearAllHistory();
+        assertTrue(manager.getSearchHistory().isEmpty());
+    }
+
+    /*
+     * Tests that a batch of operations is applied atomically.
+     */
+    public void testApplyBatch() throws Exception {
+        insertData();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Batch", "This is a batch note").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" })
+                .build());
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+        assertEquals(2, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // An operation that fails its expectation rolls back the operations before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" })
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" })
+                .withExpectedCount(1)
+                .build());
+        try {
+            getProvider().applyBatch(operations);
+            fail();
+        } catch (OperationApplicationException e) {
+            // continue
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the change notifications of a batch are coalesced: repeated changes to a row
+     * are notified once, many rows are notified through their directory URI, writes through
+     * the directory URI notify the rows they changed, and writes that change nothing aren't
+     * notified.
+     */
+    public void testChangeNotifications() throws Exception {
+        ChangeNotifier notifier = getProvider().getChangeNotifierForTest();
+        notifier.flush();
+
+        // Three updates of the same note are sent as one notification for the note.
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Note", "This is a note").getContentValues());
+        notifier.flush();
+        long requested = notifier.getRequestedCount();
+        long sent = notifier.getSentCount();
+        long suppressed = notifier.getSuppressedCount();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int index = 0; index < 3; index++) {
+            operations.add(ContentProviderOperation.newUpdate(noteUri)
+                    .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Update " + index)
+                    .build());
+        }
+        getProvider().applyBatch(operations);
+        assertEquals(requested + 3, notifier.getRequestedCount());
+        assertEquals(sent + 1, notifier.getSentCount());
+        assertEquals(suppressed + 2, notifier.getSuppressedCount());
+
+        // More than MAX_ROW_URIS inserted rows are sent as one notification for the notes URI.
+        final int INSERT_COUNT = ChangeNotifier.MAX_ROW_URIS * 2;
+        ContentValues[] values = new ContentValues[INSERT_COUNT];
+        for (int index = 0; index < INSERT_COUNT; index++) {
+            values[index] = new NoteInfo("Bulk" + index, "This is bulk note " + index)
+                    .getContentValues();
+        }
+        requested = notifier.getRequestedCount();
+        sent = notifier.getSentCount();
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(requested + INSERT_COUNT, notifier.getRequestedCount());
+        assertEquals(sent + 1, notifier.getSentCount());
+
+        // A write through the notes URI notifies the rows it changed, unless there are too many.
+        notifier.flush();
+        requested = notifier.getRequestedCount();
+        sent = notifier.getSentCount();
+        ContentValues bulkUpdate = new ContentValues();
+        bulkUpdate.put(NotePad.Notes.COLUMN_NAME_NOTE, "Updated bulk note");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, bulkUpdate,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)", new String[] { "Bulk0", "Bulk1" }));
+        notifier.flush();
+        assertEquals(requested + 2, notifier.getRequestedCount());
+        assertEquals(sent + 2, notifier.getSentCount());
+
+        requested = notifier.getRequestedCount();
+        sent = notifier.getSentCount();
+        assertEquals(INSERT_COUNT, mMockResolver.update(NotePad.Notes.CONTENT_URI, bulkUpdate,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE 'Bulk%'", null));
+        notifier.flush();
+        assertEquals(requested + 1, notifier.getRequestedCount());
+        assertEquals(sent + 1, notifier.getSentCount());
+
+        requested = notifier.getRequestedCount();
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Bulk0" }));
+        notifier.flush();
+        assertEquals(requested + 1, notifier.getRequestedCount());
+
+        // An update that matches no rows doesn't notify.
+        requested = notifier.getRequestedCount();
+        ContentValues update = new ContentValues();
+        update.put(NotePad.Notes.COLUMN_NAME_NOTE, "Nothing");
+        assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, update,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Missing" }));
+        assertEquals(requested, notifier.getRequestedCount());
+    }
+
+    /*
+     * Tests full-text searches through the search URI, and that the index follows inserts,
+     * updates and deletes made on the notes table.
+     */
+    public void testSearches() {
+        // Inserts data into the model. The rows go straight into the database, so they are
+        // indexed by the triggers on the notes table.
+        insertData();
+
+        // Every note body contains "note", so a search for it returns every note.
+        Cursor cursor = mMockResolver.query(searchUri("note"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Terms are matched as prefixes, and all of them must match.
+        cursor = mMockResolver.query(searchUri("thi note3"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note3",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // A caller's selection is applied on top of the match.
+        cursor = mMockResolver.query(searchUri("note"), null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Updates are reflected in the index.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Buy bananas");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+        cursor = mMockResolver.query(searchUri("banana"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deletes are reflected in the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+        cursor = mMockResolver.query(searchUri("banana"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // CJK terms aren't split by the tokenizer and are matched as substrings instead.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "周会");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "明天的会议记录");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(searchUri("会议"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Several CJK terms must all match, alone or together with indexed terms.
+        cursor = mMockResolver.query(searchUri("周会 会议"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("会议 记录 周报"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("note 会议"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A search without terms matches nothing.
+        cursor = mMockResolver.query(searchUri(" "), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests parsing of the search query language.
+     */
+    public void testSearchQueryParser() {
+        // Words must all match; they are the terms to highlight.
+        SearchQuery query = SearchQuery.parse("meeting  notes");
+        assertFalse(query.isEmpty());
+        assertTrue(query.isSimple());
+        assertEquals(Arrays.asList("meeting", "notes"), query.getTerms());
+
+        // Operators, phrases and fields make a query that isn't simple; excluded terms aren't
+        // highlighted, and operators are only recognized in capitals.
+        query = SearchQuery.parse("\"weekly plan\" OR title:budget -draft category:工作 or");
+        assertFalse(query.isSimple());
+        assertEquals(Arrays.asList("weekly plan", "budget", "工作", "or"), query.getTerms());
+        assertEquals(Arrays.asList("weekly plan", "or"), query.getContentTerms());
+
+        // Unfinished input is accepted as far as it goes.
+        assertEquals(Arrays.asList("weekly pl"), SearchQuery.parse("(\"weekly pl").getTerms());
+        assertEquals(Arrays.asList("a"), SearchQuery.parse("a OR NOT").getTerms());
+        assertEquals(Arrays.asList("a"), SearchQuery.parse(") a AND").getTerms());
+        assertTrue(SearchQuery.parse("title: NOT").isEmpty());
+        assertTrue(SearchQuery.parse(" ").isEmpty());
+
+        // The LIKE conditions follow the structure of the query, with one argument per column.
+        List<String> args = new ArrayList<String>();
+        String selection = SearchQuery.parse("A OR -b").toLikeSelection(
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                false, false, args);
+        assertEquals("((LOWER(title) LIKE ? ESCAPE '\\' OR LOWER(note) LIKE ? ESCAPE '\\')"
+                + " OR NOT (LOWER(title) LIKE ? ESCAPE '\\' OR LOWER(note) LIKE ? ESCAPE '\\'))",
+                selection);
+        assertEquals(Arrays.asList("%a%", "%a%", "%b%", "%b%"), args);
+
+        // Whole words need a boundary next to their letters; CJK terms don't.
+        args.clear();
+        selection = SearchQuery.parse("title:a* 会议").toLikeSelection(
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, true, true, args);
+        assertEquals("(((' ' || title || ' ') GLOB ?) AND ((' ' || note || ' ') GLOB ?))",
+                selection);
+        String nonWord = "[^0-9A-Za-z\u00C0-\u024F\u0370-\u04FF]";
+        assertEquals(Arrays.asList("*" + nonWord + "a[*]*", "*会议*"), args);
+    }
+
+    /*
+     * Tests searches with the query language through the search URI.
+     */
+    public void testSearchLanguage() {
+        insertData();
+        ContentValues values = new NoteInfo("Budget", "Weekly plan for the team").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "工作");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Plan", "A budget draft, weekly").getContentValues());
+
+        // Words no longer need to be adjacent, but they all must match.
+        assertSearchCount(2, "weekly budget");
+        assertSearchCount(1, "\"weekly plan\"");
+        assertSearchCount(1, "title:budget");
+        assertSearchCount(1, "weekly -draft");
+        assertSearchCount(1, "weekly NOT draft");
+        assertSearchCount(2, "note3 OR note5");
+        assertSearchCount(TEST_NOTES.length - 1, "note -note3");
+        assertSearchCount(3, "(note3 OR note5) OR title:plan");
+
+        // Category names are matched as substrings, also under an operator.
+        assertSearchCount(1, "category:工");
+        assertSearchCount(1, "weekly category:工作");
+        assertSearchCount(2, "note3 OR category:工作");
+
+        // So are terms of any field, as in the notes list, whether or not the index has them.
+        assertSearchCount(1, "工作");
+        assertSearchCount(1, "team 工");
+        assertSearchCount(2, "note3 OR 工作");
+        assertSearchCount(0, "工作 -team");
+        assertWholeWordCount(1, "工作");
+
+        // A query of only exclusions returns every other note.
+        assertSearchCount(TEST_NOTES.length + 1, "-draft");
+
+        // The same query is answered again from its cached plan.
+        assertSearchCount(2, "weekly budget");
+    }
+
+    /*
+     * Tests whole-word searches: words match at the start and end of the text and next to
+     * punctuation but not inside longer words, CJK terms match anywhere in CJK text, and the
+     * index follows the writes to the notes.
+     */
+    public void testWholeWordSearch() {
+        insertData();
+        Uri catUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Cat", "cat, category; concatenate").getContentValues());
+        Uri catalogUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Catalog", "catalog of cats").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("会议", "明天的会议记录").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("下午", "三点开会").getContentValues());
+
+        // The index is brought up to date in the background.
+        catchUpIndexes();
+
+        // Words are matched whole, whatever their case; prefix searches match more.
+        assertSearchCount(2, "cat");
+        assertWholeWordCount(1, "cat");
+        assertWholeWordCount(1, "CAT");
+        assertWholeWordCount(1, "cats");
+        assertWholeWordCount(0, "catalogs");
+        assertSearchCount(TEST_NOTES.length, "not");
+        assertWholeWordCount(0, "not");
+        assertWholeWordCount(TEST_NOTES.length, "note");
+        assertWholeWordCount(1, "note3");
+        assertWholeWordCount(1, "\"of cats\"");
+        assertWholeWordCount(1, "title:catalog");
+
+        // CJK terms match any part of a run, down to a single character.
+        assertWholeWordCount(1, "会议");
+        assertWholeWordCount(1, "议记");
+        assertWholeWordCount(1, "明天的会议记录");
+        assertWholeWordCount(2, "会");
+        assertWholeWordCount(0, "会议记录本");
+        assertWholeWordCount(1, "开会");
+        assertWholeWordCount(1, "会 -开会");
+        assertWholeWordCount(0, "title:开会");
+
+        // Relevance-ranked whole-word searches score the hits of the same index.
+        Cursor cursor = mMockResolver.query(wholeWordUri("cat").buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_RELEVANCE, "10")
+                .build(), null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        // Updated and deleted notes are indexed again.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "a cat nap");
+        assertEquals(1, mMockResolver.update(catalogUri, values, null, null));
+        catchUpIndexes();
+        assertWholeWordCount(2, "cat");
+        assertWholeWordCount(0, "cats");
+        assertEquals(1, mMockResolver.delete(catUri, null, null));
+        catchUpIndexes();
+        assertWholeWordCount(1, "cat");
+        assertWholeWordCount(0, "category");
+
+        // A backlog of several batches is indexed too.
+        ContentValues[] bulk = new ContentValues[NotePadProvider.WORD_INDEX_BATCH * 2 + 1];
+        for (int index = 0; index < bulk.length; index++) {
+            bulk[index] = new NoteInfo("Bulk" + index, "bulk words").getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, bulk);
+        catchUpIndexes();
+        assertWholeWordCount(bulk.length, "bulk");
+    }
+
+    /*
+     * Tests counts through the count query parameter, capped by the limit and offset.
+     */
+    public void testCounts() {
+        insertData();
+
+        // Without a limit every row is counted.
+        assertEquals(TEST_NOTES.length, queryCount(countUri(NotePad.Notes.CONTENT_URI, null, null),
+                null, null));
+
+        // The limit caps the count, and the offset counts only the rows after it.
+        assertEquals(4, queryCount(countUri(NotePad.Notes.CONTENT_URI, 4, null), null, null));
+        assertEquals(TEST_NOTES.length - 8,
+                queryCount(countUri(NotePad.Notes.CONTENT_URI, 4, 8), null, null));
+
+        // Searches are counted with the caller's selection on top of the match.
+        assertEquals(TEST_NOTES.length, queryCount(countUri(searchUri("note"), null, null),
+                null, null));
+        assertEquals(1, queryCount(countUri(searchUri("note"), null, null),
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" }));
+
+        // A relevance-ranked search counts only its best hits.
+        assertEquals(3, queryCount(countUri(relevanceUri("note", 3), 100, null), null, null));
+    }
+
+    /*
+     * Tests relevance-ranked searches: title hits come before body hits, frequent hits before
+     * rare ones, and only the requested number of best hits is returned.
+     */
+    public void testRelevanceSearch() {
+        insertData();
+        String[][] notes = {
+                { "Misc", "The budget is mentioned once among a great many other words here" },
+                { "Plan", "budget budget budget" },
+                { "Budget", "Plans for next year" },
+        };
+        for (String[] note : notes) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo(note[0], note[1]).getContentValues());
+        }
+
+        // The title hit is best, then the body with the most hits, whatever the sort order.
+        Cursor cursor = mMockResolver.query(relevanceUri("budget", 10), null, null, null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " ASC");
+        assertEquals(3, cursor.getCount());
+        int titleIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+        int rankIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SEARCH_RANK);
+        double previousRank = Double.MAX_VALUE;
+        for (int index = notes.length - 1; index >= 0; index--) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(notes[index][0], cursor.getString(titleIndex));
+            assertTrue(cursor.getDouble(rankIndex) < previousRank);
+            previousRank = cursor.getDouble(rankIndex);
+        }
+        cursor.close();
+
+        // Only the best hits are returned, and the caller's selection is applied first.
+        cursor = mMockResolver.query(relevanceUri("budget", 1), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Budget", cursor.getString(titleIndex));
+        cursor.close();
+        cursor = mMockResolver.query(relevanceUri("budget", 1), null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Budget" }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Plan", cursor.getString(titleIndex));
+        cursor.close();
+
+        // Pages don't reach past the best hits.
+        Uri uri = relevanceUri("budget", 2).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "5")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET, "1")
+                .build();
+        cursor = mMockResolver.query(uri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Plan", cursor.getString(titleIndex));
+        cursor.close();
+
+        // The ranking of a search is reused for its pages only until the next write.
+        Uri budgetUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Budget", "Budget budget budget").getContentValues());
+        cursor = mMockResolver.query(relevanceUri("budget", 1), null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(budgetUri), cursor.getLong(
+                cursor.getColumnIndex(NotePad.Notes._ID)));
+        cursor.close();
+        mMockResolver.delete(budgetUri, null, null);
+        cursor = mMockResolver.query(relevanceUri("budget", 1), null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Budget", cursor.getString(titleIndex));
+        assertFalse(ContentUris.parseId(budgetUri) == cursor.getLong(
+                cursor.getColumnIndex(NotePad.Notes._ID)));
+        cursor.close();
+
+        // A search without matches returns nothing.
+        cursor = mMockResolver.query(relevanceUri("nothing", 10), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        try {
+            mMockResolver.query(relevanceUri("budget", 0), null, null, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests paged queries on the notes URI, as done by the notes list: a row count, a first page
+     * limited by the limit parameter, and the following pages located either by offset or by the
+     * (modified, _id) of the last row of the previous page.
+     */
+    public void testPagedQueries() {
+        final String[] PROJECTION = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
+        final String SORT_ORDER = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                + NotePad.Notes._ID + " DESC";
+        final String KEYSET_SELECTION = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = ? AND "
+                + NotePad.Notes._ID + " < ?)";
+        final int PAGE_SIZE = 4;
+
+        insertData();
+
+        // Counts the rows with an aliased aggregate column.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { "count(*) AS " + NotePad.Notes._COUNT }, null, null, SORT_ORDER);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES.length, cursor.getInt(0));
+        cursor.close();
+
+        // Walks the table a page at a time by keyset.
+        long[] after = null;
+        int rows = 0;
+        long previousModified = Long.MAX_VALUE;
+        do {
+            String selection = after == null ? null : KEYSET_SELECTION;
+            String[] selectionArgs = after == null ? null : new String[] {
+                String.valueOf(after[0]), String.valueOf(after[0]), String.valueOf(after[1]) };
+            cursor = mMockResolver.query(pageUri(PAGE_SIZE, 0), PROJECTION, selection,
+                    selectionArgs, SORT_ORDER);
+            assertTrue(cursor.getCount() <= PAGE_SIZE);
+            after = null;
+            while (cursor.moveToNext()) {
+                long modified = cursor.getLong(1);
+                assertTrue(modified <= previousModified);
+                previousModified = modified;
+                after = new long[] { modified, cursor.getLong(0) };
+                rows++;
+            }
+            cursor.close();
+        } while (after != null);
+        assertEquals(TEST_NOTES.length, rows);
+
+        // An offset skips whole pages; the last page holds the remaining rows.
+        cursor = mMockResolver.query(pageUri(PAGE_SIZE, 2 * PAGE_SIZE), PROJECTION, null, null,
+                SORT_ORDER);
+        assertEquals(TEST_NOTES.length - 2 * PAGE_SIZE, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals(START_DATE, cursor.getLong(1));
+        cursor.close();
+
+        // A limit that isn't a number is rejected.
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "all").build(),
+                    PROJECTION, null, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests the snippet columns computed by the provider, with and without highlight text.
+     */
+    public void testSnippets() {
+        final String[] PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH
+        };
+        final String TITLE_SELECTION = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+
+        insertData();
+
+        // Without highlight text, the snippet is the beginning of the note.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION,
+                TITLE_SELECTION, new String[] { "Note3" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("This is note 3", cursor.getString(0));
+        assertEquals(-1, cursor.getInt(1));
+        cursor.close();
+
+        // A short note contains the match at its position in the note, ignoring case.
+        Uri highlightUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT, "NOTE 3")
+                .build();
+        cursor = mMockResolver.query(highlightUri, PROJECTION, TITLE_SELECTION,
+                new String[] { "Note3" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("This is note 3", cursor.getString(0));
+        assertEquals("This is ".length(), cursor.getInt(1));
+        cursor.close();
+
+        // Notes that don't contain the highlight text have no match.
+        cursor = mMockResolver.query(highlightUri, PROJECTION, TITLE_SELECTION,
+                new String[] { "Note4" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(-1, cursor.getInt(1));
+        cursor.close();
+
+        // With several texts, the match is the first of them that the note contains.
+        assertSnippetMatch("This is note ".length(), "Note3", false, false, "absent", "3", "is");
+
+        // The match options are those of the search.
+        assertSnippetMatch(-1, "Note3", true, false, "NOTE 3");
+        assertSnippetMatch("This is ".length(), "Note3", true, false, "NOTE 3", "note 3");
+        assertSnippetMatch(-1, "Note3", false, true, "not");
+        assertSnippetMatch("This is ".length(), "Note3", false, true, "not", "NOTE");
+
+        // In a long note, the snippet is a bounded excerpt around the match.
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            body.append("filler ");
+        }
+        body.append("needle");
+        for (int i = 0; i < 500; i++) {
+            body.append(" filler");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT, "needle").build(),
+                PROJECTION, TITLE_SELECTION, new String[] { "Long" }, null);
+        assertTrue(cursor.moveToFirst());
+        String snippet = cursor.getString(0);
+        int match = cursor.getInt(1);
+        assertTrue(snippet.length() <= NotePad.Notes.SNIPPET_LENGTH + 1);
+        assertTrue(snippet.startsWith("…"));
+        assertTrue(snippet.startsWith("needle", match));
+        cursor.close();
+
+        // The highlight text is bound as an argument, ahead of those of a search and the
+        // caller's selection.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Quote");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "It's 100% done");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(searchUri("done").buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT, "'s 100%").build(),
+                PROJECTION, TITLE_SELECTION, new String[] { "Quote" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("It".length(), cursor.getInt(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests that notes refer to their category by id: names written to a note are resolved to
+     * categories, and the name and color read back follow the category when it is renamed.
+     */
+    public void testCategories() {
+        ContentValues values = new NoteInfo("Work", "This is a work note").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "工作");
+        Uri workUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // A note without a category goes to the default one, an unknown name adds a category.
+        Uri defaultUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Default", "This is a default note").getContentValues());
+        values = new NoteInfo("Travel", "This is a travel note").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "旅行");
+        Uri travelUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        final String[] projection = {
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+        };
+        Cursor cursor = mMockResolver.query(workUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long workId = cursor.getLong(0);
+        assertEquals("工作", cursor.getString(1));
+        assertFalse(cursor.isNull(2));
+        cursor.close();
+
+        cursor = mMockResolver.query(defaultUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("默认分类", cursor.getString(1));
+        cursor.close();
+
+        cursor = mMockResolver.query(travelUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long travelId = cursor.getLong(0);
+        assertEquals("旅行", cursor.getString(1));
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null,
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "旅行" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Renaming a category changes only the categories table.
+        values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "办公");
+        assertEquals(1, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, workId),
+                values, null, null));
+        cursor = mMockResolver.query(workUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(workId, cursor.getLong(0));
+        assertEquals("办公", cursor.getString(1));
+        cursor.close();
+
+        // Selections on the category name still work for queries, updates and deletes.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { "办公" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "办公");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { "旅行" }));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(workId) }, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(travelId) }, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        assertEquals(2, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { "办公" }));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the hot queries of the notes list and the search history, as the provider
+     * builds them, are answered from indexes instead of a full scan followed by a sort.
+     */
+    public void testQueryPlans() {
+        insertData();
+        NotePadProvider provider = getProvider();
+
+        // The first page of the notes list, sorted by modification date.
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(NotesPageSource.PAGE_SIZE))
+                .build();
+        NotePadProvider.BuiltQuery query = provider.buildQueryForTest(pageUri,
+                NotesPageSource.PROJECTION, null, null, NotesPageSource.SORT_ORDER);
+        String plan = explainQueryPlan(query.sql, query.args);
+        assertTrue(plan, plan.contains(NotePadProvider.NOTES_MODIFIED_INDEX));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The next pages, which start after the last row of the page before.
+        query = provider.buildQueryForTest(pageUri, NotesPageSource.PROJECTION,
+                NotesPageSource.KEYSET_SELECTION, new String[] { "1000", "1000", "5" },
+                NotesPageSource.SORT_ORDER);
+        plan = explainQueryPlan(query.sql, query.args);
+        assertTrue(plan, plan.contains(NotePadProvider.NOTES_MODIFIED_INDEX));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The notes list filtered by category, read from the view with the category names.
+        query = provider.buildQueryForTest(pageUri, NotesPageSource.PROJECTION,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = (SELECT "
+                        + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                        + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = ?)",
+                new String[] { "工作" }, NotesPageSource.SORT_ORDER);
+        plan = explainQueryPlan(query.sql, query.args);
+        assertTrue(plan, plan.contains(NotePadProvider.NOTES_CATEGORY_INDEX));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A search looks the terms up in the full-text index.
+        query = provider.buildQueryForTest(searchUri("note"), NotesPageSource.PROJECTION, null,
+                null, null);
+        plan = explainQueryPlan(query.sql, query.args);
+        assertTrue(plan, plan.contains("notes_fts"));
+
+        // The search history, most recent first.
+        query = provider.buildQueryForTest(NotePad.SearchHistory.CONTENT_URI,
+                new String[] { NotePad.SearchHistory._ID, NotePad.SearchHistory.COLUMN_NAME_QUERY },
+                null, null, null);
+        plan = explainQueryPlan(query.sql, query.args);
+        assertTrue(plan, plan.contains(NotePadProvider.SEARCH_HISTORY_TIMESTAMP_INDEX));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * Tests the journal modes of the database helper, and logs how many notes a writer thread
+     * inserts while the test thread keeps reading the list, in each mode.
+     */
+    public void testJournalModes() throws Exception {
+        final String DATABASE_NAME = "journal_mode_test.db";
+        final long RUN_MILLIS = 2000;
+
+        for (final boolean wal : new boolean[] { false, true }) {
+            getMockContext().deleteDatabase(DATABASE_NAME);
+            NotePadProvider.DatabaseHelper helper =
+                    new NotePadProvider.DatabaseHelper(getMockContext(), DATABASE_NAME, wal);
+            final SQLiteDatabase db = helper.getWritableDatabase();
+
+            Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(wal, "wal".equalsIgnoreCase(cursor.getString(0)));
+            cursor.close();
+            if (wal) {
+                assertEquals(NotePadProvider.WAL_AUTOCHECKPOINT_PAGES,
+                        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+            }
+
+            final long end = SystemClock.elapsedRealtime() + RUN_MILLIS;
+            final int[] writes = new int[1];
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    while (SystemClock.elapsedRealtime() < end) {
+                        db.insert(NotePad.Notes.TABLE_NAME, null,
+                                new NoteInfo("Journal", "This is a journal note").getContentValues());
+                        writes[0]++;
+                    }
+                }
+            };
+            writer.start();
+
+            int reads = 0;
+            while (SystemClock.elapsedRealtime() < end) {
+                cursor = db.query(NotePadProvider.NOTES_VIEW_NAME,
+                        new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                        null, null, null, null, NotePad.Notes.DEFAULT_SORT_ORDER, "50");
+                cursor.getCount();
+                cursor.close();
+                reads++;
+            }
+            writer.join();
+
+            Log.i(TAG, (wal ? "WAL" : "Rollback journal") + ": " + writes[0] + " inserts and "
+                    + reads + " list queries in " + RUN_MILLIS + " ms");
+            assertTrue(writes[0] > 0);
+            assertTrue(reads > 0);
+
+            if (wal) {
+                // A checkpoint doesn't change the data.
+                helper.checkpoint();
+                cursor = db.query(NotePad.Notes.TABLE_NAME, null, null, null, null, null, null);
+                assertEquals(writes[0], cursor.getCount());
+                cursor.close();
+            }
+
+            helper.close();
+            getMockContext().deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /*
+     * Tests the upgrade of a version 6 database, which still kept the category name in each
+     * note, to the current version: the notes keep their ids, refer to their categories by id,
+     * stay in the full-text index and are recorded for the whole-word index.
+     */
+    public void testUpgradeFromVersion6() {
+        final String DATABASE_NAME = "upgrade_test.db";
+        getMockContext().deleteDatabase(DATABASE_NAME);
+
+        // The version 6 schema, with an FTS4 index kept in sync by triggers
+        SQLiteDatabase db = getMockContext().openOrCreateDatabase(DATABASE_NAME, 0, null);
+        db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                + " created INTEGER, modified INTEGER, category TEXT DEFAULT '默认分类')");
+        db.execSQL("CREATE TABLE categories (_id INTEGER PRIMARY KEY, name TEXT UNIQUE,"
+                + " color INTEGER, created INTEGER)");
+        db.execSQL("CREATE TABLE search_history (_id INTEGER PRIMARY KEY,"
+                + " search_query TEXT UNIQUE, timestamp INTEGER, result_count INTEGER DEFAULT 0)");
+        db.execSQL("INSERT INTO categories (name, color, created) VALUES ('默认分类', 0, 0)");
+        db.execSQL("INSERT INTO categories (name, color, created) VALUES ('工作', 0, 0)");
+        db.execSQL("CREATE VIRTUAL TABLE notes_fts USING fts4(content=\"notes\", title, note)");
+        db.execSQL("CREATE TRIGGER notes_fts_ai AFTER INSERT ON notes BEGIN INSERT INTO"
+                + " notes_fts(docid, title, note) VALUES (new._id, new.title, new.note); END");
+        db.execSQL("CREATE TRIGGER notes_fts_bd BEFORE DELETE ON notes BEGIN DELETE FROM"
+                + " notes_fts WHERE docid = old._id; END");
+        db.execSQL("CREATE TRIGGER notes_fts_bu BEFORE UPDATE OF title, note ON notes BEGIN"
+                + " DELETE FROM notes_fts WHERE docid = old._id; END");
+        db.execSQL("CREATE TRIGGER notes_fts_au AFTER UPDATE OF title, note ON notes BEGIN"
+                + " INSERT INTO notes_fts(docid, title, note) VALUES (new._id, new.title,"
+                + " new.note); END");
+        db.execSQL("CREATE INDEX notes_modified_index ON notes (modified)");
+        db.execSQL("CREATE INDEX notes_category_index ON notes (category, modified)");
+        db.execSQL("CREATE INDEX search_history_timestamp_index ON search_history (timestamp)");
+        db.execSQL("INSERT INTO notes (_id, title, note, created, modified, category)"
+                + " VALUES (3, 'Budget', 'Weekly budget meeting', 1, 1, '工作')");
+        db.execSQL("INSERT INTO notes (_id, title, note, created, modified, category)"
+                + " VALUES (7, 'Groceries', 'Milk and bread', 2, 2, '家庭')");
+        db.execSQL("INSERT INTO notes (_id, title, note, created, modified, category)"
+                + " VALUES (9, 'Plain', 'No category at all', 3, 3, NULL)");
+        db.setVersion(6);
+        db.close();
+
+        NotePadProvider.DatabaseHelper helper =
+                new NotePadProvider.DatabaseHelper(getMockContext(), DATABASE_NAME, false);
+        db = helper.getWritableDatabase();
+        try {
+            // The notes keep their ids and refer to their categories, added where missing, by id.
+            Cursor cursor = db.rawQuery("SELECT n._id, n.title, c.name FROM notes AS n"
+                    + " JOIN categories AS c ON c._id = n.category_id ORDER BY n._id", null);
+            try {
+                assertEquals(3, cursor.getCount());
+                assertTrue(cursor.moveToNext());
+                assertEquals(3, cursor.getLong(0));
+                assertEquals("Budget", cursor.getString(1));
+                assertEquals("工作", cursor.getString(2));
+                assertTrue(cursor.moveToNext());
+                assertEquals(7, cursor.getLong(0));
+                assertEquals("家庭", cursor.getString(2));
+                assertTrue(cursor.moveToNext());
+                assertEquals(9, cursor.getLong(0));
+                assertEquals("默认分类", cursor.getString(2));
+            } finally {
+                cursor.close();
+            }
+
+            // The view joins the category names back in.
+            assertEquals("家庭", DatabaseUtils.stringForQuery(db, "SELECT category FROM "
+                    + NotePadProvider.NOTES_VIEW_NAME + " WHERE _id = 7", null));
+
+            // The existing index rows are kept, and the triggers keep indexing new notes.
+            assertEquals(3, DatabaseUtils.longForQuery(db,
+                    "SELECT docid FROM notes_fts WHERE notes_fts MATCH 'budget'", null));
+            ContentValues values = new NoteInfo("Trip", "Train tickets").getContentValues();
+            long id = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+            assertEquals(id, DatabaseUtils.longForQuery(db,
+                    "SELECT docid FROM notes_fts WHERE notes_fts MATCH 'tickets'", null));
+
+            // Every note that existed is waiting for the whole-word index, as are new ones.
+            cursor = db.rawQuery("SELECT note_id FROM notes_words_pending ORDER BY note_id", null);
+            try {
+                assertEquals(4, cursor.getCount());
+                assertTrue(cursor.moveToPosition(2));
+                assertEquals(9, cursor.getLong(0));
+                assertTrue(cursor.moveToNext());
+                assertEquals(id, cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+
+            // The tables of the later versions exist.
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "note_revisions"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "note_chunks"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "note_chunks_fts"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "note_chunks_words"));
+        } finally {
+            helper.close();
+            getMockContext().deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Builds the values of a patch that replaces deleted characters at offset by text.
+    private static ContentValues patch(int offset, int deleted, String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_PATCH_OFFSET, offset);
+        values.put(NotePad.Notes.COLUMN_NAME_PATCH_DELETED, deleted);
+        values.put(NotePad.Notes.COLUMN_NAME_PATCH_TEXT, text);
+        return values;
+    }
+
+    // Reads the whole body of a note as a stream, the way the editor loads long notes.
+    private String readBody(Uri noteUri) throws IOException {
+        Bundle opts = new Bundle();
+        opts.putBoolean(NotePad.Notes.OPTION_BODY, true);
+        AssetFileDescriptor file = mMockResolver.openTypedAssetFileDescriptor(noteUri,
+                MIME_TYPE_TEXT, opts);
+        Reader reader = new InputStreamReader(file.createInputStream(), "UTF-8");
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, count);
+            }
+            return body.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Reads the export of all notes, one object per line.
+    private List<JSONObject> readExport() throws IOException, JSONException {
+        AssetFileDescriptor file = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_MIME_TYPE, null);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(file.createInputStream(), "UTF-8"));
+        try {
+            List<JSONObject> notes = new ArrayList<JSONObject>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                notes.add(new JSONObject(line));
+            }
+            return notes;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Reads the body of a note through its note URI.
+    private String readNote(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String note = cursor.getString(0);
+        cursor.close();
+        return note;
+    }
+
+    // Checkpoints the write-ahead log and starts it over.
+    private void resetLog() {
+        Cursor cursor = mDb.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        cursor.moveToFirst();
+        cursor.close();
+    }
+
+    // Returns the number of bytes in the write-ahead log.
+    private long getLogBytes() {
+        return new File(mDb.getPath() + "-wal").length();
+    }
+
+    // Returns the details of the query plan of a statement, one step per line.
+    private String explainQueryPlan(String sql, String[] selectionArgs) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
+    // Builds a notes URI returning at most limit rows, starting after offset rows.
+    private static Uri pageUri(int limit, int offset) {
+        return NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET, String.valueOf(offset))
+                .build();
+    }
+
+    // Parses the terms of a search query, lowercased as for a case-insensitive search.
+    private static List<String> terms(String query) {
+        List<String> terms = new ArrayList<String>();
+        for (String term : SearchQuery.parse(query).getTerms()) {
+            terms.add(term.toLowerCase());
+        }
+        return terms;
+    }
+
+    // Asserts the snippet match of the note with the given title for the highlight texts.
+    private void assertSnippetMatch(int expected, String title, boolean caseSensitive,
+                                    boolean wholeWord, String... texts) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_CASE_SENSITIVE,
+                        String.valueOf(caseSensitive))
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT_WHOLE_WORD,
+                        String.valueOf(wholeWord));
+        for (String text : texts) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT, text);
+        }
+        Cursor cursor = mMockResolver.query(builder.build(),
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { title }, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(Arrays.toString(texts), expected, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Builds a search URI for the given search terms.
+    private static Uri searchUri(String terms) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, terms)
+                .build();
+    }
+
+    // Asserts the number of notes a search returns.
+    private void assertSearchCount(int expected, String terms) {
+        Cursor cursor = mMockResolver.query(searchUri(terms), null, null, null, null);
+        try {
+            assertEquals(terms, expected, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Builds a whole-word search URI for the given search terms.
+    private static Uri wholeWordUri(String terms) {
+        return searchUri(terms).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_WHOLE_WORD, "true")
+                .build();
+    }
+
+    // Runs a whole-word search, which has the revisions compacted and the whole-word index
+    // brought up to date in the background if they are pending, and waits until they are.
+    private void catchUpIndexes() {
+        mMockResolver.query(wholeWordUri("catch-up"), null, null, null, null).close();
+        long deadline = SystemClock.uptimeMillis() + 10000;
+        while (DatabaseUtils.longForQuery(mDb, "SELECT (SELECT count(*) FROM note_revisions)"
+                + " + (SELECT count(*) FROM notes_words_pending)"
+                + " + (SELECT count(*) FROM note_chunks_words_pending)", null) > 0) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(50);
+        }
+    }
+
+    // Asserts the number of notes a whole-word search returns.
+    private void assertWholeWordCount(int expected, String terms) {
+        Cursor cursor = mMockResolver.query(wholeWordUri(terms), null, null, null, null);
+        try {
+            assertEquals(terms, expected, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Adds the count parameter, and the limit and offset if not null, to a notes URI.
+    private static Uri countUri(Uri uri, Integer limit, Integer offset) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_COUNT, "true");
+        if (limit != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, limit.toString());
+        }
+        if (offset != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET, offset.toString());
+        }
+        return builder.build();
+    }
+
+    // Returns the count in the single row of a count query.
+    private int queryCount(Uri countUri, String selection, String[] selectionArgs) {
+        Cursor cursor = mMockResolver.query(countUri, null, selection, selectionArgs, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(cursor.getColumnIndex(NotePad.Notes._COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Builds a search URI returning the count best hits for the given search terms.
+    private static Uri relevanceUri(String terms, int count) {
+        return searchUri(terms).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_RELEVANCE,
+                        String.valueOf(count))
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
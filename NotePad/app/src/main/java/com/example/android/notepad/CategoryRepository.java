@@ -0,0 +1,251 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 分类数据仓库
+ * 进程内共用，一次读出所有分类，保存为不可修改的快照，列表、编辑器和桌面小部件都从快照取分类
+ * 名称和颜色，不必各自查询数据库。
+ * provider 提交分类的修改后立即通过 {@link ChangeNotifier.Listener} 调用
+ * {@link #onCategoryChanged(Uri)} 丢弃快照，下次读取时重新加载并整体替换，读取方拿到的快照
+ * 始终是完整的一份；同时在主线程通知注册的 {@link Listener}。
+ * 加载在锁外进行；加载期间如果分类被修改，结果只返回不保存，避免把旧数据放回去。
+ * 可以在任意线程使用。
+ */
+public class CategoryRepository {
+
+    /**
+     * 默认分类的名称
+     */
+    public static final String DEFAULT_CATEGORY = "默认分类";
+
+    /**
+     * 未知分类的颜色，也是新分类的默认颜色
+     */
+    public static final int DEFAULT_COLOR = 0xFF2196F3;
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_COLOR
+    };
+
+    /**
+     * 分类变化的回调，在主线程调用；之后读取快照会得到修改后的分类
+     */
+    public interface Listener {
+        void onCategoriesChanged();
+    }
+
+    /**
+     * 一个分类，不可修改
+     */
+    public static class Category {
+        public final long id;
+        public final String name;
+        public final int color;
+
+        Category(long id, String name, int color) {
+            this.id = id;
+            this.name = name;
+            this.color = color;
+        }
+    }
+
+    /**
+     * 某一时刻的全部分类，按名称排序，不可修改
+     */
+    public static class Snapshot {
+        private final List<Category> mCategories;
+        private final Map<String, Category> mCategoriesByName;
+
+        Snapshot(List<Category> categories) {
+            mCategories = Collections.unmodifiableList(categories);
+            mCategoriesByName = new HashMap<String, Category>();
+            for (Category category : categories) {
+                mCategoriesByName.put(category.name, category);
+            }
+        }
+
+        /**
+         * 所有分类
+         */
+        public List<Category> getCategories() {
+            return mCategories;
+        }
+
+        /**
+         * 所有分类的名称，返回新的列表，调用方可以修改；没有分类时只有默认分类
+         */
+        public List<String> getNames() {
+            List<String> names = new ArrayList<String>(mCategories.size());
+            for (Category category : mCategories) {
+                names.add(category.name);
+            }
+            if (names.isEmpty()) {
+                names.add(DEFAULT_CATEGORY);
+            }
+            return names;
+        }
+
+        /**
+         * 按名称查找分类，不存在时返回 null
+         */
+        public Category get(String name) {
+            return mCategoriesByName.get(name);
+        }
+
+        /**
+         * 分类的颜色，分类不存在时返回 {@link #DEFAULT_COLOR}
+         */
+        public int getColor(String name) {
+            Category category = mCategoriesByName.get(name);
+            return category == null ? DEFAULT_COLOR : category.color;
+        }
+    }
+
+    private static CategoryRepository sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    // 当前快照，分类被修改后为 null，由 this 保护
+    private Snapshot mSnapshot;
+
+    // 失效序号，每次分类被修改时增加，用来判断加载期间是否有修改，由 this 保护
+    private int mGeneration;
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (Listener listener : mListeners) {
+                listener.onCategoriesChanged();
+            }
+        }
+    };
+
+    CategoryRepository(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * 返回进程内共用的仓库
+     */
+    public static synchronized CategoryRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CategoryRepository(
+                    context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * 替换共用的仓库，返回原来的仓库，测试用
+     */
+    static synchronized CategoryRepository setInstance(CategoryRepository repository) {
+        CategoryRepository previous = sInstance;
+        sInstance = repository;
+        return previous;
+    }
+
+    /**
+     * 数据被修改，分类的 URI 使共用仓库的快照失效；还没有创建仓库时什么都不做
+     */
+    static void onCategoryChanged(Uri uri) {
+        CategoryRepository repository;
+        synchronized (CategoryRepository.class) {
+            repository = sInstance;
+        }
+        if (repository != null && NotePad.AUTHORITY.equals(uri.getAuthority())
+                && !uri.getPathSegments().isEmpty()
+                && NotePad.Categories.CONTENT_URI.getLastPathSegment().equals(
+                        uri.getPathSegments().get(0))) {
+            repository.invalidate();
+        }
+    }
+
+    /**
+     * 返回当前的分类快照，没有时从 provider 加载。加载会阻塞，主线程上应优先使用
+     * {@link #peekSnapshot()}
+     */
+    public Snapshot getSnapshot() {
+        int generation;
+        synchronized (this) {
+            if (mSnapshot != null) {
+                return mSnapshot;
+            }
+            generation = mGeneration;
+        }
+        Snapshot snapshot = load();
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * 返回已加载的分类快照，不会阻塞；还没有加载或分类已被修改时返回 null
+     */
+    public synchronized Snapshot peekSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * 丢弃快照，下次读取时重新加载，并在主线程通知回调
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mSnapshot = null;
+        }
+        // 一次批量修改可能涉及多个分类，合并成一次通知
+        mMainHandler.removeCallbacks(mNotifyRunnable);
+        mMainHandler.post(mNotifyRunnable);
+    }
+
+    /**
+     * 注册分类变化的回调，在主线程调用
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * 取消注册分类变化的回调
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private Snapshot load() {
+        List<Category> categories = new ArrayList<Category>();
+        Cursor cursor = mResolver.query(NotePad.Categories.CONTENT_URI, PROJECTION,
+                null, null, NotePad.Categories.DEFAULT_SORT_ORDER);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    categories.add(new Category(cursor.getLong(0), cursor.getString(1),
+                            cursor.getInt(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new Snapshot(categories);
+    }
+}
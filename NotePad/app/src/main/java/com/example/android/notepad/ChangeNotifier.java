@@ -0,0 +1,256 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces the change notifications sent by {@link NotePadProvider}. Changes are collected for
+ * a short window, or until the enclosing batch transaction commits, and then each affected URI
+ * is notified once. Row URIs are kept as they are, unless their directory URI is notified
+ * anyway or too many rows of the same directory changed, in which case the directory URI is
+ * notified instead; a directory notification also reaches the observers of its rows.
+ *
+ * An optional {@link Listener} hears of each change without the delay, as soon as other
+ * threads can read it, for caches that must not serve data older than the database.
+ *
+ * This class is thread-safe.
+ */
+class ChangeNotifier {
+
+    /**
+     * How long changes outside of a batch are collected before they are notified
+     */
+    static final long WINDOW_MILLIS = 50;
+
+    /**
+     * The number of changed rows of one directory above which the directory URI is notified
+     * instead of the rows
+     */
+    static final int MAX_ROW_URIS = 20;
+
+    /**
+     * Told about each change right away outside of a batch, and when the batch commits inside
+     * of one, ahead of the coalesced notification. Called without any lock held.
+     */
+    interface Listener {
+        void onChange(Uri uri);
+    }
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The changes of the batch running on the current thread, null when no batch is running.
+    // They join the pending changes only if the batch commits.
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
+    // Changes waiting for the end of the window, guarded by this
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+    private boolean mFlushScheduled;
+
+    // Statistics, guarded by this
+    private long mRequestedCount;
+    private long mSentCount;
+    private long mSuppressedCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ChangeNotifier(ContentResolver resolver) {
+        this(resolver, null);
+    }
+
+    ChangeNotifier(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+    }
+
+    /**
+     * Records a change to the data at a URI. Inside a batch, the change is held until the batch
+     * ends; otherwise it is sent at the end of the current window.
+     */
+    void notifyChange(Uri uri) {
+        Set<Uri> batch = mBatchChanges.get();
+        synchronized (this) {
+            mRequestedCount++;
+            if (batch != null) {
+                addChange(batch, uri);
+                return;
+            }
+            addChange(mPending, uri);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, WINDOW_MILLIS);
+            }
+        }
+        if (mListener != null) {
+            mListener.onChange(uri);
+        }
+    }
+
+    /**
+     * Starts holding the changes made on the current thread.
+     *
+     * @return true if this is the outermost batch, which has to be passed to
+     * {@link #endBatch(boolean, boolean)}.
+     */
+    boolean beginBatch() {
+        if (mBatchChanges.get() != null) {
+            return false;
+        }
+        mBatchChanges.set(new LinkedHashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * Ends a batch started by {@link #beginBatch()}. If the outermost batch committed, its
+     * changes are sent right away together with any pending ones; a rolled-back batch changed
+     * nothing, so its changes are dropped.
+     */
+    void endBatch(boolean outermost, boolean successful) {
+        if (!outermost) {
+            return;
+        }
+        Set<Uri> batch = mBatchChanges.get();
+        mBatchChanges.remove();
+        if (!successful) {
+            synchronized (this) {
+                mSuppressedCount += batch.size();
+            }
+            return;
+        }
+        synchronized (this) {
+            for (Uri uri : batch) {
+                addChange(mPending, uri);
+            }
+        }
+        if (mListener != null) {
+            for (Uri uri : batch) {
+                mListener.onChange(uri);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends the pending changes now.
+     */
+    void flush() {
+        List<Uri> changes;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            changes = new ArrayList<Uri>(mPending);
+            mPending.clear();
+            mSentCount += changes.size();
+        }
+
+        // Notifies outside of the lock, observers may call back into the provider
+        for (Uri uri : changes) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * @return The number of changes recorded.
+     */
+    synchronized long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * @return The number of notifications sent.
+     */
+    synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return The number of recorded changes that didn't need a notification of their own.
+     */
+    synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /**
+     * Adds a change to a set of changes, keeping only the URIs that need a notification.
+     * Called with the lock held.
+     */
+    private void addChange(Set<Uri> changes, Uri uri) {
+        // Already notified, directly or through a directory URI
+        if (changes.contains(uri)) {
+            mSuppressedCount++;
+            return;
+        }
+        Uri parent = getDirectory(uri);
+        if (parent != null && changes.contains(parent)) {
+            mSuppressedCount++;
+            return;
+        }
+
+        if (parent == null) {
+            // A directory URI replaces the pending changes to its rows
+            mSuppressedCount += removeRows(changes, uri);
+            changes.add(uri);
+            return;
+        }
+
+        changes.add(uri);
+        int rows = 0;
+        for (Uri change : changes) {
+            if (parent.equals(getDirectory(change))) {
+                rows++;
+            }
+        }
+        if (rows > MAX_ROW_URIS) {
+            // Too many rows changed, one notification for the whole directory is cheaper
+            mSuppressedCount += removeRows(changes, parent) - 1;
+            changes.add(parent);
+        }
+    }
+
+    /**
+     * Removes the row URIs of a directory from a set of changes.
+     *
+     * @return The number of URIs removed.
+     */
+    private static int removeRows(Set<Uri> changes, Uri directory) {
+        int removed = 0;
+        for (Iterator<Uri> it = changes.iterator(); it.hasNext();) {
+            if (directory.equals(getDirectory(it.next()))) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return The directory URI of a row URI, that is the URI without its numeric last path
+     * segment, or null if the URI isn't a row URI.
+     */
+    private static Uri getDirectory(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !TextUtils.isDigitsOnly(segments.get(segments.size() - 1))) {
+            return null;
+        }
+        Uri.Builder builder = uri.buildUpon().path(null).query(null).fragment(null);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
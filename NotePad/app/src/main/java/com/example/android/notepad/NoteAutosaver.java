@@ -0,0 +1,312 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 笔记自动保存
+ * 通过 TextWatcher 记录编辑：每次修改只增加修改序号，不复制也不比较文本。停止输入一段时间后，
+ * 在主线程取一次当前内容，交给后台线程写入 provider；离开编辑器时只需判断序号是否已经保存。
+ * 所有笔记的写入在同一个后台线程上按顺序执行，排队中的旧版本被新版本取代后直接跳过；
+ * 这个线程不随 Activity 结束，退出编辑器时提交的最后一次保存也会完成。
+ * 按补丁保存时，把上次保存以来的所有修改合并成一段替换（位置、删除的字符数、插入的文本），
+ * 只写入这段文本；provider 把补丁存为修订，累积到一定数量后合并回正文。
+ * 只在主线程使用。
+ */
+public class NoteAutosaver implements TextWatcher {
+
+    private static final String TAG = "NoteAutosaver";
+
+    // 停止输入多久后自动保存
+    static final long SAVE_DELAY_MILLIS = 2000;
+
+    // 补丁保存后多久没有新的修改时合并修订，让列表摘要和搜索跟上编辑
+    static final long COMPACT_DELAY_MILLIS = 15000;
+
+    /**
+     * 提供要保存的内容，在主线程调用
+     */
+    public interface Source {
+        /**
+         * 保存整篇笔记时写入的内容
+         */
+        ContentValues getValues();
+
+        /**
+         * 按补丁保存时除正文以外写入的内容（如修改时间、分类），必须保存全文时返回 null
+         */
+        ContentValues getPatchValues();
+
+        /**
+         * 一次保存已写入 provider，在主线程调用
+         * @param wholeText 是否保存的是全文
+         */
+        void onSaved(boolean wholeText);
+    }
+
+    // 所有编辑器共用的写入线程，保证同一笔记的写入顺序
+    private static final ExecutorService sWriter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final Source mSource;
+    private final boolean mPatches;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 上次提交保存以来的修改合并成的替换：在已保存正文中的位置、替换掉的字符数，
+    // 以及在当前文本中的长度；没有修改时位置为 -1
+    private int mPatchOffset = -1;
+    private int mPatchDeleted;
+    private int mPatchLength;
+    private CharSequence mText;
+
+    // 补丁写入失败后，已保存的正文不再可信，下次必须保存全文
+    private boolean mWholeText;
+
+    // 最新的修改序号、已提交写入的序号和已写入完成的序号，只在主线程访问
+    private int mGeneration;
+    private int mQueuedGeneration;
+    private int mSavedGeneration;
+
+    // 写入的序号，以及最后一次保存全文的写入序号。补丁依赖之前的所有写入，所以只有
+    // 排在后面的全文写入能够取代之前的写入，后台线程据此跳过被取代的写入
+    private final AtomicInteger mLatestWrite = new AtomicInteger();
+    private final AtomicInteger mLatestWholeWrite = new AtomicInteger();
+
+    // 补丁写入失败后，直到下次全文写入之前的补丁都不能再写，只在写入线程访问
+    private boolean mWriteFailed;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveNow();
+        }
+    };
+
+    private final Runnable mCompactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // 还有未保存的修改时，等那次保存之后再合并
+            if (!isDirty()) {
+                compact();
+            }
+        }
+    };
+
+    /**
+     * @param patches 是否按补丁保存正文
+     */
+    public NoteAutosaver(ContentResolver resolver, Uri uri, Source source, boolean patches) {
+        mResolver = resolver;
+        mUri = uri;
+        mSource = source;
+        mPatches = patches;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        mText = s;
+        if (mPatchOffset < 0) {
+            mPatchOffset = start;
+            mPatchDeleted = before;
+            mPatchLength = count;
+            return;
+        }
+
+        // 合并到已有的替换：两段替换在当前文本中覆盖的范围取并集，
+        // 并集超出已有替换的部分原本是已保存的正文，也一起被替换
+        int end = mPatchOffset + mPatchLength;
+        int offset = Math.min(mPatchOffset, start);
+        int coveredEnd = Math.max(end, start + before);
+        mPatchDeleted += (mPatchOffset - offset) + (coveredEnd - end);
+        mPatchLength = coveredEnd - offset - before + count;
+        mPatchOffset = offset;
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        onChanged();
+    }
+
+    /**
+     * 记录一次修改，并推迟自动保存
+     */
+    public void onChanged() {
+        mGeneration++;
+        mMainHandler.removeCallbacks(mCompactRunnable);
+        mMainHandler.removeCallbacks(mSaveRunnable);
+        mMainHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MILLIS);
+    }
+
+    /**
+     * 当前内容已与 provider 中一致（例如刚从 provider 读入），清除未保存的修改
+     */
+    public void markSaved() {
+        mMainHandler.removeCallbacks(mSaveRunnable);
+        mQueuedGeneration = mGeneration;
+        mSavedGeneration = mGeneration;
+        mPatchOffset = -1;
+        mWholeText = false;
+    }
+
+    /**
+     * 是否有尚未写入完成的修改
+     */
+    public boolean isDirty() {
+        return mSavedGeneration != mGeneration;
+    }
+
+    /**
+     * 立即在后台保存尚未提交的修改
+     * @return 是否提交了写入
+     */
+    public boolean saveNow() {
+        mMainHandler.removeCallbacks(mSaveRunnable);
+        if (mQueuedGeneration == mGeneration) {
+            return false;
+        }
+        mQueuedGeneration = mGeneration;
+
+        // 只改了分类时，按补丁保存的内容里没有正文
+        ContentValues values = null;
+        if (mPatches && !mWholeText) {
+            values = mSource.getPatchValues();
+        }
+        boolean wholeText = values == null;
+        if (wholeText) {
+            values = mSource.getValues();
+        } else if (mPatchOffset >= 0) {
+            values.put(NotePad.Notes.COLUMN_NAME_PATCH_OFFSET, mPatchOffset);
+            values.put(NotePad.Notes.COLUMN_NAME_PATCH_DELETED, mPatchDeleted);
+            values.put(NotePad.Notes.COLUMN_NAME_PATCH_TEXT,
+                    mText.subSequence(mPatchOffset, mPatchOffset + mPatchLength).toString());
+        }
+        mPatchOffset = -1;
+        mWholeText = false;
+        write(values, mGeneration, wholeText);
+        return true;
+    }
+
+    /**
+     * 在写入线程上请求 provider 把笔记的修订合并回正文，排在已提交的保存之后。
+     * 补丁保存后停止编辑一段时间会自动调用，离开编辑器时也应调用
+     */
+    public void compact() {
+        mMainHandler.removeCallbacks(mCompactRunnable);
+        if (!mPatches) {
+            return;
+        }
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_COMPACT,
+                            mUri.toString(), null);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "合并笔记修订失败: " + mUri, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 放弃尚未提交和排队中的保存，例如笔记被删除或还原之前
+     */
+    public void cancel() {
+        mMainHandler.removeCallbacks(mSaveRunnable);
+        mMainHandler.removeCallbacks(mCompactRunnable);
+        mLatestWholeWrite.set(mLatestWrite.incrementAndGet());
+        mQueuedGeneration = mGeneration;
+        mSavedGeneration = mGeneration;
+        mPatchOffset = -1;
+    }
+
+    /**
+     * 在写入线程上执行一次写入，排在已提交的保存之后，用于还原等操作
+     */
+    public void writeAfterPending(final ContentValues values) {
+        cancel();
+        write(values, mGeneration, true);
+    }
+
+    private void write(final ContentValues values, final int generation,
+                       final boolean wholeText) {
+        final int write = mLatestWrite.incrementAndGet();
+        if (wholeText) {
+            mLatestWholeWrite.set(write);
+        }
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!wholeText && mWriteFailed) {
+                    // 之前的补丁没有写入，这个补丁无法应用，由之后的全文保存补上
+                    return;
+                }
+                // 已有更新的全文排队时，这次写入可以跳过
+                final boolean written = write >= mLatestWholeWrite.get();
+                if (written) {
+                    try {
+                        mResolver.update(mUri, values, null, null);
+                        mWriteFailed = false;
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "保存笔记失败: " + mUri, e);
+                        mWriteFailed = true;
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // 下次保存时重试；补丁之间的依赖已经断开，只能保存全文
+                                mQueuedGeneration = mSavedGeneration;
+                                mWholeText = true;
+                            }
+                        });
+                        return;
+                    }
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation - mSavedGeneration > 0) {
+                            mSavedGeneration = generation;
+                        }
+                        if (written) {
+                            mSource.onSaved(wholeText);
+                            // 补丁存为修订，编辑停下来后再合并回正文
+                            if (!wholeText && !isDirty()) {
+                                mMainHandler.removeCallbacks(mCompactRunnable);
+                                mMainHandler.postDelayed(mCompactRunnable, COMPACT_DELAY_MILLIS);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.List;
+
+/**
+ * 最近打开的笔记缓存
+ * 进程内共用，按笔记 ID 缓存编辑器、标题编辑器和桌面小部件读取的笔记内容，按估算的字节数
+ * 限制大小，超出时淘汰最久未使用的笔记。
+ * provider 提交修改后立即通过 {@link ChangeNotifier.Listener} 调用 {@link #onNoteChanged(Uri)}
+ * 使对应的笔记失效，不等待合并后的变更通知，所以缓存不会返回比数据库更旧的内容。
+ * 查询在锁外进行；查询期间如果有笔记失效，结果只返回不缓存，避免把旧内容放回缓存。
+ * 可以在任意线程使用。
+ */
+public class NoteCache {
+
+    /**
+     * 默认缓存的最大字节数
+     */
+    static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    // 每条笔记除文本以外的估算开销
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CHUNK_COUNT
+    };
+
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_TITLE = 1;
+    private static final int COLUMN_INDEX_NOTE = 2;
+    private static final int COLUMN_INDEX_MODIFIED = 3;
+    private static final int COLUMN_INDEX_CATEGORY = 4;
+    private static final int COLUMN_INDEX_CHUNK_COUNT = 5;
+
+    /**
+     * 缓存的笔记，不可修改
+     */
+    public static class Note {
+        public final long id;
+        public final String title;
+        // 正文；分块保存的长笔记只有第一块，需要通过流读取全文
+        public final String note;
+        public final long modified;
+        public final String category;
+        public final int chunkCount;
+
+        Note(long id, String title, String note, long modified, String category, int chunkCount) {
+            this.id = id;
+            this.title = title;
+            this.note = note;
+            this.modified = modified;
+            this.category = category;
+            this.chunkCount = chunkCount;
+        }
+
+        // 估算占用的字节数
+        int getSize() {
+            return ENTRY_OVERHEAD + 2 * (length(title) + length(note) + length(category));
+        }
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+    }
+
+    private static NoteCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final LruCache<Long, Note> mCache;
+
+    // 失效序号，每次有笔记失效时增加，用来判断查询期间是否有修改，由 this 保护
+    private int mGeneration;
+
+    NoteCache(ContentResolver resolver, int maxBytes) {
+        mResolver = resolver;
+        mCache = new LruCache<Long, Note>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Note value) {
+                return value.getSize();
+            }
+        };
+    }
+
+    /**
+     * 返回进程内共用的缓存
+     */
+    public static synchronized NoteCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteCache(context.getApplicationContext().getContentResolver(),
+                    MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 替换共用的缓存，返回原来的缓存，测试用
+     */
+    static synchronized NoteCache setInstance(NoteCache cache) {
+        NoteCache previous = sInstance;
+        sInstance = cache;
+        return previous;
+    }
+
+    /**
+     * 笔记被修改，使共用缓存中对应的笔记失效；还没有创建缓存时什么都不做
+     */
+    static void onNoteChanged(Uri uri) {
+        NoteCache cache;
+        synchronized (NoteCache.class) {
+            cache = sInstance;
+        }
+        if (cache != null) {
+            cache.invalidate(uri);
+        }
+    }
+
+    /**
+     * 读取笔记 URI 对应的笔记
+     * @return 笔记，不存在或无法读取时返回 null
+     */
+    public Note get(Uri noteUri) {
+        return get(ContentUris.parseId(noteUri));
+    }
+
+    /**
+     * 读取笔记，缓存中没有时从 provider 查询
+     * @return 笔记，不存在或无法读取时返回 null
+     */
+    public Note get(long id) {
+        Note note = mCache.get(id);
+        if (note != null) {
+            return note;
+        }
+
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        note = query(id);
+        if (note != null) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mCache.put(id, note);
+                }
+            }
+        }
+        return note;
+    }
+
+    /**
+     * 使 URI 对应的笔记失效：单条笔记的 URI 只移除这条笔记，笔记目录的 URI（如批量修改、
+     * 分类改名）清空整个缓存，其他 URI 忽略
+     */
+    public void invalidate(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        boolean note = NotePad.AUTHORITY.equals(uri.getAuthority())
+                && segments.size() == 2
+                && NotePad.Notes.CONTENT_URI.getLastPathSegment().equals(segments.get(0))
+                && TextUtils.isDigitsOnly(segments.get(1));
+        synchronized (this) {
+            if (note) {
+                mGeneration++;
+                mCache.remove(ContentUris.parseId(uri));
+            } else if (NotePad.Notes.CONTENT_URI.equals(uri)) {
+                mGeneration++;
+                mCache.evictAll();
+            }
+        }
+    }
+
+    /**
+     * 命中次数
+     */
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * 未命中次数
+     */
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    private Note query(long id) {
+        Cursor c = mResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                PROJECTION, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new Note(c.getLong(COLUMN_INDEX_ID),
+                    c.getString(COLUMN_INDEX_TITLE),
+                    c.getString(COLUMN_INDEX_NOTE),
+                    c.getLong(COLUMN_INDEX_MODIFIED),
+                    c.getString(COLUMN_INDEX_CATEGORY),
+                    c.getInt(COLUMN_INDEX_CHUNK_COUNT));
+        } finally {
+            c.close();
+        }
+    }
+}
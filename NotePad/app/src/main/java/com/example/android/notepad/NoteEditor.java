@@ -20,12 +20,14 @@ import static com.example.android.notepad.R.*;
 
 import android.app.Activity;
 import android.content.ClipData;
+import android.content.ClipDescription;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Canvas;
@@ -46,8 +48,11 @@ import android.widget.Spinner;
 import android.widget.SpinnerAdapter;
 import androidx.appcompat.widget.AppCompatEditText;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * This Activity handles "editing" a note, where editing is responding to
@@ -72,11 +77,26 @@ public class NoteEditor extends Activity {
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
                     NotePad.Notes.COLUMN_NAME_NOTE,
-                    NotePad.Notes.COLUMN_NAME_CATEGORY  // 添加分类字段
+                    NotePad.Notes.COLUMN_NAME_CATEGORY,  // 添加分类字段
+                    NotePad.Notes.COLUMN_NAME_CHUNK_COUNT
             };
 
     // A label for the saved state of the activity
     private static final String ORIGINAL_CONTENT = "origContent";
+    private static final String PAGE = "page";
+
+    // 正文的修改按补丁保存，离开编辑器时再合并回正文，大笔记的每次保存只写入改动的部分
+    private static final boolean SAVE_AS_PATCHES = true;
+
+    // 在后台读入长笔记全文的查询通道
+    private static final String LOAD_NOTE = "note";
+
+    // 分类仓库还没有加载时在后台加载分类的查询通道
+    private static final String LOAD_CATEGORIES = "categories";
+
+    // 可以编辑的长笔记最多的分块数。编辑框里的全文在读入、转换和编辑时各有一份，还要排版整篇
+    // 文本，更长的笔记无法整篇放进编辑框，改为只读地一页显示一块
+    private static final int MAX_EDIT_CHUNKS = 4;
 
     // This Activity can be started by more than one action. Each action is represented
     // as a "state" constant
@@ -86,11 +106,24 @@ public class NoteEditor extends Activity {
     // Global mutable variables
     private int mState;
     private Uri mUri;
-    private Cursor mCursor;
+    // 正在编辑的笔记，读取失败或笔记已删除、还原时为 null
+    private NoteCache.Note mNote;
     private EditText mText;
     private Spinner mCategorySpinner;
     private String mOriginalContent;
     private String mCurrentCategory;
+    // 填入分类列表后下拉框会回调一次初始选择，这次回调不是用户修改，忽略
+    private boolean mIgnoreCategorySelection;
+    private NoteAutosaver mAutosaver;
+
+    // 分块保存的长笔记在后台读入全文，读入完成前只显示第一块，不能编辑
+    private QueryExecutor mQueryExecutor;
+    private boolean mLoading;
+    private boolean mLoaded;
+
+    // 分块太多、只读分页显示的笔记的页数（即分块数）和当前页，可以编辑的笔记页数为 0
+    private int mPageCount;
+    private int mPage;
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
@@ -211,23 +244,17 @@ public class NoteEditor extends Activity {
         }
 
         /*
-         * Using the URI passed in with the triggering Intent, gets the note or notes in
-         * the provider.
-         * Note: This is being done on the UI thread. It will block the thread until the query
+         * Using the URI passed in with the triggering Intent, gets the note from the cache of
+         * recently opened notes, which queries the provider if the note isn't cached.
+         * Note: A miss is queried on the UI thread. It will block the thread until the query
          * completes. In a sample app, going against a simple provider based on a local database,
          * the block will be momentary, but in a real app you should use
          * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
-        mCursor = managedQuery(
-                mUri,         // The URI that gets multiple notes from the provider.
-                PROJECTION,   // A projection that returns the note ID and note content for each note.
-                null,         // No "where" clause selection criteria.
-                null,         // No "where" clause selection values.
-                null          // Use the default sort order (modification date, descending)
-        );
+        mNote = NoteCache.getInstance(this).get(mUri);
 
         // For a paste, initializes the data from clipboard.
-        // (Must be done after mCursor is initialized.)
+        // (Must be done after mNote is initialized.)
         if (Intent.ACTION_PASTE.equals(action)) {
             // Does the paste
             performPaste();
@@ -241,6 +268,36 @@ public class NoteEditor extends Activity {
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
 
+        // 记录编辑并在后台自动保存，保存时才读取全文
+        mAutosaver = new NoteAutosaver(getContentResolver(), mUri, new NoteAutosaver.Source() {
+            @Override
+            public ContentValues getValues() {
+                return buildNoteValues(mText.getText().toString(), null);
+            }
+
+            @Override
+            public ContentValues getPatchValues() {
+                // 新建的笔记第一次保存时需要全文来生成标题
+                if (mState == STATE_INSERT) {
+                    return null;
+                }
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mCurrentCategory);
+                return values;
+            }
+
+            @Override
+            public void onSaved(boolean wholeText) {
+                // 新建的笔记第一次保存全文时生成了标题，写入完成后按编辑状态保存
+                if (wholeText && mState == STATE_INSERT) {
+                    mState = STATE_EDIT;
+                }
+            }
+        }, SAVE_AS_PATCHES);
+        mText.addTextChangedListener(mAutosaver);
+        mQueryExecutor = new QueryExecutor();
+
         // Gets a handle to the Category Spinner
         mCategorySpinner = (Spinner) findViewById(R.id.category_spinner);
 
@@ -253,31 +310,37 @@ public class NoteEditor extends Activity {
          */
         if (savedInstanceState != null) {
             mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+            mPage = savedInstanceState.getInt(PAGE);
         }
     }
 
     /**
-     * 设置分类下拉框
+     * 设置分类下拉框。分类仓库已加载时直接填入分类列表，否则在后台加载，加载完成后再填入
      */
     private void setupCategorySpinner() {
-        // 从数据库加载分类列表
-        List<String> categories = loadCategories();
-
-        // 创建适配器
+        // 创建适配器，分类列表在 showCategories 中填入
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(
                 this,
                 android.R.layout.simple_spinner_item,
-                categories
+                new ArrayList<String>()
         );
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-
         mCategorySpinner.setAdapter(adapter);
 
         // 设置选择监听器
         mCategorySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                mCurrentCategory = (String) parent.getItemAtPosition(position);
+                // 初始化时的选择不算修改，笔记的分类不在列表中时也保持不变
+                if (mIgnoreCategorySelection) {
+                    mIgnoreCategorySelection = false;
+                    return;
+                }
+                String category = (String) parent.getItemAtPosition(position);
+                if (!category.equals(mCurrentCategory)) {
+                    mCurrentCategory = category;
+                    mAutosaver.onChanged();
+                }
             }
 
             @Override
@@ -286,49 +349,48 @@ public class NoteEditor extends Activity {
             }
         });
 
-        // 如果正在编辑现有笔记，设置当前分类
-        if (mState == STATE_EDIT && mCursor != null && mCursor.moveToFirst()) {
-            int categoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-            if (categoryIndex >= 0) {
-                String currentCategory = mCursor.getString(categoryIndex);
-                if (currentCategory != null) {
-                    setSpinnerSelection(mCategorySpinner, currentCategory);
-                    mCurrentCategory = currentCategory;
-                }
+        // 如果正在编辑现有笔记，设置当前分类；新建笔记默认选择"默认分类"
+        if (mState == STATE_EDIT && mNote != null) {
+            if (mNote.category != null) {
+                mCurrentCategory = mNote.category;
             }
         } else {
-            // 新建笔记默认选择"默认分类"
             mCurrentCategory = "默认分类";
-            setSpinnerSelection(mCategorySpinner, mCurrentCategory);
         }
+
+        // 从分类仓库取分类列表，仓库没有加载时不在主线程上查询数据库
+        final CategoryRepository repository = CategoryRepository.getInstance(this);
+        CategoryRepository.Snapshot snapshot = repository.peekSnapshot();
+        if (snapshot != null) {
+            showCategories(snapshot);
+            return;
+        }
+        mQueryExecutor.submit(LOAD_CATEGORIES, new Callable<CategoryRepository.Snapshot>() {
+            @Override
+            public CategoryRepository.Snapshot call() {
+                return repository.getSnapshot();
+            }
+        }, new QueryExecutor.Callback<CategoryRepository.Snapshot>() {
+            @Override
+            public void onResult(CategoryRepository.Snapshot snapshot) {
+                showCategories(snapshot);
+            }
+        });
     }
 
     /**
-     * 从数据库加载分类列表
+     * 把分类列表填入下拉框，并选中当前分类
      */
-    private List<String> loadCategories() {
-        List<String> categories = new ArrayList<>();
-
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[] { NotePad.Categories.COLUMN_NAME_NAME },
-                null, null, NotePad.Categories.DEFAULT_SORT_ORDER
-        );
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                String categoryName = cursor.getString(0);
-                categories.add(categoryName);
-            }
-            cursor.close();
-        }
-
-        // 确保至少有一个默认分类
-        if (categories.isEmpty()) {
-            categories.add("默认分类");
+    @SuppressWarnings("unchecked")
+    private void showCategories(CategoryRepository.Snapshot snapshot) {
+        ArrayAdapter<String> adapter = (ArrayAdapter<String>) mCategorySpinner.getAdapter();
+        adapter.clear();
+        adapter.addAll(snapshot.getNames());
+
+        mIgnoreCategorySelection = true;
+        if (mCurrentCategory != null) {
+            setSpinnerSelection(mCategorySpinner, mCurrentCategory);
         }
-
-        return categories;
     }
 
     /**
@@ -357,25 +419,20 @@ public class NoteEditor extends Activity {
         super.onResume();
 
         /*
-         * mCursor is initialized, since onCreate() always precedes onResume for any running
-         * process. This tests that it's not null, since it should always contain data.
+         * mNote is initialized, since onCreate() always precedes onResume for any running
+         * process. This tests that it's not null, since the note should always exist.
          */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
-
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
-
+        if (mNote != null) {
+            // Gets the note again in case something changed while paused (such as the title).
+            // The cache drops notes as soon as they change, so this only queries the provider
+            // after a change.
+            mNote = NoteCache.getInstance(this).get(mUri);
+        }
+        if (mNote != null) {
             // Modifies the window title for the Activity according to the current Activity state.
             if (mState == STATE_EDIT) {
                 // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
+                String title = mNote.title;
                 Resources res = getResources();
                 String text = String.format(res.getString(R.string.title_edit), title);
                 setTitle(text);
@@ -391,20 +448,39 @@ public class NoteEditor extends Activity {
              * it should not move the cursor. This helps the user to continue editing or entering.
              */
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
+            // Gets the note text and puts it in the TextView, but doesn't change the text
+            // cursor's position. Edits that aren't written yet are newer than the note, so the
+            // text is only reloaded when there are none.
+            String note = mNote.note;
+            int chunkCount = mNote.chunkCount;
+            if (chunkCount > MAX_EDIT_CHUNKS) {
+                if (mPageCount == 0) {
+                    openPages(chunkCount);
+                } else {
+                    setPageTitle();
+                }
+            } else if (chunkCount > 1) {
+                // 长笔记缓存的正文只有第一块，先显示它，全文在后台读入；只有本编辑器修改正文，
+                // 读入过一次就不必再读
+                if (!mLoading && !mLoaded && !mAutosaver.isDirty()) {
+                    mText.setTextKeepState(note);
+                    mAutosaver.markSaved();
+                    loadNote(chunkCount);
+                }
+            } else {
+                if (!mAutosaver.isDirty()) {
+                    mText.setTextKeepState(note);
+                    mAutosaver.markSaved();
+                }
 
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
+                // Stores the original note text, to allow the user to revert changes.
+                if (mOriginalContent == null) {
+                    mOriginalContent = note;
+                }
             }
 
             /*
-             * Something is wrong. The Cursor should always contain data. Report an error in the
-             * note.
+             * Something is wrong. The note should always exist. Report an error in the note.
              */
         } else {
             setTitle(getText(R.string.error_title));
@@ -423,8 +499,137 @@ public class NoteEditor extends Activity {
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         // Save away the original text, so we still have it if the activity
-        // needs to be killed while paused.
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        // needs to be killed while paused. 长笔记的原文放不进保存的状态，重建后重新读入
+        if (mOriginalContent != null
+                && mOriginalContent.length() <= NotePad.Notes.CHUNK_LENGTH) {
+            outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        }
+        outState.putInt(PAGE, mPage);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mQueryExecutor.shutdown();
+    }
+
+    /**
+     * 在后台以流的形式读入分块保存的长笔记全文，不经过游标，避免整篇笔记放进一个 CursorWindow。
+     * 只用于分块数不超过 {@link #MAX_EDIT_CHUNKS} 的笔记。
+     * 读入期间编辑框和分类不可修改，以免把只有第一块的文本保存回去
+     * @param chunkCount 笔记的分块数，用来预估全文长度
+     */
+    private void loadNote(final int chunkCount) {
+        mLoading = true;
+        mText.setEnabled(false);
+        mCategorySpinner.setEnabled(false);
+        mQueryExecutor.submit(LOAD_NOTE, new Callable<String>() {
+            @Override
+            public String call() {
+                Bundle opts = new Bundle();
+                opts.putBoolean(NotePad.Notes.OPTION_BODY, true);
+                return readNote(opts, chunkCount * NotePad.Notes.CHUNK_LENGTH);
+            }
+        }, new QueryExecutor.Callback<String>() {
+            @Override
+            public void onResult(String note) {
+                if (note == null) {
+                    // 读取失败时保持不可编辑，编辑框里只有第一块，不能保存
+                    setTitle(getText(R.string.error_title));
+                    return;
+                }
+                mLoading = false;
+                mLoaded = true;
+                mText.setTextKeepState(note);
+                mAutosaver.markSaved();
+                mText.setEnabled(true);
+                mCategorySpinner.setEnabled(true);
+                if (mOriginalContent == null) {
+                    mOriginalContent = note;
+                }
+            }
+        });
+    }
+
+    /**
+     * 只读地分页显示分块数超过 {@link #MAX_EDIT_CHUNKS} 的笔记，每页是一块，内存里只有当前页。
+     * 编辑框不再记录修改，笔记不会被保存；分类也不可修改
+     * @param chunkCount 笔记的分块数，即页数
+     */
+    private void openPages(int chunkCount) {
+        mPageCount = chunkCount;
+        mText.removeTextChangedListener(mAutosaver);
+        mText.setFocusable(false);
+        mCategorySpinner.setEnabled(false);
+        showPage(Math.min(mPage, chunkCount - 1));
+    }
+
+    /**
+     * 显示只读笔记的一页，第一页就是缓存中的正文，其他页在后台读入
+     */
+    private void showPage(final int page) {
+        if (page == 0) {
+            onPageLoaded(0, mNote.note);
+            return;
+        }
+        mQueryExecutor.submit(LOAD_NOTE, new Callable<String>() {
+            @Override
+            public String call() {
+                Bundle opts = new Bundle();
+                opts.putBoolean(NotePad.Notes.OPTION_BODY, true);
+                opts.putInt(NotePad.Notes.OPTION_CHUNK, page);
+                return readNote(opts, NotePad.Notes.CHUNK_LENGTH);
+            }
+        }, new QueryExecutor.Callback<String>() {
+            @Override
+            public void onResult(String text) {
+                if (text == null) {
+                    setTitle(getText(R.string.error_title));
+                    return;
+                }
+                onPageLoaded(page, text);
+            }
+        });
+    }
+
+    private void onPageLoaded(int page, String text) {
+        mPage = page;
+        mText.setText(text);
+        setPageTitle();
+        invalidateOptionsMenu();
+    }
+
+    private void setPageTitle() {
+        setTitle(String.format(getResources().getString(R.string.title_view_page),
+                mNote != null ? mNote.title : "", mPage + 1, mPageCount));
+    }
+
+    /**
+     * 以流的形式读入笔记正文，不经过游标
+     * @param opts 打开流的选项
+     * @param capacity 预估的文本长度
+     * @return 读到的文本，读取失败时为 null
+     */
+    private String readNote(Bundle opts, int capacity) {
+        try {
+            AssetFileDescriptor file = getContentResolver().openTypedAssetFileDescriptor(
+                    mUri, ClipDescription.MIMETYPE_TEXT_PLAIN, opts);
+            Reader reader = new InputStreamReader(file.createInputStream(), "UTF-8");
+            try {
+                StringBuilder text = new StringBuilder(capacity);
+                char[] buffer = new char[8192];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, count);
+                }
+                return text.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "读取笔记失败: " + mUri, e);
+            return null;
+        }
     }
 
     /**
@@ -437,23 +642,19 @@ public class NoteEditor extends Activity {
      * Activity in a state where Android can destroy it if necessary.
      *
      * If the user hasn't done anything, then this deletes or clears out the note, otherwise it
-     * writes the user's work to the provider.
+     * writes the user's work to the provider. The edits are tracked as they happen, so this
+     * neither copies nor compares the text unless there are unsaved edits, and the write
+     * itself happens in the background.
      */
     @Override
     protected void onPause() {
         super.onPause();
 
         /*
-         * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
-         * will exist, even if no records were returned, unless the query failed because of some
-         * exception or error.
-         *
+         * Tests to see that the note was read (see onCreate()) and hasn't been deleted or
+         * reverted since.
          */
-        if (mCursor != null) {
-
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+        if (mNote != null) {
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -461,7 +662,7 @@ public class NoteEditor extends Activity {
              * even if the note was being edited, the assumption being that the user wanted to
              * "clear out" (delete) the note.
              */
-            if (isFinishing() && (length == 0)) {
+            if (isFinishing() && (mText.length() == 0)) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
 
@@ -471,24 +672,13 @@ public class NoteEditor extends Activity {
                  * onCreate() inserted a new empty note into the provider, and it is this new note
                  * that is being edited.
                  */
-            } else if (mState == STATE_EDIT) {
-                // 只有在内容实际发生变化时才更新
-                int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                String originalNote = mCursor.getString(colNoteIndex);
-
-                // 检查笔记内容或分类是否发生变化
-                int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-                String originalCategory = colCategoryIndex >= 0 ? mCursor.getString(colCategoryIndex) : "默认分类";
-
-                boolean contentChanged = !text.equals(originalNote);
-                boolean categoryChanged = !mCurrentCategory.equals(originalCategory);
+            } else {
+                // 只有在内容或分类发生变化时才保存
+                mAutosaver.saveNow();
 
-                if (contentChanged || categoryChanged) {
-                    updateNote(text, null);
-                }
-            } else if (mState == STATE_INSERT) {
-                updateNote(text, text);
-                mState = STATE_EDIT;
+                // 离开编辑器时（包括切到后台）把这次编辑的补丁合并回正文，列表摘要和搜索
+                // 随之更新，进程之后被结束也不会留下未合并的修订
+                mAutosaver.compact();
             }
         }
     }
@@ -528,14 +718,11 @@ public class NoteEditor extends Activity {
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        menu.findItem(R.id.menu_revert).setVisible(mAutosaver.isDirty());
+        // 只读分页显示的长笔记可以翻页
+        menu.findItem(R.id.menu_previous_page).setVisible(mPageCount > 0).setEnabled(mPage > 0);
+        menu.findItem(R.id.menu_next_page).setVisible(mPageCount > 0)
+                .setEnabled(mPage < mPageCount - 1);
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -553,14 +740,17 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if(id== R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            mAutosaver.saveNow();
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
             finish();
         } else if (id == R.id.menu_revert) {
             cancelNote();
+        } else if (id == R.id.menu_previous_page) {
+            showPage(mPage - 1);
+        } else if (id == R.id.menu_next_page) {
+            showPage(mPage + 1);
         }
         return super.onOptionsItemSelected(item);
     }
@@ -609,8 +799,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                        int colNoteIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+                        int colTitleIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
                         text = orig.getString(colNoteIndex);
                         title = orig.getString(colTitleIndex);
                     }
@@ -638,6 +828,34 @@ public class NoteEditor extends Activity {
      * @param title The new note title to use
      */
     private final void updateNote(String text, String title) {
+        ContentValues values = buildNoteValues(text, title);
+
+        /*
+         * Updates the provider with the new values in the map. The ListView is updated
+         * automatically. The provider sets this up by setting the notification URI for
+         * query Cursor objects to the incoming URI. The content resolver is thus
+         * automatically notified when the Cursor for the URI changes, and the UI is
+         * updated.
+         * Note: This is being done on the UI thread. It will block the thread until the
+         * update completes. In a sample app, going against a simple provider based on a
+         * local database, the block will be momentary, but in a real app you should use
+         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         */
+        getContentResolver().update(
+                mUri,    // The URI for the record to update.
+                values,  // The map of column names and new values to apply to them.
+                null,    // No selection criteria are used, so no where columns are necessary.
+                null     // No where columns are used, so no where arguments are necessary.
+        );
+    }
+
+    /**
+     * Builds the values that store the text and title provided as arguments, and the current
+     * category.
+     * @param text The new note contents to use.
+     * @param title The new note title to use, or null to keep the title of an existing note
+     */
+    private ContentValues buildNoteValues(String text, String title) {
 
         // Sets up a map to contain values to be updated in the provider.
         ContentValues values = new ContentValues();
@@ -677,24 +895,7 @@ public class NoteEditor extends Activity {
 
         // 添加分类信息
         values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mCurrentCategory);
-
-        /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
-         * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-        );
+        return values;
     }
 
     /**
@@ -702,14 +903,17 @@ public class NoteEditor extends Activity {
      * newly created, or reverts to the original text of the note i
      */
     private final void cancelNote() {
-        if (mCursor != null) {
+        if (mNote != null) {
             if (mState == STATE_EDIT) {
                 // Put the original note text back into the database
-                mCursor.close();
-                mCursor = null;
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                mNote = null;
+                // 长笔记全文读入之前没有修改，不用还原
+                if (mOriginalContent != null) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
+                    // 排在已提交的自动保存之后写入，不会被它们覆盖
+                    mAutosaver.writeAfterPending(values);
+                }
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -723,11 +927,12 @@ public class NoteEditor extends Activity {
      * Take care of deleting a note.  Simply deletes the entry.
      */
     private final void deleteNote() {
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
+        if (mNote != null) {
+            mNote = null;
             getContentResolver().delete(mUri, null, null);
             mText.setText("");
+            // 笔记已删除，放弃未完成的自动保存
+            mAutosaver.cancel();
         }
     }
 }
\ No newline at end of file
@@ -74,11 +74,111 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * The content:// style URL for this table
          */
         public static final Uri CONTENT_URI =  Uri.parse(SCHEME + AUTHORITY + PATH_NOTES);
 
+        /**
+         * The content:// style URL for full-text searches over the notes. The search terms are
+         * passed in the {@link #QUERY_PARAMETER_SEARCH} query parameter; any selection given to
+         * the query is applied on top of the full-text match.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} holding the user's search query, in the
+         * language described by {@link SearchQuery}: words that must
+         * all match, AND, OR and NOT, quoted phrases, and title: and category: prefixes
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter limiting the number of rows returned by a query on
+         * {@link #CONTENT_URI} or {@link #CONTENT_SEARCH_URI}
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter giving the number of rows to skip before the first returned row. Only
+         * used together with {@link #QUERY_PARAMETER_LIMIT}.
+         */
+        public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+        /**
+         * Query parameter holding text to look for in the note bodies. When present, the
+         * {@link #COLUMN_NAME_SNIPPET} of each note is centred on the first occurrence of the
+         * text, and {@link #COLUMN_NAME_SNIPPET_MATCH} gives its position. It may be given more
+         * than once, e.g. once for each term of a search; the snippet is then centred on the
+         * first of the texts, in order, that the note contains. The texts are matched ignoring
+         * case unless {@link #QUERY_PARAMETER_CASE_SENSITIVE} is set, and anywhere in the note
+         * unless {@link #QUERY_PARAMETER_HIGHLIGHT_WHOLE_WORD} is set.
+         */
+        public static final String QUERY_PARAMETER_HIGHLIGHT = "highlight";
+
+        /**
+         * Query parameter that, set to true, matches the {@link #QUERY_PARAMETER_HIGHLIGHT}
+         * texts with case, as a case-sensitive search does
+         */
+        public static final String QUERY_PARAMETER_CASE_SENSITIVE = "case_sensitive";
+
+        /**
+         * Query parameter that, set to true, matches the {@link #QUERY_PARAMETER_HIGHLIGHT}
+         * texts as whole words only, as a whole-word search does, so that a note only has a
+         * match if it contains one of them as a word
+         */
+        public static final String QUERY_PARAMETER_HIGHLIGHT_WHOLE_WORD = "highlight_whole_word";
+
+        /**
+         * Query parameter that, set to true, makes a query return the number of matching rows
+         * instead of the rows, in the single {@link #_COUNT} column of a single row. Together
+         * with {@link #QUERY_PARAMETER_LIMIT} and {@link #QUERY_PARAMETER_OFFSET}, only the
+         * rows in that range are counted, so a capped count stops early on large results.
+         */
+        public static final String QUERY_PARAMETER_COUNT = "count";
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} switching the search to relevance
+         * ranking. Its value is the number of best hits to return. Hits are scored with BM25, a
+         * match in the title counting {@link #TITLE_WEIGHT} times as much as one in the body,
+         * and are returned in {@link #RELEVANCE_SORT_ORDER} whatever sort order the query
+         * gives. {@link #QUERY_PARAMETER_LIMIT} and {@link #QUERY_PARAMETER_OFFSET} page within
+         * the best hits.
+         */
+        public static final String QUERY_PARAMETER_RELEVANCE = "relevance";
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} that, set to true, matches the search
+         * terms as whole words only: "cat" finds "cat." but not "category". Words are told
+         * apart by letters and digits rather than by spaces, and CJK terms, which have no
+         * spaces around them, match wherever they occur in a run of CJK text. The whole-word
+         * index is updated in the background shortly after writes, so a search may miss the
+         * latest ones; its cursor is notified when they are indexed.
+         */
+        public static final String QUERY_PARAMETER_WHOLE_WORD = "whole_word";
+
+        /**
+         * The largest number of hits a relevance-ranked search returns
+         */
+        public static final int MAX_RELEVANCE_RESULTS = 1000;
+
+        /**
+         * How much more a search term found in the title counts than one found in the body of
+         * a note, in a relevance-ranked search
+         */
+        public static final double TITLE_WEIGHT = 10.0;
+
+        /**
+         * The maximum number of characters of a note body returned in
+         * {@link #COLUMN_NAME_SNIPPET}, not counting a leading ellipsis
+         */
+        public static final int SNIPPET_LENGTH = 100;
+
         /**
          * The content URI base for a single note. Callers must
          * append a numeric note id to this Uri to retrieve a note
@@ -119,6 +219,17 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The default sort order for {@link #CONTENT_SEARCH_URI}, best match first
+         */
+        public static final String SEARCH_SORT_ORDER = "search_rank DESC";
+
+        /**
+         * The sort order of a relevance-ranked search, best match first and the most recently
+         * modified of equally good matches first
+         */
+        public static final String RELEVANCE_SORT_ORDER = "search_rank DESC, modified DESC";
+
         /*
          * Column definitions
          */
@@ -148,10 +259,108 @@ public final class NotePad {
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
 
         /**
-         * Column name for the category of the note
+         * Column name for the id of the category of the note, a row of {@link Categories}
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the name of the category of the note, read from {@link Categories}.
+         * Writing a name sets {@link #COLUMN_NAME_CATEGORY_ID}, adding the category if needed.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_CATEGORY = "category";
+
+        /**
+         * Column name for the color of the category of the note, read from {@link Categories}.
+         * Read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_COLOR = "category_color";
+
+        /**
+         * Column name for the relevance of a search hit, larger is better. Only available in
+         * cursors returned for {@link #CONTENT_SEARCH_URI}.
+         * <P>Type: REAL</P>
+         */
+        public static final String COLUMN_NAME_SEARCH_RANK = "search_rank";
+
+        /**
+         * Column name for a short excerpt of the note content, computed by the provider. It is
+         * the beginning of the note, or the text around the {@link #QUERY_PARAMETER_HIGHLIGHT}
+         * match prefixed with an ellipsis. Read-only.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Column name for the offset of the {@link #QUERY_PARAMETER_HIGHLIGHT} match within
+         * {@link #COLUMN_NAME_SNIPPET}, or -1 if the note contains none of the texts. Read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET_MATCH = "snippet_match";
+
+        /**
+         * Column name for the number of chunks the body of the note is stored in. Bodies longer
+         * than {@link #CHUNK_LENGTH} characters are split, and {@link #COLUMN_NAME_NOTE} only
+         * returns the first chunk, so that a query never has to fit a whole large note into a
+         * cursor window. Open the note URI as a text/plain stream with {@link #OPTION_BODY} to
+         * read the whole body. Searches look through all chunks; a snippet centred on a
+         * match past the first chunk starts at the match. Read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CHUNK_COUNT = "chunk_count";
+
+        /**
+         * The number of characters of the body of a note stored per chunk, see
+         * {@link #COLUMN_NAME_CHUNK_COUNT}
+         */
+        public static final int CHUNK_LENGTH = 256 * 1024;
+
+        /**
+         * A boolean option for opening a note URI as a text/plain stream: if true, the stream
+         * contains only the body of the note, without the title in front.
+         */
+        public static final String OPTION_BODY = "body";
+
+        /**
+         * An integer option for opening a note URI as a text/plain stream: if present, the
+         * stream contains only the chunk of the body at this position, starting at 0, instead
+         * of the whole body, see {@link #COLUMN_NAME_CHUNK_COUNT}. It is empty if the note has
+         * no such chunk.
+         */
+        public static final String OPTION_CHUNK = "chunk";
+
+        /**
+         * The MIME type of the export of all notes, which is available by opening
+         * {@link #CONTENT_URI} as a stream. It is JSON Lines: one object per note, in the order
+         * of the note IDs, with the {@link #_ID}, {@link #COLUMN_NAME_TITLE}, the whole
+         * {@link #COLUMN_NAME_NOTE}, {@link #COLUMN_NAME_CREATE_DATE},
+         * {@link #COLUMN_NAME_MODIFICATION_DATE} and {@link #COLUMN_NAME_CATEGORY} of the note.
+         */
+        public static final String EXPORT_MIME_TYPE = "application/x-ndjson";
+
+        /**
+         * Column names for a patch of the note body, write-only. Instead of the whole
+         * {@link #COLUMN_NAME_NOTE}, an update of a single note URI without selection can give
+         * the offset of an edit, the number of characters it replaces and the text it inserts.
+         * The provider stores the patch as a revision and applies the revisions when the body
+         * of the note is read through its note URI. Snippets and searches see the body as it
+         * was before the revisions until the note is compacted, see {@link #METHOD_COMPACT}.
+         * The body of a note stored in chunks is patched right away, in the chunks the edit
+         * falls in.
+         * <P>Type: INTEGER, INTEGER and TEXT</P>
+         */
+        public static final String COLUMN_NAME_PATCH_OFFSET = "patch_offset";
+        public static final String COLUMN_NAME_PATCH_DELETED = "patch_deleted";
+        public static final String COLUMN_NAME_PATCH_TEXT = "patch_text";
+
+        /**
+         * The provider method that compacts the revisions of a note into its body, with the
+         * URI of the note as the argument. The provider also compacts notes on its own once
+         * they have many revisions.
+         */
+        public static final String METHOD_COMPACT = "compact";
     }
 
     /**
@@ -20,32 +20,57 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -61,9 +86,178 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final String DATABASE_NAME = "note_pad.db";
 
     /**
-     * The database version - updated for category support
+     * The database version - updated for the whole-word index of the chunks of long notes
      */
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 12;
+
+    /**
+     * The full-text index over the titles and bodies of the notes table
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The full-text index over the chunks of long notes after the first one, one row per chunk
+     * holding the title of the note and the text of the chunk
+     */
+    private static final String CHUNKS_FTS_TABLE_NAME = "note_chunks_fts";
+
+    /**
+     * The full-text index of whole words, over the titles and bodies as split by
+     * {@link WordSegmenter}. Like the full-text index, it holds the first chunk of a long note.
+     */
+    private static final String WORDS_TABLE_NAME = "notes_words";
+
+    /**
+     * The notes written since the whole-word index was last brought up to date
+     */
+    private static final String WORDS_PENDING_TABLE_NAME = "notes_words_pending";
+    private static final String WORDS_PENDING_NOTE_ID = "note_id";
+
+    /**
+     * The whole-word index over the chunks of long notes after the first one, one row per chunk
+     * like {@link #CHUNKS_FTS_TABLE_NAME}
+     */
+    private static final String CHUNKS_WORDS_TABLE_NAME = "note_chunks_words";
+
+    /**
+     * The chunks written since the whole-word index of the chunks was last brought up to date,
+     * by the rowid of the chunk
+     */
+    private static final String CHUNKS_WORDS_PENDING_TABLE_NAME = "note_chunks_words_pending";
+    private static final String CHUNKS_WORDS_PENDING_CHUNK_ID = "chunk_id";
+
+    /**
+     * The most notes or chunks the background update of the whole-word index indexes per
+     * transaction, and the most characters it segments per transaction, so that writers don't
+     * wait for the whole backlog
+     */
+    static final int WORD_INDEX_BATCH = 64;
+    private static final int WORD_INDEX_BATCH_LENGTH = NotePad.Notes.CHUNK_LENGTH;
+
+    /**
+     * How long the notes have to be left alone before the background update of the whole-word
+     * index runs
+     */
+    private static final long WORD_INDEX_DELAY_MILLIS = 2000;
+
+    /**
+     * The number of compiled search queries kept, enough for the queries typed in a row
+     */
+    private static final int SEARCH_PLAN_CACHE_SIZE = 32;
+
+    /**
+     * The number of relevance-ranked FTS4 searches whose best hits are kept, enough for the
+     * pages and the count of the searches typed in a row
+     */
+    private static final int RANKED_HITS_CACHE_SIZE = 8;
+
+    /**
+     * The index of the title among the columns of the full-text index
+     */
+    private static final int FTS_COLUMN_TITLE = 0;
+
+    /*
+     * BM25 parameters for scoring relevance-ranked FTS4 hits, the same as those of FTS5's bm25():
+     * how quickly repeated hits saturate, how strongly the note length normalizes them, and the
+     * weight left to a phrase found in most of the notes.
+     */
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    private static final double BM25_MIN_IDF = 1e-6;
+
+    /**
+     * Whether the database uses write-ahead logging. With WAL, the list, the widget and the live
+     * folder read from their own connections while the editor writes, instead of waiting for it.
+     */
+    static final boolean DEFAULT_WRITE_AHEAD_LOGGING = true;
+
+    /**
+     * The page cache of a connection, in KiB
+     */
+    private static final int CACHE_SIZE_KIB = 4096;
+
+    /**
+     * The number of WAL pages after which a commit checkpoints in the writing thread. The
+     * background checkpoint normally runs well before that; this bounds the log if it doesn't.
+     */
+    static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+
+    /**
+     * How long the database has to be idle before the log is checkpointed in the background
+     */
+    private static final long CHECKPOINT_DELAY_MILLIS = 1000;
+
+    /**
+     * The view that notes are read from: the notes table joined with the name and color of
+     * their category
+     */
+    static final String NOTES_VIEW_NAME = "notes_view";
+
+    /**
+     * Edits to note bodies that aren't compacted into the notes table yet, see
+     * {@link NotePad.Notes#COLUMN_NAME_PATCH_TEXT}. Columns: the note, the offset of the edit,
+     * the number of characters it replaces and the text it inserts.
+     */
+    static final String REVISIONS_TABLE_NAME = "note_revisions";
+    static final String REVISION_NOTE_ID = "note_id";
+    private static final String REVISION_OFFSET = "patch_offset";
+    private static final String REVISION_DELETED = "patch_deleted";
+    private static final String REVISION_TEXT = "patch_text";
+
+    /**
+     * A note is compacted when it has this many revisions, or revisions that insert this many
+     * characters. Applying the revisions on every read of the body stays cheap below that.
+     */
+    static final int MAX_REVISIONS = 64;
+    private static final int MAX_REVISION_CHARS = 16 * 1024;
+
+    /**
+     * The chunks of note bodies after the first one, which the notes table stores, see
+     * {@link NotePad.Notes#COLUMN_NAME_CHUNK_COUNT}. Columns: the note, the position of the chunk
+     * starting at 1, its text and the length of the text in UTF-16 units, which SQLite's
+     * length() doesn't count.
+     */
+    static final String CHUNKS_TABLE_NAME = "note_chunks";
+    static final String CHUNK_NOTE_ID = "note_id";
+    private static final String CHUNK_INDEX = "chunk_index";
+    static final String CHUNK_TEXT = "chunk_text";
+    private static final String CHUNK_LENGTH = "chunk_length";
+
+    /**
+     * The notes whose chunks are being patched. Writing the first chunk of such a note to the
+     * notes table keeps its other chunks, which any other write of the body drops.
+     */
+    private static final String CHUNKS_KEPT_TABLE_NAME = "note_chunks_kept";
+
+    /**
+     * Indexes for the default sort order, the category filter and the search history order
+     */
+    static final String NOTES_MODIFIED_INDEX = "notes_modified_index";
+    static final String NOTES_CATEGORY_INDEX = "notes_category_index";
+    static final String SEARCH_HISTORY_TIMESTAMP_INDEX = "search_history_timestamp_index";
+
+    /**
+     * The number of characters kept in front of a highlight match in a centred snippet
+     */
+    private static final int SNIPPET_LEAD = 20;
+
+    /**
+     * The most highlight texts a snippet is centred on, so that a long query doesn't bind an
+     * unbounded number of arguments
+     */
+    private static final int MAX_HIGHLIGHT_TEXTS = 8;
+
+    /**
+     * The column holding the 1-based position of the highlight text in the note body, 0 if it
+     * isn't there
+     */
+    private static final String SNIPPET_POSITION = "snippet_pos";
+
+    /**
+     * The column holding the snippet of a long note whose first chunk doesn't contain the
+     * highlight text but another chunk does, starting at the match; null otherwise
+     */
+    private static final String SNIPPET_CHUNK = "snippet_chunk";
 
     /**
      * A projection map used to select columns from the database
@@ -75,6 +269,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * Projection maps for full-text searches, with and without a join against the index
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+    private static HashMap<String, String> sUnrankedSearchProjectionMap;
+
     /**
      * A projection map for categories
      */
@@ -120,13 +320,45 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Coalesces the change notifications of writes
+    private ChangeNotifier mChangeNotifier;
+
+    // Compiled search queries by query text
+    private final LruCache<String, SearchPlan> mSearchPlans =
+            new LruCache<String, SearchPlan>(SEARCH_PLAN_CACHE_SIZE);
+
+    // The scores of the best hits of relevance-ranked FTS4 searches, see getRankedHits()
+    private final LruCache<String, Map<Long, Double>> mRankedHits =
+            new LruCache<String, Map<Long, Double>>(RANKED_HITS_CACHE_SIZE);
+
+    // Counts the writes to notes and categories; hits ranked before the last one are stale
+    private final AtomicLong mNotesGeneration = new AtomicLong();
+
+    // Whether a query of the notes ran while revisions were pending or a whole-word search
+    // ran while the whole-word index was behind, so that its results change once the
+    // background update is done
+    private final AtomicBoolean mIndexBehind = new AtomicBoolean();
+
+    private final Runnable mIndexRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updatePendingIndexes();
+        }
+    };
+
     // 搜索历史表的URI匹配模式
     private static final int SEARCH_HISTORY = 6;
     private static final int SEARCH_HISTORY_ID = 7;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int NOTES_SEARCH = 8;
+
     // 添加搜索历史表相关的常量
     private static HashMap<String, String> sSearchHistoryProjectionMap;
 
+    // The category of notes that don't name one
+    private static final String DEFAULT_CATEGORY = "默认分类";
+
     // Default categories to initialize the database with
     private static final String[] DEFAULT_CATEGORIES = {
             "默认分类", "工作", "学习", "生活", "想法", "购物清单"
@@ -160,6 +392,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // to a note ID operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
 
+        // Add a pattern that routes URIs terminated with "notes/search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
         // Add a pattern that routes URIs terminated with live_folders/notes to a
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
@@ -198,10 +433,48 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
-        // Maps "category" to "category"
+        // Maps "category_id" to "category_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+
+        // Maps "category" to "category", the name joined from the categories table
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
                 NotePad.Notes.COLUMN_NAME_CATEGORY);
 
+        // Maps "category_color" to "category_color", joined from the categories table
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+
+        // Maps "snippet" to the beginning of the note, so that lists don't read whole notes
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                "substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + NotePad.Notes.SNIPPET_LENGTH
+                        + ") AS " + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        // Without highlight text there is no match in the snippet
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH,
+                "-1 AS " + NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH);
+
+        // Maps "chunk_count" to the first chunk, in the notes table, plus the other chunks
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CHUNK_COUNT,
+                "1 + (SELECT count(*) FROM " + CHUNKS_TABLE_NAME + " WHERE "
+                        + CHUNKS_TABLE_NAME + "." + CHUNK_NOTE_ID + " = "
+                        + NOTES_VIEW_NAME + "." + NotePad.Notes._ID + ") AS "
+                        + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT);
+
+        /*
+         * Creates the projection maps for full-text searches. The _id column is qualified since
+         * ranked searches join the notes view against the index hits.
+         */
+        sSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sSearchProjectionMap.put(NotePad.Notes._ID,
+                NOTES_VIEW_NAME + "." + NotePad.Notes._ID + " AS " + NotePad.Notes._ID);
+        sUnrankedSearchProjectionMap = new HashMap<String, String>(sSearchProjectionMap);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_SEARCH_RANK,
+                "hits." + NotePad.Notes.COLUMN_NAME_SEARCH_RANK + " AS "
+                        + NotePad.Notes.COLUMN_NAME_SEARCH_RANK);
+        sUnrankedSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_SEARCH_RANK,
+                "0 AS " + NotePad.Notes.COLUMN_NAME_SEARCH_RANK);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -250,10 +523,125 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        // Whether the full-text index was created with FTS5; read back from the schema on open.
+        private volatile boolean mFts5;
+
+        private final boolean mWriteAheadLogging;
+
+        // The compiled statements of the open database
+        private volatile StatementCache mStatementCache;
+
+        // Runs the checkpoints of the log and the updates of the whole-word index
+        private final Handler mBackgroundHandler;
+
+        private final Runnable mCheckpointRunnable = new Runnable() {
+            @Override
+            public void run() {
+                checkpoint();
+            }
+        };
+
         DatabaseHelper(Context context) {
+            this(context, DATABASE_NAME, DEFAULT_WRITE_AHEAD_LOGGING);
+        }
+
+        /**
+         * Creates a helper for a database file in the given journal mode. Set to package
+         * visibility so that tests can compare the modes.
+         */
+        DatabaseHelper(Context context, String name, boolean writeAheadLogging) {
 
             // calls the super constructor, requesting the default cursor factory.
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            super(context, name, null, DATABASE_VERSION);
+            mWriteAheadLogging = writeAheadLogging;
+            HandlerThread thread = new HandlerThread("NotePadBackground",
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mBackgroundHandler = new Handler(thread.getLooper());
+        }
+
+        /**
+         * Sets the journal mode and the pragmas of the connection before the database is
+         * created or upgraded. In WAL mode a commit only has to reach the log, so synchronous
+         * NORMAL keeps the database consistent while leaving out an fsync per commit. The
+         * pragmas apply to the primary connection, which does all the writes.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            super.onConfigure(db);
+            if (mWriteAheadLogging) {
+                db.enableWriteAheadLogging();
+                db.execSQL("PRAGMA synchronous = NORMAL");
+                // This pragma returns the new setting as a row, which execSQL() rejects on older
+                // platforms, so it is run as a query
+                DatabaseUtils.longForQuery(db,
+                        "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+            } else {
+                db.disableWriteAheadLogging();
+            }
+            // A negative cache size is in KiB rather than pages
+            db.execSQL("PRAGMA cache_size = -" + CACHE_SIZE_KIB);
+            db.execSQL("PRAGMA temp_store = MEMORY");
+        }
+
+        /**
+         * Closes the database and stops the background thread
+         */
+        @Override
+        public synchronized void close() {
+            if (mStatementCache != null) {
+                mStatementCache.close();
+            }
+            super.close();
+            mBackgroundHandler.getLooper().quit();
+        }
+
+        /**
+         * Returns true if the database uses write-ahead logging
+         */
+        boolean isWriteAheadLogging() {
+            return mWriteAheadLogging;
+        }
+
+        /**
+         * Checkpoints the log once no write happened for {@link #CHECKPOINT_DELAY_MILLIS}, so
+         * that copying the log back into the database doesn't slow down the writers.
+         */
+        void scheduleCheckpoint() {
+            if (!mWriteAheadLogging) {
+                return;
+            }
+            schedule(mCheckpointRunnable, CHECKPOINT_DELAY_MILLIS);
+        }
+
+        /**
+         * Runs a task on the background thread once no other request for it came in for the
+         * given delay
+         */
+        void schedule(Runnable task, long delayMillis) {
+            mBackgroundHandler.removeCallbacks(task);
+            mBackgroundHandler.postDelayed(task, delayMillis);
+        }
+
+        /**
+         * Copies the log back into the database without waiting for readers or writers; pages
+         * still in use are left for the next checkpoint.
+         */
+        void checkpoint() {
+            try {
+                Cursor c = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+                try {
+                    // busy, log pages, checkpointed pages
+                    if (c.moveToFirst()) {
+                        Log.v(TAG, "Checkpointed " + c.getInt(2) + " of " + c.getInt(1)
+                                + " log pages");
+                    }
+                } finally {
+                    c.close();
+                }
+            } catch (SQLException e) {
+                Log.w(TAG, "Checkpoint failed", e);
+            }
         }
 
         /**
@@ -263,14 +651,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
-                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
-                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
-                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '默认分类'"
-                    + ");");
+            createNotesTable(db, NotePad.Notes.TABLE_NAME);
 
             db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
                     + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
@@ -289,208 +670,1815 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // Insert default categories
             insertDefaultCategories(db);
+
+            // 创建全文索引
+            createFullTextIndex(db);
+
+            // 创建排序和筛选用的索引
+            createIndexes(db);
+
+            // 创建带分类名称和颜色的笔记视图
+            createNotesView(db);
+
+            // 创建笔记修订表
+            createRevisionsTable(db);
+
+            // 创建长笔记分块表
+            createChunksTable(db);
+
+            // 创建全词匹配索引
+            createWordIndex(db);
+
+            // 创建长笔记分块的全文索引
+            createChunksIndex(db);
+
+            // 创建长笔记分块的全词匹配索引
+            createChunksWordIndex(db);
         }
 
         /**
-         * Inserts default categories into the categories table
+         * Creates the table of the edits that aren't compacted into the notes yet. Writing the
+         * whole body of a note, which is what compacting does, or deleting the note drops its
+         * revisions.
          */
-        private void insertDefaultCategories(SQLiteDatabase db) {
-            long now = System.currentTimeMillis();
-            for (int i = 0; i < DEFAULT_CATEGORIES.length; i++) {
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Categories.COLUMN_NAME_NAME, DEFAULT_CATEGORIES[i]);
-                values.put(NotePad.Categories.COLUMN_NAME_COLOR, DEFAULT_CATEGORY_COLORS[i]);
-                values.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE, now);
-                db.insert(NotePad.Categories.TABLE_NAME, null, values);
-            }
+        private static void createRevisionsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + REVISIONS_TABLE_NAME + " ("
+                    + "_id INTEGER PRIMARY KEY,"
+                    + REVISION_NOTE_ID + " INTEGER,"
+                    + REVISION_OFFSET + " INTEGER,"
+                    + REVISION_DELETED + " INTEGER,"
+                    + REVISION_TEXT + " TEXT"
+                    + ");");
+            db.execSQL("CREATE INDEX " + REVISIONS_TABLE_NAME + "_note_index ON "
+                    + REVISIONS_TABLE_NAME + " (" + REVISION_NOTE_ID + ");");
+            String deleteRevisions = " BEGIN DELETE FROM " + REVISIONS_TABLE_NAME + " WHERE "
+                    + REVISION_NOTE_ID + " = old." + NotePad.Notes._ID + "; END";
+            db.execSQL("CREATE TRIGGER " + REVISIONS_TABLE_NAME + "_bd BEFORE DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + deleteRevisions);
+            db.execSQL("CREATE TRIGGER " + REVISIONS_TABLE_NAME + "_au AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + NotePad.Notes.TABLE_NAME
+                    + deleteRevisions);
         }
 
         /**
-         *
-         * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded the database
-         * by destroying the existing data.
-         * A real application should upgrade the database in place.
+         * Creates the table of the chunks of long note bodies. Writing the body of a note
+         * replaces all of it, so it drops the chunks, as does deleting the note; patching a
+         * long note rewrites its chunks itself.
          */
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
-            // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will add category support");
-
-            if (oldVersion < 3) {
-                // Upgrade from version 2 to 3: add category column to notes table
-                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME +
-                        " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '默认分类'");
-
-                // Create categories table
-                db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
-                        + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
-                        + NotePad.Categories.COLUMN_NAME_NAME + " TEXT UNIQUE,"
-                        + NotePad.Categories.COLUMN_NAME_COLOR + " INTEGER,"
-                        + NotePad.Categories.COLUMN_NAME_CREATE_DATE + " INTEGER"
-                        + ");");
+        private static void createChunksTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CHUNKS_TABLE_NAME + " ("
+                    + CHUNK_NOTE_ID + " INTEGER,"
+                    + CHUNK_INDEX + " INTEGER,"
+                    + CHUNK_TEXT + " TEXT,"
+                    + CHUNK_LENGTH + " INTEGER,"
+                    + "PRIMARY KEY (" + CHUNK_NOTE_ID + ", " + CHUNK_INDEX + ")"
+                    + ");");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_TABLE_NAME + "_bd BEFORE DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM " + CHUNKS_TABLE_NAME
+                    + " WHERE " + CHUNK_NOTE_ID + " = old." + NotePad.Notes._ID + "; END");
+            createChunksKeptTable(db);
+        }
 
-                // Insert default categories
-                insertDefaultCategories(db);
-            }
+        /**
+         * Creates the table of the notes whose chunks are being patched, and the trigger that
+         * drops the chunks of the other notes when their body is written.
+         */
+        private static void createChunksKeptTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CHUNKS_KEPT_TABLE_NAME + " ("
+                    + CHUNK_NOTE_ID + " INTEGER PRIMARY KEY"
+                    + ");");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_TABLE_NAME + "_au AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN NOT EXISTS (SELECT 1 FROM " + CHUNKS_KEPT_TABLE_NAME + " WHERE "
+                    + CHUNK_NOTE_ID + " = new." + NotePad.Notes._ID + ")"
+                    + " BEGIN DELETE FROM " + CHUNKS_TABLE_NAME + " WHERE "
+                    + CHUNK_NOTE_ID + " = old." + NotePad.Notes._ID + "; END");
+        }
 
-            if (oldVersion < 4) {
-                // 版本4：添加搜索历史表
-                db.execSQL("CREATE TABLE " + NotePad.SearchHistory.TABLE_NAME + " ("
-                        + NotePad.SearchHistory._ID + " INTEGER PRIMARY KEY,"
-                        + NotePad.SearchHistory.COLUMN_NAME_QUERY + " TEXT UNIQUE,"
-                        + NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP + " INTEGER,"
-                        + NotePad.SearchHistory.COLUMN_NAME_RESULT_COUNT + " INTEGER DEFAULT 0"
-                        + ");");
+        /**
+         * Adds the lengths of the chunks to a chunks table of version 9 and lets patches keep
+         * the chunks. The lengths are counted in UTF-16 units, so they are computed here.
+         */
+        private static void migrateChunkLengths(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + CHUNKS_TABLE_NAME + " ADD COLUMN " + CHUNK_LENGTH
+                    + " INTEGER");
+            Cursor c = db.query(CHUNKS_TABLE_NAME, new String[] { "rowid", CHUNK_TEXT },
+                    null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (c.moveToNext()) {
+                    String text = c.getString(1);
+                    values.put(CHUNK_LENGTH, text != null ? text.length() : 0);
+                    db.update(CHUNKS_TABLE_NAME, values, "rowid = " + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
             }
+            db.execSQL("DROP TRIGGER IF EXISTS " + CHUNKS_TABLE_NAME + "_au");
+            createChunksKeptTable(db);
         }
-    }
-
-    /**
-     *
-     * Initializes the provider by creating a new DatabaseHelper. onCreate() is called
-     * automatically when Android creates the provider in response to a resolver request from a
-     * client.
-     */
-    @Override
-    public boolean onCreate() {
 
-        // Creates a new helper object. Note that the database itself isn't opened until
-        // something tries to access it, and it's only created if it doesn't already exist.
-        mOpenHelper = new DatabaseHelper(getContext());
+        /**
+         * Creates the full-text index over the chunks of long notes, of the same kind as the
+         * index over the notes table, and the triggers that keep it in sync. An external-content
+         * index would need the title in the chunks table, so the index keeps its own copy of the
+         * chunks; only notes longer than {@link NotePad.Notes#CHUNK_LENGTH} have any. The chunks
+         * that already exist are indexed.
+         */
+        private static void createChunksIndex(SQLiteDatabase db) {
+            String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+            createIndexTable(db, CHUNKS_FTS_TABLE_NAME);
+            createChunksIndexTriggers(db);
+
+            // The chunks repeat the title of their note, so that title terms match them too
+            db.execSQL("CREATE TRIGGER " + CHUNKS_FTS_TABLE_NAME + "_title AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN UPDATE " + CHUNKS_FTS_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + " WHERE rowid IN (SELECT rowid FROM " + CHUNKS_TABLE_NAME + " WHERE "
+                    + CHUNK_NOTE_ID + " = new." + NotePad.Notes._ID + "); END");
+
+            db.execSQL("INSERT INTO " + CHUNKS_FTS_TABLE_NAME + "(rowid, " + columns + ") SELECT "
+                    + "c.rowid, n." + NotePad.Notes.COLUMN_NAME_TITLE + ", c." + CHUNK_TEXT
+                    + " FROM " + CHUNKS_TABLE_NAME + " AS c JOIN " + NotePad.Notes.TABLE_NAME
+                    + " AS n ON n." + NotePad.Notes._ID + " = c." + CHUNK_NOTE_ID);
+        }
 
-        // Assumes that any failures will be reported by a thrown exception.
-        return true;
-    }
+        /**
+         * Creates the triggers that copy the writes to the chunks into their full-text index
+         */
+        private static void createChunksIndexTriggers(SQLiteDatabase db) {
+            String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+            String title = "(SELECT " + NotePad.Notes.COLUMN_NAME_TITLE + " FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = new."
+                    + CHUNK_NOTE_ID + ")";
+            String insertNew = "INSERT INTO " + CHUNKS_FTS_TABLE_NAME + "(rowid, " + columns
+                    + ") VALUES (new.rowid, " + title + ", new." + CHUNK_TEXT + ");";
+            String deleteOld = "DELETE FROM " + CHUNKS_FTS_TABLE_NAME + " WHERE rowid = old.rowid;";
+            db.execSQL("CREATE TRIGGER " + CHUNKS_FTS_TABLE_NAME + "_ai AFTER INSERT ON "
+                    + CHUNKS_TABLE_NAME + " BEGIN " + insertNew + " END");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_FTS_TABLE_NAME + "_bd BEFORE DELETE ON "
+                    + CHUNKS_TABLE_NAME + " BEGIN " + deleteOld + " END");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_FTS_TABLE_NAME + "_au AFTER UPDATE OF "
+                    + CHUNK_TEXT + " ON " + CHUNKS_TABLE_NAME
+                    + " BEGIN " + deleteOld + insertNew + " END");
+        }
 
-    /**
-     * This method is called when a client calls
-     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}.
-     * Queries the database and returns a cursor containing the results.
-     *
-     * @return A cursor containing the results of the query. The cursor exists but is empty if
-     * the query returns no results or an exception occurs.
-     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
-     */
-    @Override
-    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
-                        String sortOrder) {
+        /**
+         * Creates the whole-word index over the chunks of long notes, which has a row per chunk
+         * repeating the title of the note like the full-text index of the chunks, and the table
+         * of the chunks it is behind on. A patch of a long note rewrites only some of its
+         * chunks, so only those are segmented again; a new title records all chunks of the
+         * note. All chunks that already exist are recorded, and so are their notes, whose rows
+         * in the whole-word index held whole bodies before this index existed.
+         * <p>
+         * The whole-word index of the notes holds the bodies with their revisions applied from
+         * then on, so a new revision records its note too, as do the revisions already pending.
+         */
+        private static void createChunksWordIndex(SQLiteDatabase db) {
+            createIndexTable(db, CHUNKS_WORDS_TABLE_NAME);
 
-        // Constructs a new query builder and sets its table name
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            db.execSQL("CREATE TABLE " + CHUNKS_WORDS_PENDING_TABLE_NAME + " ("
+                    + CHUNKS_WORDS_PENDING_CHUNK_ID + " INTEGER PRIMARY KEY"
+                    + ");");
+            String record = " BEGIN INSERT OR IGNORE INTO " + CHUNKS_WORDS_PENDING_TABLE_NAME
+                    + " VALUES ";
+            db.execSQL("CREATE TRIGGER " + CHUNKS_WORDS_TABLE_NAME + "_ai AFTER INSERT ON "
+                    + CHUNKS_TABLE_NAME + record + "(new.rowid); END");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_WORDS_TABLE_NAME + "_au AFTER UPDATE OF "
+                    + CHUNK_TEXT + " ON " + CHUNKS_TABLE_NAME + record + "(new.rowid); END");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_WORDS_TABLE_NAME + "_ad AFTER DELETE ON "
+                    + CHUNKS_TABLE_NAME + record + "(old.rowid); END");
+            db.execSQL("CREATE TRIGGER " + CHUNKS_WORDS_TABLE_NAME + "_title AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN INSERT OR IGNORE INTO " + CHUNKS_WORDS_PENDING_TABLE_NAME
+                    + " SELECT rowid FROM " + CHUNKS_TABLE_NAME + " WHERE " + CHUNK_NOTE_ID
+                    + " = new." + NotePad.Notes._ID + "; END");
+            db.execSQL("CREATE TRIGGER " + WORDS_TABLE_NAME + "_revision AFTER INSERT ON "
+                    + REVISIONS_TABLE_NAME + " BEGIN INSERT OR IGNORE INTO "
+                    + WORDS_PENDING_TABLE_NAME + " VALUES (new." + REVISION_NOTE_ID + "); END");
+
+            db.execSQL("INSERT INTO " + CHUNKS_WORDS_PENDING_TABLE_NAME + " SELECT rowid FROM "
+                    + CHUNKS_TABLE_NAME);
+            db.execSQL("INSERT OR IGNORE INTO " + WORDS_PENDING_TABLE_NAME + " SELECT DISTINCT "
+                    + CHUNK_NOTE_ID + " FROM " + CHUNKS_TABLE_NAME);
+            db.execSQL("INSERT OR IGNORE INTO " + WORDS_PENDING_TABLE_NAME + " SELECT DISTINCT "
+                    + REVISION_NOTE_ID + " FROM " + REVISIONS_TABLE_NAME);
+        }
 
         /**
-         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
+         * Creates a table with the columns of the notes table. A note refers to its category by
+         * id, so renaming a category doesn't touch the notes.
+         */
+        private static void createNotesTable(SQLiteDatabase db, String table) {
+            db.execSQL("CREATE TABLE " + table + " ("
+                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER REFERENCES "
+                    + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + ")"
+                    + ");");
+        }
+
+        /**
+         * Creates the view that the provider reads notes from. Each note is joined with the name
+         * and color of its category through the primary key of the categories table.
+         */
+        private static void createNotesView(SQLiteDatabase db) {
+            db.execSQL("CREATE VIEW " + NOTES_VIEW_NAME + " AS SELECT "
+                    + "n." + NotePad.Notes._ID + " AS " + NotePad.Notes._ID + ", "
+                    + "n." + NotePad.Notes.COLUMN_NAME_TITLE + " AS " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + "n." + NotePad.Notes.COLUMN_NAME_NOTE + " AS " + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                    + "n." + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " AS "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + "n." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " AS "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + "n." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " AS "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + "c." + NotePad.Categories.COLUMN_NAME_NAME + " AS "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                    + "c." + NotePad.Categories.COLUMN_NAME_COLOR + " AS "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+                    + " FROM " + NotePad.Notes.TABLE_NAME + " AS n LEFT JOIN "
+                    + NotePad.Categories.TABLE_NAME + " AS c ON n."
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = c." + NotePad.Categories._ID);
+        }
+
+        /**
+         * Replaces the category names stored in the notes table by references to the categories
+         * table. Names that have no category yet get one, notes without a name go to the default
+         * category. SQLite can't change the type of a column in place, so the table is copied;
+         * the ids are kept, and with them the full-text index, whose triggers are recreated.
+         */
+        private void migrateCategoryIds(SQLiteDatabase db) {
+            String category = "coalesce(" + NotePad.Notes.COLUMN_NAME_CATEGORY + ", '"
+                    + DEFAULT_CATEGORY + "')";
+            db.execSQL("INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                    + NotePad.Categories.COLUMN_NAME_NAME + ", "
+                    + NotePad.Categories.COLUMN_NAME_COLOR + ", "
+                    + NotePad.Categories.COLUMN_NAME_CREATE_DATE + ") SELECT DISTINCT "
+                    + category + ", " + DEFAULT_CATEGORY_COLORS[0] + ", " + System.currentTimeMillis()
+                    + " FROM " + NotePad.Notes.TABLE_NAME);
+
+            String table = NotePad.Notes.TABLE_NAME + "_new";
+            String columns = NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+            createNotesTable(db, table);
+            db.execSQL("INSERT INTO " + table + " (" + columns + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") SELECT " + columns + ", "
+                    + "(SELECT " + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                    + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = " + category + ")"
+                    + " FROM " + NotePad.Notes.TABLE_NAME);
+            db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + NotePad.Notes.TABLE_NAME);
+
+            createFullTextTriggers(db, isFts5Index(db));
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            mFts5 = isFts5Index(db);
+            mStatementCache = new StatementCache(db);
+        }
+
+        /**
+         * Returns the compiled statements for writes to the database, opening it if needed
+         */
+        StatementCache getStatementCache() {
+            getWritableDatabase();
+            return mStatementCache;
+        }
+
+        /**
+         * Returns true if the full-text index is an FTS5 table, false if it is FTS4
+         */
+        boolean usesFts5() {
+            return mFts5;
+        }
+
+        /**
+         * Creates the full-text index over the notes table and the triggers that keep it in
+         * sync. The index is an external-content table, so it stores only the index and reads
+         * titles and bodies back from the notes table. FTS5 is preferred; the platform SQLite
+         * is usually built with FTS4 only, so that is the fallback, with the unicode61
+         * tokenizer where the SQLite version has it.
+         */
+        private void createFullTextIndex(SQLiteDatabase db) {
+            String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+            boolean fts5;
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts5("
+                        + columns + ", "
+                        + "content='" + NotePad.Notes.TABLE_NAME + "', "
+                        + "content_rowid='" + NotePad.Notes._ID + "')");
+                fts5 = true;
+            } catch (SQLException e) {
+                Log.i(TAG, "FTS5 is not available, using FTS4 for the search index");
+                String fts4 = "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                        + "content=\"" + NotePad.Notes.TABLE_NAME + "\", " + columns;
+                try {
+                    db.execSQL(fts4 + ", tokenize=unicode61)");
+                } catch (SQLException e2) {
+                    db.execSQL(fts4 + ")");
+                }
+                fts5 = false;
+            }
+
+            createFullTextTriggers(db, fts5);
+
+            // Indexes any notes that already exist
+            db.execSQL("INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ") VALUES ('rebuild')");
+        }
+
+        /**
+         * Creates the triggers that keep the full-text index in sync with the notes table
+         */
+        private static void createFullTextTriggers(SQLiteDatabase db, boolean fts5) {
+            String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+            String newValues = "new." + NotePad.Notes._ID + ", new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", new." + NotePad.Notes.COLUMN_NAME_NOTE;
+            String oldValues = "old." + NotePad.Notes._ID + ", old." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", old." + NotePad.Notes.COLUMN_NAME_NOTE;
+            String insertNew;
+            String deleteOld;
+            if (fts5) {
+                insertNew = "INSERT INTO " + FTS_TABLE_NAME + "(rowid, " + columns + ") VALUES ("
+                        + newValues + ");";
+                deleteOld = "INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ", rowid, "
+                        + columns + ") VALUES ('delete', " + oldValues + ");";
+            } else {
+                insertNew = "INSERT INTO " + FTS_TABLE_NAME + "(docid, " + columns + ") VALUES ("
+                        + newValues + ");";
+                deleteOld = "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old."
+                        + NotePad.Notes._ID + ";";
+            }
+
+            // Only title and body changes touch the index; category or timestamp updates don't.
+            String watched = " OF " + columns + " ON " + NotePad.Notes.TABLE_NAME;
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_ai AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN " + insertNew + " END");
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_bd BEFORE DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN " + deleteOld + " END");
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_bu BEFORE UPDATE" + watched
+                    + " BEGIN " + deleteOld + " END");
+            db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_au AFTER UPDATE" + watched
+                    + " BEGIN " + insertNew + " END");
+        }
+
+        /**
+         * Creates the whole-word index, of the same kind as the full-text index, and the table
+         * of the notes it is behind on. The tokenizers can't split CJK text into words and
+         * custom tokenizers can't be registered with the platform SQLite, so the index holds
+         * the text as split by {@link WordSegmenter} and is written by the provider rather than
+         * by triggers. The triggers only record which notes changed; the provider indexes them
+         * in the background once writes pause, or right away after a whole-word search found
+         * the index behind. All notes that already exist are recorded.
+         */
+        private static void createWordIndex(SQLiteDatabase db) {
+            String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+            createIndexTable(db, WORDS_TABLE_NAME);
+
+
+            db.execSQL("CREATE TABLE " + WORDS_PENDING_TABLE_NAME + " ("
+                    + WORDS_PENDING_NOTE_ID + " INTEGER PRIMARY KEY"
+                    + ");");
+            String recordNew = " BEGIN INSERT OR IGNORE INTO " + WORDS_PENDING_TABLE_NAME
+                    + " VALUES (new." + NotePad.Notes._ID + "); END";
+            db.execSQL("CREATE TRIGGER " + WORDS_TABLE_NAME + "_ai AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME + recordNew);
+            db.execSQL("CREATE TRIGGER " + WORDS_TABLE_NAME + "_au AFTER UPDATE OF " + columns
+                    + " ON " + NotePad.Notes.TABLE_NAME + recordNew);
+            db.execSQL("CREATE TRIGGER " + WORDS_TABLE_NAME + "_ad AFTER DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN INSERT OR IGNORE INTO "
+                    + WORDS_PENDING_TABLE_NAME + " VALUES (old." + NotePad.Notes._ID + "); END");
+
+            db.execSQL("INSERT INTO " + WORDS_PENDING_TABLE_NAME + " SELECT "
+                    + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME);
+        }
+
+        /**
+         * Creates a full-text index table of the same kind as the full-text index of the notes,
+         * see {@link #isFts5Index}, with a title and a note column, whose rows are written by
+         * the provider or by triggers.
+         */
+        private static void createIndexTable(SQLiteDatabase db, String table) {
+            String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+            if (isFts5Index(db)) {
+                db.execSQL("CREATE VIRTUAL TABLE " + table + " USING fts5(" + columns + ")");
+            } else {
+                String fts4 = "CREATE VIRTUAL TABLE " + table + " USING fts4(" + columns;
+                try {
+                    db.execSQL(fts4 + ", tokenize=unicode61)");
+                } catch (SQLException e) {
+                    db.execSQL(fts4 + ")");
+                }
+            }
+        }
+
+        /**
+         * Creates the indexes behind the hot queries: the notes list sorted by modification date,
+         * optionally filtered by category, and the search history sorted by time. The primary
+         * key is part of every index entry, so the notes indexes also serve the list's keyset
+         * paging on (modified, _id) and the count queries without touching the table.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + NOTES_MODIFIED_INDEX + " ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + NOTES_CATEGORY_INDEX + " ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + SEARCH_HISTORY_TIMESTAMP_INDEX + " ON "
+                    + NotePad.SearchHistory.TABLE_NAME + " ("
+                    + NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP + ");");
+        }
+
+        /**
+         * Reads the definition of the full-text index back from the schema
+         */
+        private static boolean isFts5Index(SQLiteDatabase db) {
+            Cursor c = db.rawQuery("SELECT sql FROM sqlite_master WHERE name = ?",
+                    new String[] { FTS_TABLE_NAME });
+            try {
+                return c.moveToFirst() && c.getString(0) != null
+                        && c.getString(0).toLowerCase(Locale.ROOT).contains("fts5");
+            } finally {
+                c.close();
+            }
+        }
+
+        /**
+         * Inserts default categories into the categories table
+         */
+        private void insertDefaultCategories(SQLiteDatabase db) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < DEFAULT_CATEGORIES.length; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Categories.COLUMN_NAME_NAME, DEFAULT_CATEGORIES[i]);
+                values.put(NotePad.Categories.COLUMN_NAME_COLOR, DEFAULT_CATEGORY_COLORS[i]);
+                values.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE, now);
+                db.insert(NotePad.Categories.TABLE_NAME, null, values);
+            }
+        }
+
+        /**
+         *
+         * Demonstrates that the provider must consider what happens when the
+         * underlying datastore is changed. In this sample, the database is upgraded the database
+         * by destroying the existing data.
+         * A real application should upgrade the database in place.
+         */
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+            // Logs that the database is being upgraded
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will add category support");
+
+            if (oldVersion < 3) {
+                // Upgrade from version 2 to 3: add category column to notes table
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME +
+                        " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '默认分类'");
+
+                // Create categories table
+                db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
+                        + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                        + NotePad.Categories.COLUMN_NAME_NAME + " TEXT UNIQUE,"
+                        + NotePad.Categories.COLUMN_NAME_COLOR + " INTEGER,"
+                        + NotePad.Categories.COLUMN_NAME_CREATE_DATE + " INTEGER"
+                        + ");");
+
+                // Insert default categories
+                insertDefaultCategories(db);
+            }
+
+            if (oldVersion < 4) {
+                // 版本4：添加搜索历史表
+                db.execSQL("CREATE TABLE " + NotePad.SearchHistory.TABLE_NAME + " ("
+                        + NotePad.SearchHistory._ID + " INTEGER PRIMARY KEY,"
+                        + NotePad.SearchHistory.COLUMN_NAME_QUERY + " TEXT UNIQUE,"
+                        + NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP + " INTEGER,"
+                        + NotePad.SearchHistory.COLUMN_NAME_RESULT_COUNT + " INTEGER DEFAULT 0"
+                        + ");");
+            }
+
+            if (oldVersion < 5) {
+                // 版本5：添加全文索引，并为已有笔记建立索引
+                createFullTextIndex(db);
+            }
+
+            // 版本6为排序和筛选列添加了索引，版本7重建笔记表后一并创建
+
+            if (oldVersion < 7) {
+                // 版本7：笔记通过整数外键引用分类，分类名称和颜色由视图连接得到
+                migrateCategoryIds(db);
+                createIndexes(db);
+                createNotesView(db);
+            }
+
+            if (oldVersion < 8) {
+                // 版本8：添加笔记修订表，正文的修改可以按补丁保存
+                createRevisionsTable(db);
+            }
+
+            if (oldVersion < 9) {
+                // 版本9：添加分块表，很长的笔记正文分块保存
+                createChunksTable(db);
+            }
+
+            if (oldVersion < 10) {
+                // 版本10：添加全词匹配索引，已有笔记在第一次写入或全词搜索后由后台线程建立索引
+                createWordIndex(db);
+            }
+
+            if (oldVersion < 11) {
+                // 版本11：分块记录长度，补丁只重写所在的分块；分块也建立全文索引
+                if (oldVersion >= 9) {
+                    migrateChunkLengths(db);
+                }
+                createChunksIndex(db);
+            }
+
+            if (oldVersion < 12) {
+                // 版本12：全词匹配索引按分块建立，长笔记的补丁只重新切分改动的分块；笔记按合并修订后的正文索引
+                if (oldVersion >= 11) {
+                    db.execSQL("DROP TRIGGER IF EXISTS " + CHUNKS_FTS_TABLE_NAME + "_ai");
+                    db.execSQL("DROP TRIGGER IF EXISTS " + CHUNKS_FTS_TABLE_NAME + "_bd");
+                    db.execSQL("DROP TRIGGER IF EXISTS " + CHUNKS_FTS_TABLE_NAME + "_au");
+                    createChunksIndexTriggers(db);
+                }
+                createChunksWordIndex(db);
+            }
+        }
+    }
+
+    /**
+     *
+     * Initializes the provider by creating a new DatabaseHelper. onCreate() is called
+     * automatically when Android creates the provider in response to a resolver request from a
+     * client.
+     */
+    @Override
+    public boolean onCreate() {
+
+        // Creates a new helper object. Note that the database itself isn't opened until
+        // something tries to access it, and it's only created if it doesn't already exist.
+        mOpenHelper = new DatabaseHelper(getContext());
+
+        // Creates the notifier that coalesces the change notifications of bursts of writes. The
+        // cache of opened notes and the category repository drop changed data without waiting
+        // for the notifications.
+        mChangeNotifier = new ChangeNotifier(getContext().getContentResolver(),
+                new ChangeNotifier.Listener() {
+                    @Override
+                    public void onChange(Uri uri) {
+                        NoteCache.onNoteChanged(uri);
+                        CategoryRepository.onCategoryChanged(uri);
+                    }
+                });
+
+        // Assumes that any failures will be reported by a thrown exception.
+        return true;
+    }
+
+    /**
+     * This method is called when a client calls
+     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}.
+     * Queries the database and returns a cursor containing the results.
+     *
+     * @return A cursor containing the results of the query. The cursor exists but is empty if
+     * the query returns no results or an exception occurs.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * This method is called when a client calls
+     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String,
+     * CancellationSignal)}. Queries the database like
+     * {@link #query(Uri, String[], String, String[], String)}; cancelling the signal stops the
+     * query, including the reads of further rows of the returned cursor, with an
+     * {@link android.os.OperationCanceledException}.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        BuiltQuery query = buildQuery(uri, projection, selection, selectionArgs, sortOrder,
+                cancellationSignal);
+
+        // Opens the database object in "read" mode, since no writes need to be done.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        /*
+         * Performs the query. If no problems occur trying to read the database, then a Cursor
+         * object is returned; otherwise, the cursor variable contains null. If no records were
+         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
+         */
+        Cursor c = db.rawQuery(query.sql, query.args, cancellationSignal);
+
+        // Tells the Cursor what URI to watch, so it knows when its source data changes
+        c.setNotificationUri(getContext().getContentResolver(), query.notificationUri);
+
+        // The body of a single note includes the revisions that aren't compacted yet
+        if (sUriMatcher.match(uri) == NOTE_ID
+                && c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE) >= 0) {
+            return new RevisedNoteCursor(c, db, ContentUris.parseId(uri));
+        }
+        return c;
+    }
+
+    /**
+     * A query built for a URI: the SQL, the arguments to bind to it and the URI the cursor
+     * watches for changes
+     */
+    static class BuiltQuery {
+        final String sql;
+        final String[] args;
+        final Uri notificationUri;
+
+        BuiltQuery(String sql, String[] args, Uri notificationUri) {
+            this.sql = sql;
+            this.args = args;
+            this.notificationUri = notificationUri;
+        }
+    }
+
+    /**
+     * Builds the query for the arguments of {@link #query(Uri, String[], String, String[],
+     * String, CancellationSignal)}. The search of a relevance-ranked FTS4 query already runs
+     * here, see {@link #setUpSearchQuery}.
+     */
+    private BuiltQuery buildQuery(Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder,
+                                  CancellationSignal cancellationSignal) {
+
+        // Constructs a new query builder and sets its table name
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+
+        // The arguments actually bound to the query; searches put their own in front
+        String[] queryArgs = selectionArgs;
+
+        // The URI the returned cursor watches for changes
+        Uri notificationUri = uri;
+
+        // The texts the snippets of notes URIs are centred on
+        Highlight highlight;
+
+        /**
+         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
          */
         switch (sUriMatcher.match(uri)) {
             // If the incoming URI is for notes, chooses the Notes projection
             case NOTES:
+                catchUpIndexes(false);
+                highlight = getHighlight(uri);
+                qb.setTables(getNotesSource(highlight));
+                qb.setProjectionMap(withHighlight(sNotesProjectionMap, highlight));
+                queryArgs = prependArgs(highlight, selectionArgs);
+                break;
+
+            /* If the incoming URI is for a single note identified by its ID, chooses the
+             * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
+             * it selects that single note
+             */
+            case NOTE_ID:
+                highlight = getHighlight(uri);
+                qb.setTables(getNotesSource(highlight));
+                qb.setProjectionMap(withHighlight(sNotesProjectionMap, highlight));
+                queryArgs = prependArgs(highlight, selectionArgs);
+                qb.appendWhere(
+                        NotePad.Notes._ID +    // the name of the ID column
+                                "=" +
+                                // the position of the note ID itself in the incoming URI
+                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                break;
+
+            // If the incoming URI is a full-text search, restricts the notes to the search hits.
+            // Search results change whenever any note changes, so the cursor watches all notes.
+            case NOTES_SEARCH:
+                queryArgs = setUpSearchQuery(qb, uri, selection, selectionArgs,
+                        cancellationSignal);
+                notificationUri = NotePad.Notes.CONTENT_URI;
+                break;
+
+            case LIVE_FOLDER_NOTES:
                 qb.setTables(NotePad.Notes.TABLE_NAME);
-                qb.setProjectionMap(sNotesProjectionMap);
+                // If the incoming URI is from a live folder, chooses the live folder projection.
+                qb.setProjectionMap(sLiveFolderProjectionMap);
                 break;
 
-            /* If the incoming URI is for a single note identified by its ID, chooses the
-             * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-             * it selects that single note
-             */
-            case NOTE_ID:
-                qb.setTables(NotePad.Notes.TABLE_NAME);
-                qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Notes._ID +    // the name of the ID column
-                                "=" +
-                                // the position of the note ID itself in the incoming URI
-                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
-                break;
+            case CATEGORIES:
+                qb.setTables(NotePad.Categories.TABLE_NAME);
+                qb.setProjectionMap(sCategoriesProjectionMap);
+                break;
+
+            case CATEGORY_ID:
+                qb.setTables(NotePad.Categories.TABLE_NAME);
+                qb.setProjectionMap(sCategoriesProjectionMap);
+                qb.appendWhere(
+                        NotePad.Categories._ID +
+                                "=" +
+                                uri.getPathSegments().get(1));
+                break;
+
+            case SEARCH_HISTORY:
+                qb.setTables(NotePad.SearchHistory.TABLE_NAME);
+                qb.setProjectionMap(sSearchHistoryProjectionMap);
+                break;
+
+            case SEARCH_HISTORY_ID:
+                qb.setTables(NotePad.SearchHistory.TABLE_NAME);
+                qb.setProjectionMap(sSearchHistoryProjectionMap);
+                qb.appendWhere(
+                        NotePad.SearchHistory._ID +
+                                "=" +
+                                uri.getPathSegments().get(1));
+                break;
+
+            default:
+                // If the URI doesn't match any of the known patterns, throw an exception.
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+
+        String orderBy;
+        // If no sort order is specified, uses the default
+        if (TextUtils.isEmpty(sortOrder)) {
+            switch (sUriMatcher.match(uri)) {
+                case NOTES:
+                case NOTE_ID:
+                case LIVE_FOLDER_NOTES:
+                    orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+                    break;
+                case NOTES_SEARCH:
+                    orderBy = NotePad.Notes.SEARCH_SORT_ORDER;
+                    break;
+                case CATEGORIES:
+                case CATEGORY_ID:
+                    orderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
+                    break;
+                case SEARCH_HISTORY:
+                case SEARCH_HISTORY_ID:
+                    orderBy = NotePad.SearchHistory.DEFAULT_SORT_ORDER;
+                    break;
+                default:
+                    orderBy = null;
+            }
+        } else {
+            // otherwise, uses the incoming sort order
+            orderBy = sortOrder;
+        }
+
+        // A relevance-ranked search always returns its best hits first
+        int relevance = getRelevance(uri);
+        if (relevance > 0) {
+            orderBy = NotePad.Notes.RELEVANCE_SORT_ORDER;
+        }
+
+        // Gets the optional row limit, e.g. for a page of the notes list.
+        String limit = getLimit(uri, relevance);
+
+        // A count steps over the rows without reading their columns or sorting them, and stops
+        // at the row limit.
+        if (uri.getBooleanQueryParameter(NotePad.Notes.QUERY_PARAMETER_COUNT, false)) {
+            String rows = qb.buildQuery(new String[] { BaseColumns._ID }, selection, null, null,
+                    null, limit);
+            return new BuiltQuery("SELECT count(*) AS " + BaseColumns._COUNT + " FROM (" + rows
+                    + ")", queryArgs, notificationUri);
+        }
+
+        return new BuiltQuery(qb.buildQuery(
+                projection,    // The columns to return from the query
+                selection,     // The columns for the where clause
+                null,          // don't group the rows
+                null,          // don't filter by row groups
+                orderBy,       // The sort order
+                limit          // The row limit, or null for all rows
+        ), queryArgs, notificationUri);
+    }
+
+    /**
+     * A cursor over a single note that returns the body of the note with its revisions applied.
+     * The revisions are read when the body is first needed, and again after a requery.
+     */
+    private static class RevisedNoteCursor extends CursorWrapper {
+        private final SQLiteDatabase mDb;
+        private final long mNoteId;
+        private final int mNoteIndex;
+        private String mBody;
+
+        RevisedNoteCursor(Cursor cursor, SQLiteDatabase db, long noteId) {
+            super(cursor);
+            mDb = db;
+            mNoteId = noteId;
+            mNoteIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex != mNoteIndex) {
+                return super.getString(columnIndex);
+            }
+            if (mBody == null) {
+                mBody = applyRevisions(mDb, mNoteId, super.getString(columnIndex));
+            }
+            return mBody;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean requery() {
+            mBody = null;
+            return super.requery();
+        }
+    }
+
+    /**
+     * Applies the revisions of a note to its stored body, oldest first.
+     *
+     * @return The current body of the note.
+     */
+    static String applyRevisions(SQLiteDatabase db, long noteId, String body) {
+        Cursor revisions = db.query(REVISIONS_TABLE_NAME,
+                new String[] { REVISION_OFFSET, REVISION_DELETED, REVISION_TEXT },
+                REVISION_NOTE_ID + " = ?", new String[] { String.valueOf(noteId) },
+                null, null, "_id");
+        try {
+            if (revisions.getCount() == 0) {
+                return body;
+            }
+            StringBuilder text = new StringBuilder(body != null ? body : "");
+            while (revisions.moveToNext()) {
+                // Out of range edits can only come from a broken client; they are clamped
+                int start = Math.max(0, Math.min(revisions.getInt(0), text.length()));
+                int end = Math.max(start, Math.min(start + revisions.getInt(1), text.length()));
+                String inserted = revisions.getString(2);
+                text.replace(start, end, inserted != null ? inserted : "");
+            }
+            return text.toString();
+        } finally {
+            revisions.close();
+        }
+    }
+
+
+    /**
+     * Builds the LIMIT clause from the limit and offset query parameters of a URI. A
+     * relevance-ranked search is further cut off after its best hits.
+     *
+     * @param relevance The number of best hits of a relevance-ranked search, or 0.
+     * @return The LIMIT clause, or null if the URI doesn't limit the number of rows.
+     * @throws IllegalArgumentException if the parameters aren't non-negative numbers.
+     */
+    private static String getLimit(Uri uri, int relevance) {
+        String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return relevance > 0 ? String.valueOf(relevance) : null;
+        }
+        String offset = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET);
+        try {
+            int count = Integer.parseInt(limit);
+            int skip = offset == null ? 0 : Integer.parseInt(offset);
+            if (count < 0 || skip < 0) {
+                throw new IllegalArgumentException("Negative limit in " + uri);
+            }
+            if (relevance > 0) {
+                count = Math.max(0, Math.min(count, relevance - skip));
+            }
+            return skip > 0 ? skip + "," + count : String.valueOf(count);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+    }
+
+    /**
+     * Returns the number of best hits asked for by the relevance query parameter of a search
+     * URI, at most {@link NotePad.Notes#MAX_RELEVANCE_RESULTS}.
+     *
+     * @return The number of hits, or 0 if the URI isn't a relevance-ranked search.
+     * @throws IllegalArgumentException if the parameter isn't a positive number.
+     */
+    private static int getRelevance(Uri uri) {
+        if (sUriMatcher.match(uri) != NOTES_SEARCH) {
+            return 0;
+        }
+        String relevance = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_RELEVANCE);
+        if (relevance == null) {
+            return 0;
+        }
+        try {
+            int count = Integer.parseInt(relevance);
+            if (count <= 0) {
+                throw new IllegalArgumentException("Invalid relevance in " + uri);
+            }
+            return Math.min(count, NotePad.Notes.MAX_RELEVANCE_RESULTS);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid relevance in " + uri);
+        }
+    }
+
+    /**
+     * The texts the snippets of a notes URI are centred on, and how they are matched. The texts
+     * are bound as arguments numbered from 1, followed by their whole-word patterns, so that
+     * the statement only changes with their number.
+     */
+    static class Highlight {
+        final List<String> texts;
+        final boolean caseSensitive;
+        final boolean wholeWord;
+
+        Highlight(List<String> texts, boolean caseSensitive, boolean wholeWord) {
+            this.texts = texts;
+            this.caseSensitive = caseSensitive;
+            this.wholeWord = wholeWord;
+        }
+
+        /**
+         * Returns the arguments the positions refer to
+         */
+        List<String> getArgs() {
+            List<String> args = new ArrayList<String>(texts);
+            if (wholeWord) {
+                for (String text : texts) {
+                    args.add(SearchQuery.toWholeWordPattern(
+                            caseSensitive ? text : text.toLowerCase()));
+                }
+            }
+            return args;
+        }
+
+        /**
+         * Returns the expression for the 1-based position in a column of the first text, in
+         * order, that occurs there, 0 if none does. A whole-word text only counts if the column
+         * has it as a whole word; it is then found at a space-delimited occurrence if there is
+         * one, or else at its first occurrence.
+         */
+        String getPosition(String column) {
+            String value = caseSensitive ? column : "lower(" + column + ")";
+            StringBuilder sb = new StringBuilder("coalesce(");
+            for (int i = 1; i <= texts.size(); i++) {
+                String text = caseSensitive ? "?" + i : "lower(?" + i + ")";
+                String position = "instr(" + value + ", " + text + ")";
+                if (wholeWord) {
+                    String padded = "' ' || " + value + " || ' '";
+                    position = "CASE WHEN (" + padded + ") GLOB ?" + (texts.size() + i)
+                            + " THEN coalesce(nullif(instr(" + padded + ", ' ' || " + text
+                            + " || ' '), 0), " + position + ") ELSE 0 END";
+                }
+                sb.append("nullif(").append(position).append(", 0), ");
+            }
+            return sb.append("0)").toString();
+        }
+    }
+
+    /**
+     * Returns the highlight texts of a notes URI, trimmed, with their match options, or null if
+     * it has none. instr() is only available from SQLite 3.7.15 (Android 5.0); older platforms
+     * keep the plain prefix snippet without match position, so there the texts are ignored.
+     */
+    private static Highlight getHighlight(Uri uri) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        List<String> texts = new ArrayList<String>();
+        for (String text : uri.getQueryParameters(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT)) {
+            if (!TextUtils.isEmpty(text.trim()) && texts.size() < MAX_HIGHLIGHT_TEXTS) {
+                texts.add(text.trim());
+            }
+        }
+        if (texts.isEmpty()) {
+            return null;
+        }
+        return new Highlight(texts,
+                uri.getBooleanQueryParameter(NotePad.Notes.QUERY_PARAMETER_CASE_SENSITIVE, false),
+                uri.getBooleanQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT_WHOLE_WORD,
+                        false));
+    }
+
+    /**
+     * Returns the source of the notes for a query: the notes view, with the position of the
+     * highlight texts in each note added as the {@link #SNIPPET_POSITION} column if there are
+     * highlight texts. The position is computed once per row there, since the snippet columns
+     * use it several times. Only if no text is in the first chunk are the other chunks of
+     * the note searched, for the {@link #SNIPPET_CHUNK} column. The highlight arguments come
+     * ahead of any other argument of the query, and the source refers to them by number.
+     */
+    private static String getNotesSource(Highlight highlight) {
+        if (highlight == null) {
+            return NOTES_VIEW_NAME;
+        }
+        String chunkPosition = highlight.getPosition(CHUNK_TEXT);
+        return "(SELECT *, CASE WHEN " + SNIPPET_POSITION + " = 0 THEN (SELECT '\u2026' || substr("
+                + CHUNK_TEXT + ", " + chunkPosition + ", " + NotePad.Notes.SNIPPET_LENGTH + ")"
+                + " FROM " + CHUNKS_TABLE_NAME + " WHERE " + CHUNK_NOTE_ID + " = v."
+                + NotePad.Notes._ID + " AND " + chunkPosition + " > 0"
+                + " ORDER BY " + CHUNK_INDEX + " LIMIT 1) END AS " + SNIPPET_CHUNK
+                + " FROM (SELECT *, " + highlight.getPosition(NotePad.Notes.COLUMN_NAME_NOTE)
+                + " AS " + SNIPPET_POSITION
+                + " FROM " + NOTES_VIEW_NAME + ") AS v) AS " + NOTES_VIEW_NAME;
+    }
+
+    /**
+     * Returns the arguments of a query with the highlight arguments, if any, in front
+     */
+    private static String[] prependArgs(Highlight highlight, String[] args) {
+        if (highlight == null) {
+            return args;
+        }
+        List<String> list = highlight.getArgs();
+        if (args != null) {
+            Collections.addAll(list, args);
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    /**
+     * Returns the projection map to use for a notes URI. If there are highlight texts, the
+     * snippet columns of the returned map are centred on the first of them that occurs in the
+     * note, as found in the source from {@link #getNotesSource}, so that the excerpt shows the
+     * match.
+     * A match past the first chunk of a long note starts the excerpt, after an ellipsis.
+     * The excerpt is cut in SQLite, so only {@link NotePad.Notes#SNIPPET_LENGTH} characters of
+     * each note leave the database.
+     */
+    private static Map<String, String> withHighlight(Map<String, String> projectionMap,
+                                                     Highlight highlight) {
+        if (highlight == null) {
+            return projectionMap;
+        }
+
+        String position = NOTES_VIEW_NAME + "." + SNIPPET_POSITION;
+        String chunk = NOTES_VIEW_NAME + "." + SNIPPET_CHUNK;
+        Map<String, String> map = new HashMap<String, String>(projectionMap);
+        map.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                "CASE WHEN " + chunk + " IS NOT NULL THEN " + chunk
+                        + " WHEN " + position + " > " + SNIPPET_LEAD
+                        + " THEN '\u2026' || substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                        + position + " - " + SNIPPET_LEAD + ", " + NotePad.Notes.SNIPPET_LENGTH + ")"
+                        + " ELSE substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, "
+                        + NotePad.Notes.SNIPPET_LENGTH + ")"
+                        + " END AS " + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        // The ellipsis in front of a centred excerpt takes up one character
+        map.put(NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH,
+                "CASE WHEN " + chunk + " IS NOT NULL THEN 1"
+                        + " WHEN " + position + " = 0 THEN -1"
+                        + " WHEN " + position + " > " + SNIPPET_LEAD + " THEN " + (SNIPPET_LEAD + 1)
+                        + " ELSE " + position + " - 1"
+                        + " END AS " + NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH);
+        return map;
+    }
+
+    /**
+     * Sets up the query builder for a full-text search URI. The search query is compiled into
+     * a {@link SearchPlan} once and cached by its text. The terms every hit must contain are
+     * matched through the index and ranked; the rest of the query is applied as conditions on
+     * the hits, or on all notes if no term is required.
+     *
+     * A relevance-ranked search scores the index hits with BM25 instead. FTS5 has it built in
+     * as bm25(); FTS4 only hands out the match statistics, so its hits are scored here by
+     * {@link #rankHits} and the best of them are joined by id. The ranking is kept until the
+     * next write, so that the pages and the count of the search don't score the hits again.
+     *
+     * A whole-word search looks the terms up in the whole-word index instead. The search
+     * doesn't wait for the indexes to catch up with the latest writes, see
+     * {@link #catchUpIndexes}.
+     *
+     * @return The arguments to bind to the query: the arguments of the search conditions,
+     * followed by the caller's selection arguments.
+     */
+    private String[] setUpSearchQuery(SQLiteQueryBuilder qb, Uri uri, String selection,
+                                      String[] selectionArgs, CancellationSignal signal) {
+        boolean fts5 = mOpenHelper.usesFts5();
+        boolean wholeWord = uri.getBooleanQueryParameter(
+                NotePad.Notes.QUERY_PARAMETER_WHOLE_WORD, false);
+        catchUpIndexes(wholeWord);
+        String query = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+        SearchPlan plan = getSearchPlan(query, fts5, wholeWord);
+        int relevance = getRelevance(uri);
+        Highlight highlight = getHighlight(uri);
+        String source = getNotesSource(highlight);
+
+        List<String> args = new ArrayList<String>();
+        if (highlight != null) {
+            args.addAll(highlight.getArgs());
+        }
+        boolean scored = false;
+        if (plan.match == null) {
+            qb.setTables(source);
+            qb.setProjectionMap(withHighlight(sUnrankedSearchProjectionMap, highlight));
+        } else if (relevance > 0 && !fts5) {
+            // The scored hits already satisfy the rest of the query and the caller's selection
+            Map<Long, Double> scores = getRankedHits(query, wholeWord, plan, selection,
+                    selectionArgs, relevance, signal);
+            qb.setTables(getScoredHitsJoin(source, scores));
+            qb.setProjectionMap(withHighlight(sSearchProjectionMap, highlight));
+            scored = true;
+        } else {
+            // FTS4 has no ranking function; offsets() lists every matched term, so its
+            // length grows with the number of hits and serves as a cheap term-frequency rank.
+            String rank;
+            if (relevance > 0) {
+                rank = "-bm25(%1$s, " + NotePad.Notes.TITLE_WEIGHT + ", 1.0)";
+            } else if (fts5) {
+                rank = "-%1$s.rank";
+            } else {
+                rank = "length(offsets(%1$s))";
+            }
+            qb.setTables(getHitsJoin(source, plan, rank, fts5, true));
+            qb.setProjectionMap(withHighlight(sSearchProjectionMap, highlight));
+            addMatchArgs(plan, args);
+        }
+
+        if (plan.where != null && !scored) {
+            qb.appendWhere(plan.where);
+            Collections.addAll(args, plan.whereArgs);
+        }
+        if (selectionArgs != null) {
+            Collections.addAll(args, selectionArgs);
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Has the background thread bring the notes and indexes up to date right away if a query
+     * of the notes would miss recent writes. The revisions of a note are only in the full-text
+     * index, the LIKE conditions and the snippets once they are compacted into the note, so
+     * they are compacted if there are any; for a whole-word search, the notes and chunks the
+     * whole-word index is behind on are indexed. The query doesn't wait for it, so that it
+     * never holds a write transaction itself; it answers from the notes and indexes as they
+     * are, and its results are notified as changed when the update is done.
+     *
+     * @param wholeWord Whether the query is a whole-word search.
+     */
+    private void catchUpIndexes(boolean wholeWord) {
+        String behind = "SELECT EXISTS (SELECT 1 FROM " + REVISIONS_TABLE_NAME + ")";
+        if (wholeWord) {
+            behind += " OR EXISTS (SELECT 1 FROM " + WORDS_PENDING_TABLE_NAME + ")"
+                    + " OR EXISTS (SELECT 1 FROM " + CHUNKS_WORDS_PENDING_TABLE_NAME + ")";
+        }
+        if (DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(), behind, null) != 0) {
+            mIndexBehind.set(true);
+            mOpenHelper.schedule(mIndexRunnable, 0);
+        }
+    }
+
+    /**
+     * Brings the notes and indexes up to date on the background thread. After writes, only
+     * the whole-word index is updated, in batches until no note or chunk is pending; writes in
+     * between batches are picked up by the next batch. If a query found them behind, the
+     * revisions of all notes are compacted first, and the notes are notified as changed at
+     * the end. Revisions are otherwise left to the editor, which compacts them once the
+     * editing pauses, so that a burst of edits writes patches only.
+     */
+    private void updatePendingIndexes() {
+        boolean behind = mIndexBehind.getAndSet(false);
+        try {
+            if (behind) {
+                compactRevisions();
+            }
+            while (updateWordIndex(false)) {
+                // continue
+            }
+            while (updateWordIndex(true)) {
+                // continue
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Indexing words failed", e);
+            return;
+        } catch (IllegalStateException e) {
+            // The database was closed meanwhile
+            return;
+        }
+        if (behind) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Compacts the revisions of every note that has any, one note per transaction
+     */
+    private void compactRevisions() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Cursor c = db.query(true, REVISIONS_TABLE_NAME, new String[] { REVISION_NOTE_ID },
+                null, null, null, null, null, null);
+        long[] ids;
+        try {
+            ids = new long[c.getCount()];
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        for (long noteId : ids) {
+            db.beginTransaction();
+            try {
+                compactNote(db, noteId);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Brings the whole-word index up to date for some of the notes, or of the chunks of long
+     * notes, written since the last update: indexes them, or drops them if they were deleted
+     * since. A note is indexed with its title and the body in the notes table with its
+     * revisions applied, which is the first chunk of a long note; a chunk with the title of its
+     * note, so that only the chunks a patch rewrote are segmented again. Runs in one transaction with the reads of the
+     * changed rows, so a row written meanwhile stays recorded for the next update. A
+     * transaction indexes at most {@link #WORD_INDEX_BATCH} rows and stops early once it has
+     * segmented {@link #WORD_INDEX_BATCH_LENGTH} characters.
+     *
+     * @param chunks Whether to index the pending chunks rather than the pending notes.
+     * @return Whether any row was indexed or dropped, so that more may be pending.
+     */
+    private boolean updateWordIndex(boolean chunks) {
+        String index = chunks ? CHUNKS_WORDS_TABLE_NAME : WORDS_TABLE_NAME;
+        String pending = chunks ? CHUNKS_WORDS_PENDING_TABLE_NAME : WORDS_PENDING_TABLE_NAME;
+        String pendingId = chunks ? CHUNKS_WORDS_PENDING_CHUNK_ID : WORDS_PENDING_NOTE_ID;
+        String rows;
+        if (chunks) {
+            rows = "SELECT p." + pendingId + ", c.rowid, n." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", c." + CHUNK_TEXT + " FROM " + pending + " AS p LEFT JOIN "
+                    + CHUNKS_TABLE_NAME + " AS c ON c.rowid = p." + pendingId + " LEFT JOIN "
+                    + NotePad.Notes.TABLE_NAME + " AS n ON n." + NotePad.Notes._ID + " = c."
+                    + CHUNK_NOTE_ID;
+        } else {
+            rows = "SELECT p." + pendingId + ", n." + NotePad.Notes._ID + ", n."
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", n." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " FROM " + pending + " AS p LEFT JOIN " + NotePad.Notes.TABLE_NAME
+                    + " AS n ON n." + NotePad.Notes._ID + " = p." + pendingId;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        StatementCache statements = mOpenHelper.getStatementCache();
+        List<Long> indexed = new ArrayList<Long>();
+        db.beginTransaction();
+        try {
+            Cursor c = db.rawQuery(rows + " LIMIT " + WORD_INDEX_BATCH, null);
+            try {
+                ContentValues values = new ContentValues();
+                int length = 0;
+                while (length < WORD_INDEX_BATCH_LENGTH && c.moveToNext()) {
+                    long id = c.getLong(0);
+                    indexed.add(id);
+                    statements.deleteById(index, "rowid", id);
+                    if (c.isNull(1)) {
+                        // The note or chunk was deleted
+                        continue;
+                    }
+                    // A note is indexed with its revisions applied, a long note has none
+                    String text = chunks ? c.getString(3) : applyRevisions(db, id, c.getString(3));
+                    length += text != null ? text.length() : 0;
+                    values.put("rowid", id);
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, WordSegmenter.segment(c.getString(2)));
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, WordSegmenter.segment(text));
+                    if (statements.insert(index, values, SQLiteDatabase.CONFLICT_NONE) < 0) {
+                        throw new SQLException("Failed to index the words of " + index + " row "
+                                + id);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            // The cursor may read the pending table again while it moves, so it is left as is
+            // until then
+            for (long id : indexed) {
+                statements.deleteById(pending, pendingId, id);
+            }
+            db.setTransactionSuccessful();
+            return !indexed.isEmpty();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * A search query compiled for a full-text index: the terms every hit must contain, as a
+     * MATCH expression, and the rest of the query as conditions on the notes view. Plans are
+     * immutable, so they are cached and shared between queries.
+     */
+    static class SearchPlan {
+        // The index the terms are looked up in
+        final String index;
+        // The index of the chunks of long notes searched along with it
+        final String chunksIndex;
+        // The MATCH expression selecting the hits, or null if no term is required
+        final String match;
+        // The conditions for the rest of the query and their arguments, or null
+        final String where;
+        final String[] whereArgs;
+
+        SearchPlan(String index, String match, String where, String[] whereArgs) {
+            this.index = index;
+            this.chunksIndex = WORDS_TABLE_NAME.equals(index) ? CHUNKS_WORDS_TABLE_NAME
+                    : CHUNKS_FTS_TABLE_NAME;
+            this.match = match;
+            this.where = where;
+            this.whereArgs = whereArgs;
+        }
+    }
+
+    /**
+     * Returns the plan for a search query, compiling it if it isn't cached yet. The index type
+     * doesn't change while the provider runs, so the query text, the mode and the terms that
+     * name a category, which the plan depends on, are the cache key.
+     */
+    private SearchPlan getSearchPlan(String query, boolean fts5, boolean wholeWord) {
+        String text = query == null ? "" : query;
+        SearchQuery parsed = SearchQuery.parse(text);
+        Set<String> categoryTerms = getCategoryTerms(parsed, wholeWord);
+        String key = (wholeWord ? "w:" : "s:") + categoryTerms + ":" + text;
+        SearchPlan plan = mSearchPlans.get(key);
+        if (plan == null) {
+            plan = compileSearch(parsed, fts5, wholeWord, categoryTerms);
+            mSearchPlans.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the terms of any field that a search query requires at the top level and that
+     * match the name of some category, the way {@link #getCategoryCondition} matches them. The
+     * index only holds titles and bodies, so such a term can't go into the MATCH expression;
+     * the categories are few, so looking the terms up is cheap.
+     */
+    private Set<String> getCategoryTerms(SearchQuery query, boolean wholeWord) {
+        Set<String> terms = new LinkedHashSet<String>();
+        SearchQuery.Node root = query.getRoot();
+        if (root == null) {
+            return terms;
+        }
+        List<SearchQuery.Node> conjuncts;
+        if (root instanceof SearchQuery.Group && ((SearchQuery.Group) root).and) {
+            conjuncts = ((SearchQuery.Group) root).operands;
+        } else {
+            conjuncts = Collections.singletonList(root);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        for (SearchQuery.Node node : conjuncts) {
+            if (!(node instanceof SearchQuery.Term)) {
+                continue;
+            }
+            SearchQuery.Term term = (SearchQuery.Term) node;
+            if (term.field != SearchQuery.FIELD_ANY || terms.contains(term.text)) {
+                continue;
+            }
+            List<String> args = new ArrayList<String>();
+            String condition = getCategoryCondition(NotePad.Categories.COLUMN_NAME_NAME, term,
+                    wholeWord, args);
+            if (DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM "
+                    + NotePad.Categories.TABLE_NAME + " WHERE " + condition + ")",
+                    args.toArray(new String[args.size()])) != 0) {
+                terms.add(term.text);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Compiles a search query. The terms the query requires at the top level, and that the
+     * index can find, go into one MATCH expression; everything else becomes a condition. Terms
+     * under OR or NOT are still looked up in the index, through a subquery on it. A term of
+     * any field also matches the category name, so a required term that names a category
+     * becomes a condition as well.
+     *
+     * @param wholeWord Whether the terms are looked up as whole words in the whole-word index,
+     * rather than as word prefixes in the full-text index.
+     * @param categoryTerms The required terms that match the name of some category.
+     */
+    static SearchPlan compileSearch(SearchQuery query, boolean fts5, boolean wholeWord,
+                                    Set<String> categoryTerms) {
+        String index = wholeWord ? WORDS_TABLE_NAME : FTS_TABLE_NAME;
+        SearchQuery.Node root = query.getRoot();
+        if (root == null) {
+            // A search without any terms matches nothing
+            return new SearchPlan(index, null, "0", new String[0]);
+        }
 
-            case LIVE_FOLDER_NOTES:
-                qb.setTables(NotePad.Notes.TABLE_NAME);
-                // If the incoming URI is from a live folder, chooses the live folder projection.
-                qb.setProjectionMap(sLiveFolderProjectionMap);
-                break;
+        List<SearchQuery.Node> conjuncts;
+        if (root instanceof SearchQuery.Group && ((SearchQuery.Group) root).and) {
+            conjuncts = ((SearchQuery.Group) root).operands;
+        } else {
+            conjuncts = Collections.singletonList(root);
+        }
 
-            case CATEGORIES:
-                qb.setTables(NotePad.Categories.TABLE_NAME);
-                qb.setProjectionMap(sCategoriesProjectionMap);
-                break;
+        StringBuilder match = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+        for (SearchQuery.Node node : conjuncts) {
+            if (node instanceof SearchQuery.Term
+                    && isIndexable((SearchQuery.Term) node, wholeWord)
+                    && !categoryTerms.contains(((SearchQuery.Term) node).text)) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(buildMatchTerm((SearchQuery.Term) node, fts5, wholeWord));
+            } else {
+                if (where.length() > 0) {
+                    where.append(" AND ");
+                }
+                where.append(compileCondition(node, fts5, wholeWord, args));
+            }
+        }
+        return new SearchPlan(index, match.length() > 0 ? match.toString() : null,
+                where.length() > 0 ? where.toString() : null,
+                args.toArray(new String[args.size()]));
+    }
 
-            case CATEGORY_ID:
-                qb.setTables(NotePad.Categories.TABLE_NAME);
-                qb.setProjectionMap(sCategoriesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Categories._ID +
-                                "=" +
-                                uri.getPathSegments().get(1));
-                break;
+    /**
+     * Compiles a part of a search query into a condition on the notes view.
+     */
+    private static String compileCondition(SearchQuery.Node node, boolean fts5,
+                                           boolean wholeWord, List<String> args) {
+        if (node instanceof SearchQuery.Not) {
+            return "NOT " + compileCondition(((SearchQuery.Not) node).operand, fts5, wholeWord,
+                    args);
+        }
+        if (node instanceof SearchQuery.Group) {
+            SearchQuery.Group group = (SearchQuery.Group) node;
+            StringBuilder sb = new StringBuilder("(");
+            for (SearchQuery.Node operand : group.operands) {
+                if (sb.length() > 1) {
+                    sb.append(group.and ? " AND " : " OR ");
+                }
+                sb.append(compileCondition(operand, fts5, wholeWord, args));
+            }
+            return sb.append(')').toString();
+        }
 
-            case SEARCH_HISTORY:
-                qb.setTables(NotePad.SearchHistory.TABLE_NAME);
-                qb.setProjectionMap(sSearchHistoryProjectionMap);
-                break;
+        SearchQuery.Term term = (SearchQuery.Term) node;
+        if (isIndexable(term, wholeWord)) {
+            String id = NOTES_VIEW_NAME + "." + NotePad.Notes._ID;
+            String index = wholeWord ? WORDS_TABLE_NAME : FTS_TABLE_NAME;
+            String match = buildMatchTerm(term, fts5, wholeWord);
+            args.add(match);
+            StringBuilder sb = new StringBuilder("(").append(id).append(" IN (SELECT ")
+                    .append(fts5 ? "rowid" : "docid").append(" FROM ").append(index)
+                    .append(" WHERE ").append(index).append(" MATCH ?)");
+            args.add(match);
+            sb.append(" OR ").append(id).append(" IN (SELECT ").append(getChunkHits(
+                    wholeWord ? CHUNKS_WORDS_TABLE_NAME : CHUNKS_FTS_TABLE_NAME, null)).append(')');
+            if (term.field == SearchQuery.FIELD_ANY) {
+                sb.append(" OR ").append(getCategoryCondition(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                        term, wholeWord, args));
+            }
+            return sb.append(')').toString();
+        }
+        if (term.field == SearchQuery.FIELD_CATEGORY) {
+            return "(" + getCategoryCondition(NotePad.Notes.COLUMN_NAME_CATEGORY, term, wholeWord,
+                    args) + ")";
+        }
 
-            case SEARCH_HISTORY_ID:
-                qb.setTables(NotePad.SearchHistory.TABLE_NAME);
-                qb.setProjectionMap(sSearchHistoryProjectionMap);
-                qb.appendWhere(
-                        NotePad.SearchHistory._ID +
-                                "=" +
-                                uri.getPathSegments().get(1));
-                break;
+        // Terms the index can't find are matched as substrings
+        String[] columns;
+        if (term.field == SearchQuery.FIELD_TITLE) {
+            columns = new String[] { NotePad.Notes.COLUMN_NAME_TITLE };
+        } else {
+            columns = new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+        }
+        String pattern = "%" + escapeLikePattern(term.text) + "%";
+        StringBuilder sb = new StringBuilder("(");
+        for (String column : columns) {
+            if (sb.length() > 1) {
+                sb.append(" OR ");
+            }
+            sb.append(column).append(" LIKE ? ESCAPE '\\'");
+            args.add(pattern);
+            if (column.equals(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                // The rest of a long body is in its chunks
+                sb.append(" OR ").append(getChunksCondition(CHUNK_TEXT + " LIKE ? ESCAPE '\\'"));
+                args.add(pattern);
+            }
+        }
+        if (term.field == SearchQuery.FIELD_ANY) {
+            sb.append(" OR ").append(getCategoryCondition(NotePad.Notes.COLUMN_NAME_CATEGORY, term,
+                    wholeWord, args));
+        }
+        return sb.append(')').toString();
+    }
 
-            default:
-                // If the URI doesn't match any of the known patterns, throw an exception.
-                throw new IllegalArgumentException("Unknown URI " + uri);
+    /**
+     * Returns the condition matching a term against a category name column, ignoring case, the
+     * way the conditions from {@link SearchQuery#toLikeSelection} do: as a substring, or in a
+     * whole-word search as whole words of the name.
+     */
+    private static String getCategoryCondition(String column, SearchQuery.Term term,
+                                               boolean wholeWord, List<String> args) {
+        if (wholeWord) {
+            args.add(SearchQuery.toWholeWordPattern(term.text.toLowerCase()));
+            return "(' ' || lower(" + column + ") || ' ') GLOB ?";
         }
+        args.add("%" + escapeLikePattern(term.text) + "%");
+        return column + " LIKE ? ESCAPE '\\'";
+    }
 
+    /**
+     * Returns a condition on the notes view that holds for the long notes with a chunk after the
+     * first one that meets the given condition. The first chunk is the note column of the view,
+     * so a condition on the body is the condition on that column OR this one on the chunk text.
+     */
+    static String getChunksCondition(String chunkCondition) {
+        return NOTES_VIEW_NAME + "." + NotePad.Notes._ID + " IN (SELECT " + CHUNK_NOTE_ID
+                + " FROM " + CHUNKS_TABLE_NAME + " WHERE " + chunkCondition + ")";
+    }
 
-        String orderBy;
-        // If no sort order is specified, uses the default
-        if (TextUtils.isEmpty(sortOrder)) {
-            switch (sUriMatcher.match(uri)) {
-                case NOTES:
-                case NOTE_ID:
-                case LIVE_FOLDER_NOTES:
-                    orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
-                    break;
-                case CATEGORIES:
-                case CATEGORY_ID:
-                    orderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
-                    break;
-                case SEARCH_HISTORY:
-                case SEARCH_HISTORY_ID:
-                    orderBy = NotePad.SearchHistory.DEFAULT_SORT_ORDER;
-                    break;
-                default:
-                    orderBy = null;
+    /**
+     * Returns the notes source joined with the hits of a search plan, each hit carrying the
+     * given rank expression as its search rank. The rank is a format with the name of the index
+     * as its argument. The MATCH expression of the plan is bound once per index searched, see
+     * {@link #addMatchArgs}, as the first arguments after those of the source.
+     *
+     * A long note is a hit if its first chunk, in the notes index, or any other chunk, in the
+     * chunks index, matches.
+     *
+     * @param best Whether a note found several times is one hit with the best rank, rather than
+     * one hit per matching chunk.
+     */
+    private static String getHitsJoin(String source, SearchPlan plan, String rank, boolean fts5,
+                                      boolean best) {
+        String hits = "SELECT " + (fts5 ? "rowid" : "docid") + " AS hit_id, "
+                + String.format(Locale.ROOT, rank, plan.index)
+                + " AS " + NotePad.Notes.COLUMN_NAME_SEARCH_RANK
+                + " FROM " + plan.index + " WHERE " + plan.index + " MATCH ?";
+        hits += " UNION ALL SELECT " + getChunkHits(plan.chunksIndex,
+                String.format(Locale.ROOT, rank, plan.chunksIndex));
+        if (best) {
+            hits = "SELECT hit_id, max(" + NotePad.Notes.COLUMN_NAME_SEARCH_RANK + ") AS "
+                    + NotePad.Notes.COLUMN_NAME_SEARCH_RANK + " FROM (" + hits + ")"
+                    + " GROUP BY hit_id";
+        }
+        return source + " JOIN (" + hits + ") AS hits"
+                + " ON (" + NOTES_VIEW_NAME + "." + NotePad.Notes._ID + " = hits.hit_id)";
+    }
+
+    /**
+     * Returns the columns and the source of a query for the notes whose chunks match a MATCH
+     * expression bound as an argument: the note id and, if given, the rank expression.
+     */
+    private static String getChunkHits(String chunksIndex, String rank) {
+        return "c." + CHUNK_NOTE_ID + (rank != null ? ", " + rank : "")
+                + " FROM " + chunksIndex + " JOIN " + CHUNKS_TABLE_NAME + " AS c ON c.rowid = "
+                + chunksIndex + ".rowid WHERE " + chunksIndex + " MATCH ?";
+    }
+
+    /**
+     * Adds the MATCH expression of a search plan to the arguments, once per index searched
+     */
+    private static void addMatchArgs(SearchPlan plan, List<String> args) {
+        args.add(plan.match);
+        args.add(plan.match);
+    }
+
+    /**
+     * Returns the best hits of a relevance-ranked FTS4 search, scoring them with
+     * {@link #rankHits} only if the same search wasn't ranked since the last write. The pages
+     * and the count of a search are separate queries, which then share one ranking.
+     */
+    private Map<Long, Double> getRankedHits(String query, boolean wholeWord, SearchPlan plan,
+                                            String selection, String[] selectionArgs, int count,
+                                            CancellationSignal signal) {
+        // The generation is read first, so that hits ranked across a write are never reused
+        StringBuilder key = new StringBuilder();
+        key.append(mNotesGeneration.get()).append('\n').append(wholeWord ? "w:" : "s:")
+                .append(query).append('\n').append(count).append('\n').append(selection);
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                key.append('\n').append(arg);
+            }
+        }
+        Map<Long, Double> scores = mRankedHits.get(key.toString());
+        if (scores == null) {
+            scores = Collections.unmodifiableMap(
+                    rankHits(plan, selection, selectionArgs, count, signal));
+            mRankedHits.put(key.toString(), scores);
+        }
+        return scores;
+    }
+
+    /**
+     * Scores the FTS4 hits of a search with BM25 and returns the best ones. The hits are
+     * filtered by the rest of the query and the caller's selection first, so that the best
+     * hits are taken from the notes the search actually returns.
+     *
+     * @return The scores of at most count best hits, by note id.
+     */
+    private Map<Long, Double> rankHits(SearchPlan plan, String selection, String[] selectionArgs,
+                                       int count, CancellationSignal signal) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(getHitsJoin(NOTES_VIEW_NAME, plan, "matchinfo(%1$s, 'pcnalx')", false, false));
+        List<String> args = new ArrayList<String>();
+        addMatchArgs(plan, args);
+        if (plan.where != null) {
+            qb.appendWhere(plan.where);
+            Collections.addAll(args, plan.whereArgs);
+        }
+        if (selectionArgs != null) {
+            Collections.addAll(args, selectionArgs);
+        }
+
+        // Keeps the best hits seen so far, the worst of them at the head. A long note comes
+        // once per matching chunk and keeps its best score.
+        PriorityQueue<ScoredHit> best = new PriorityQueue<ScoredHit>(count);
+        Map<Long, ScoredHit> kept = new HashMap<Long, ScoredHit>();
+        Cursor c = qb.query(mOpenHelper.getReadableDatabase(),
+                new String[] { "hits.hit_id", "hits." + NotePad.Notes.COLUMN_NAME_SEARCH_RANK },
+                selection, args.toArray(new String[args.size()]), null, null, null, null, signal);
+        try {
+            while (c.moveToNext()) {
+                ScoredHit hit = new ScoredHit(c.getLong(0), scoreMatchInfo(c.getBlob(1)));
+                ScoredHit previous = kept.get(hit.id);
+                if (previous != null) {
+                    if (previous.score >= hit.score) {
+                        continue;
+                    }
+                    best.remove(previous);
+                    kept.remove(hit.id);
+                }
+                if (best.size() < count) {
+                    best.add(hit);
+                    kept.put(hit.id, hit);
+                } else if (hit.compareTo(best.peek()) > 0) {
+                    kept.remove(best.poll().id);
+                    best.add(hit);
+                    kept.put(hit.id, hit);
+                }
             }
+        } finally {
+            c.close();
+        }
+
+        Map<Long, Double> scores = new HashMap<Long, Double>();
+        for (ScoredHit hit : best) {
+            scores.put(hit.id, hit.score);
+        }
+        return scores;
+    }
+
+    /**
+     * Returns the notes source joined with the given hits, each carrying its score as its
+     * search rank. The hits are looked up by note id, so the search isn't matched a second time.
+     */
+    private static String getScoredHitsJoin(String source, Map<Long, Double> scores) {
+        StringBuilder rank = new StringBuilder();
+        if (scores.isEmpty()) {
+            rank.append('0');
         } else {
-            // otherwise, uses the incoming sort order
-            orderBy = sortOrder;
+            rank.append("CASE ").append(NotePad.Notes._ID);
+            for (Map.Entry<Long, Double> score : scores.entrySet()) {
+                rank.append(" WHEN ").append(score.getKey())
+                        .append(" THEN ").append(score.getValue());
+            }
+            rank.append(" END");
         }
+        return source + " JOIN (SELECT "
+                + NotePad.Notes._ID + " AS hit_id, "
+                + rank + " AS " + NotePad.Notes.COLUMN_NAME_SEARCH_RANK
+                + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " IN (" + TextUtils.join(",", scores.keySet())
+                + ")) AS hits"
+                + " ON (" + NOTES_VIEW_NAME + "." + NotePad.Notes._ID + " = hits.hit_id)";
+    }
 
-        // Opens the database object in "read" mode, since no writes need to be done.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+    /**
+     * Computes the BM25 score of a hit from its FTS4 matchinfo(..., 'pcnalx') blob: the numbers
+     * of phrases and columns, the number of rows, the average and the row's number of tokens in
+     * each column, then for each phrase and column the hits in the row, the hits in all rows
+     * and the number of rows with hits. Like FTS5's bm25(), rare phrases weigh more, repeated
+     * hits count less and less, and hits in a long note count less than in a short one. A hit
+     * in the title counts {@link NotePad.Notes#TITLE_WEIGHT} times as much as one in the body.
+     */
+    static double scoreMatchInfo(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        int rows = info.get(2);
+        int averageLengths = 3;
+        int lengths = averageLengths + columns;
+        int hits = lengths + columns;
+
+        double score = 0;
+        for (int i = 0; i < phrases; i++) {
+            // The rows containing the phrase are at least those with a hit in any one column
+            int rowsWithHits = 0;
+            for (int j = 0; j < columns; j++) {
+                rowsWithHits = Math.max(rowsWithHits, info.get(hits + 3 * (i * columns + j) + 2));
+            }
+            double idf = Math.max(BM25_MIN_IDF,
+                    Math.log((rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5)));
 
-        /*
-         * Performs the query. If no problems occur trying to read the database, then a Cursor
-         * object is returned; otherwise, the cursor variable contains null. If no records were
-         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
-         */
-        Cursor c = qb.query(
-                db,            // The database to query
-                projection,    // The columns to return from the query
-                selection,     // The columns for the where clause
-                selectionArgs, // The values for the where clause
-                null,          // don't group the rows
-                null,          // don't filter by row groups
-                orderBy        // The sort order
-        );
+            for (int j = 0; j < columns; j++) {
+                int frequency = info.get(hits + 3 * (i * columns + j));
+                if (frequency == 0) {
+                    continue;
+                }
+                double averageLength = Math.max(1, info.get(averageLengths + j));
+                double norm = 1 - BM25_B + BM25_B * info.get(lengths + j) / averageLength;
+                double weight = j == FTS_COLUMN_TITLE ? NotePad.Notes.TITLE_WEIGHT : 1.0;
+                score += weight * idf * frequency * (BM25_K1 + 1)
+                        / (frequency + BM25_K1 * norm);
+            }
+        }
+        return score;
+    }
 
-        // Tells the Cursor what URI to watch, so it knows when its source data changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
-        return c;
+    /**
+     * A search hit and its relevance score, ordered by score and, for equal scores, by id
+     */
+    private static class ScoredHit implements Comparable<ScoredHit> {
+        final long id;
+        final double score;
+
+        ScoredHit(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(ScoredHit other) {
+            int result = Double.compare(score, other.score);
+            return result != 0 ? result : (id < other.id ? -1 : (id == other.id ? 0 : 1));
+        }
+    }
+
+    /**
+     * Returns true if the full-text tokenizers split the term into words. Characters from the
+     * CJK blocks up are not word-separated, so a run of them ends up as a single token.
+     */
+    static boolean isIndexableTerm(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) >= '\u2E80') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the index can find the term: a word or phrase of the title or the body
+     * that the tokenizer splits into words. The whole-word index splits any term with letters
+     * or digits.
+     */
+    private static boolean isIndexable(SearchQuery.Term term, boolean wholeWord) {
+        if (term.field == SearchQuery.FIELD_CATEGORY) {
+            return false;
+        }
+        return wholeWord ? !WordSegmenter.segmentTerm(term.text).isEmpty()
+                : isIndexableTerm(term.text);
+    }
+
+    /**
+     * Builds the MATCH expression for a term. A word is matched as a prefix, so that matches
+     * appear while the user is still typing it; a quoted phrase is matched as it is.
+     *
+     * In the whole-word index, words and phrases alike are matched as the phrase of their
+     * segmented tokens, so a word only matches whole words. A term ending in a single CJK
+     * character is matched as a prefix, since that character starts a pair in the index.
+     */
+    static String buildMatchTerm(SearchQuery.Term term, boolean fts5, boolean wholeWord) {
+        StringBuilder sb = new StringBuilder();
+        if (term.field == SearchQuery.FIELD_TITLE) {
+            sb.append(NotePad.Notes.COLUMN_NAME_TITLE).append(fts5 ? " : " : ":");
+        }
+        boolean prefix = !term.phrase;
+        if (wholeWord) {
+            List<String> tokens = WordSegmenter.segmentTerm(term.text);
+            sb.append('"').append(TextUtils.join(" ", tokens));
+            prefix = WordSegmenter.isPrefixToken(tokens.get(tokens.size() - 1));
+        } else {
+            sb.append('"').append(term.text);
+        }
+        // FTS5 marks a quoted string as a prefix with a trailing '*'; FTS4 wants it inside
+        if (!prefix) {
+            sb.append('"');
+        } else if (fts5) {
+            sb.append("\"*");
+        } else {
+            sb.append("*\"");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escapes the LIKE wildcards in a literal, for use with ESCAPE '\'
+     */
+    static String escapeLikePattern(String literal) {
+        return literal.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
     /**
@@ -509,8 +2497,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, returns the general content type.
+            // If the pattern is for notes, searches or live folders, returns the general content
+            // type.
             case NOTES:
+            case NOTES_SEARCH:
             case LIVE_FOLDER_NOTES:
                 return NotePad.Notes.CONTENT_TYPE;
 
@@ -548,9 +2538,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    /**
+     * This describes the MIME types that are supported for opening the notes URI as a stream,
+     * which exports all notes.
+     */
+    static ClipDescription EXPORT_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_MIME_TYPE });
+
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * The application can convert such a note to a plain text stream. The notes URI can be
+     * opened as an export of all notes.
      *
      * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
@@ -565,9 +2563,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, return the export type if it matches the filter
             case NOTES:
+                return EXPORT_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for searches or live folders, return null. Data streams are
+            // not supported for this type of URI.
+            case NOTES_SEARCH:
             case LIVE_FOLDER_NOTES:
                 return null;
 
@@ -604,6 +2606,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // If the notes URI is exported, the notes are read page by page on the pipe thread
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, mOpenHelper.getReadableDatabase(),
+                            new NotesExporter()), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
@@ -656,9 +2666,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+            boolean bodyOnly = opts != null && opts.getBoolean(NotePad.Notes.OPTION_BODY);
+            if (!bodyOnly) {
+                pw.println(c.getString(READ_NOTE_TITLE_INDEX));
+                pw.println("");
+            }
+            // The cursor holds the first chunk of the body, the others are read one by one
+            if (opts != null && opts.containsKey(NotePad.Notes.OPTION_CHUNK)) {
+                int index = opts.getInt(NotePad.Notes.OPTION_CHUNK);
+                String chunk = index == 0 ? c.getString(READ_NOTE_NOTE_INDEX)
+                        : readChunk(mOpenHelper.getReadableDatabase(), ContentUris.parseId(uri),
+                                index);
+                if (chunk != null) {
+                    pw.print(chunk);
+                }
+            } else {
+                pw.print(c.getString(READ_NOTE_NOTE_INDEX));
+                writeChunks(pw, mOpenHelper.getReadableDatabase(), ContentUris.parseId(uri));
+            }
+            if (!bodyOnly) {
+                pw.println();
+            }
         } catch (UnsupportedEncodingException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
@@ -672,7 +2700,122 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             }
         }
     }
-//END_INCLUDE(stream)
+//END_INCLUDE(stream)
+
+    /**
+     * Writes the chunks of the body of a note after the first one, reading one chunk at a time
+     * so that a long note never has to be in memory as a whole. Stops early if the reader
+     * closed the stream.
+     */
+    private static void writeChunks(PrintWriter out, SQLiteDatabase db, long noteId) {
+        String chunk;
+        for (int index = 1; !out.checkError() && (chunk = readChunk(db, noteId, index)) != null;
+                index++) {
+            out.print(chunk);
+        }
+    }
+
+    /**
+     * Reads a chunk of the body of a note, see {@link NotePad.Notes#COLUMN_NAME_CHUNK_COUNT}.
+     *
+     * @param index The position of the chunk, starting at 1 for the chunk after the one in the
+     * notes table.
+     * @return The text of the chunk, or null if the note has no such chunk.
+     */
+    static String readChunk(SQLiteDatabase db, long noteId, int index) {
+        Cursor c = db.query(CHUNKS_TABLE_NAME, new String[] { CHUNK_TEXT },
+                CHUNK_NOTE_ID + " = ? AND " + CHUNK_INDEX + " = ?",
+                new String[] { String.valueOf(noteId), String.valueOf(index) },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Splits a body longer than {@link NotePad.Notes#CHUNK_LENGTH} in the values of a note: the
+     * values keep the first chunk, which goes to the notes table, and the other chunks are
+     * written with {@link #insertChunks(long, String)}.
+     *
+     * @return The whole body if it is split, or null.
+     */
+    private static String splitBody(ContentValues values) {
+        if (!isLongBody(values)) {
+            return null;
+        }
+        String body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.substring(0, getChunkEnd(body, 0)));
+        return body;
+    }
+
+    /**
+     * Returns true if the values of a note contain a body that is stored in chunks
+     */
+    private static boolean isLongBody(ContentValues values) {
+        String body = values != null ? values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE) : null;
+        return body != null && body.length() > NotePad.Notes.CHUNK_LENGTH;
+    }
+
+    /**
+     * Stores the chunks of a body after the first one. Writing the first chunk to the notes
+     * table drops the old chunks, so this runs after it, in the same transaction.
+     */
+    private void insertChunks(long noteId, String body) {
+        StatementCache statements = mOpenHelper.getStatementCache();
+        ContentValues chunk = new ContentValues();
+        chunk.put(CHUNK_NOTE_ID, noteId);
+        int start = getChunkEnd(body, 0);
+        for (int index = 1; start < body.length(); index++) {
+            int end = getChunkEnd(body, start);
+            chunk.put(CHUNK_INDEX, index);
+            chunk.put(CHUNK_TEXT, body.substring(start, end));
+            chunk.put(CHUNK_LENGTH, end - start);
+            if (statements.insert(CHUNKS_TABLE_NAME, chunk, SQLiteDatabase.CONFLICT_NONE) < 0) {
+                throw new SQLException("Failed to insert a chunk of note " + noteId);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Returns the end of the chunk of a body that starts at an offset. A chunk never ends
+     * between the two halves of a surrogate pair, which couldn't be stored apart.
+     */
+    private static int getChunkEnd(String body, int start) {
+        int end = Math.min(start + NotePad.Notes.CHUNK_LENGTH, body.length());
+        if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Reads the whole stored body of a note, joining its chunks, without the revisions.
+     *
+     * @return The body, or null if there is no such note.
+     */
+    private static String readBody(SQLiteDatabase db, long noteId) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) },
+                null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            StringWriter body = new StringWriter();
+            PrintWriter out = new PrintWriter(body);
+            String first = c.getString(0);
+            out.print(first != null ? first : "");
+            writeChunks(out, db, noteId);
+            out.flush();
+            return body.toString();
+        } finally {
+            c.close();
+        }
+    }
 
     /**
      * This is called when a client calls
@@ -743,21 +2886,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
         // If the values map doesn't contain category, sets to default category
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "默认分类");
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY) == false
+                && values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, DEFAULT_CATEGORY);
         }
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                // if values is empty.
-                values                           // A map of column names, and the values to insert
-                // into the columns.
-        );
+        // Notes store the id of their category, not its name.
+        values = resolveCategory(db, values);
+
+        // A long body is stored in chunks, the notes table gets the first one.
+        String body = splitBody(values);
+
+        // Performs the insert with a cached statement and returns the ID of the new note.
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = mOpenHelper.getStatementCache().insert(
+                    NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                    values,                          // A map of column names, and the values to
+                    // insert into the columns.
+                    SQLiteDatabase.CONFLICT_NONE
+            );
+            if (rowId > 0 && body != null) {
+                insertChunks(rowId, body);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
@@ -765,7 +2924,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
             // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
             return noteUri;
         }
 
@@ -796,17 +2955,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF2196F3); // Default blue
         }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
-        long rowId = db.insert(
+        long rowId = mOpenHelper.getStatementCache().insert(
                 NotePad.Categories.TABLE_NAME,
-                null,
-                values
+                values,
+                SQLiteDatabase.CONFLICT_NONE
         );
 
         if (rowId > 0) {
             Uri categoryUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(categoryUri, null);
+            notifyChange(categoryUri);
             return categoryUri;
         }
 
@@ -830,19 +2987,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Always update timestamp
         values.put(NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP, now);
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
         // 使用 INSERT OR REPLACE 策略，因为查询是唯一的
-        long rowId = db.insertWithOnConflict(
+        long rowId = mOpenHelper.getStatementCache().insert(
                 NotePad.SearchHistory.TABLE_NAME,
-                null,
                 values,
                 SQLiteDatabase.CONFLICT_REPLACE
         );
 
         if (rowId > 0) {
             Uri historyUri = ContentUris.withAppendedId(NotePad.SearchHistory.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(historyUri, null);
+            notifyChange(historyUri);
             return historyUri;
         }
 
@@ -871,23 +3025,42 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         int count;
 
+        // The rows deleted through a directory URI, if few enough to notify one by one
+        long[] rowIds = null;
+
         // Does the delete based on the incoming URI pattern.
         switch (sUriMatcher.match(uri)) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name
-                        where,                     // The incoming where clause column names
-                        whereArgs                  // The incoming where clause values
-                );
+                db.beginTransaction();
+                try {
+                    rowIds = selectRowIds(db, NotePad.Notes.TABLE_NAME, toNotesTableWhere(where),
+                            whereArgs);
+                    count = db.delete(
+                            NotePad.Notes.TABLE_NAME,  // The database table name
+                            toNotesTableWhere(where),  // The incoming where clause column names
+                            whereArgs                  // The incoming where clause values
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             // If the incoming URI matches a single note ID, does the delete based on the
             // incoming data, but modifies the where clause to restrict it to the
             // particular note ID.
             case NOTE_ID:
+                // Without additional criteria, deletes the note with a cached statement that
+                // takes the note ID as an argument.
+                if (where == null) {
+                    count = mOpenHelper.getStatementCache().deleteById(
+                            NotePad.Notes.TABLE_NAME, NotePad.Notes._ID, ContentUris.parseId(uri));
+                    break;
+                }
+
                 /*
                  * Starts a final WHERE clause by restricting it to the
                  * desired note ID.
@@ -902,7 +3075,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // If there were additional selection criteria, append them to the final
                 // WHERE clause
                 if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+                    finalWhere = finalWhere + " AND " + toNotesTableWhere(where);
                 }
 
                 // Performs the delete.
@@ -915,14 +3088,28 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // Handle category deletion
             case CATEGORIES:
-                count = db.delete(
-                        NotePad.Categories.TABLE_NAME,
-                        where,
-                        whereArgs
-                );
+                db.beginTransaction();
+                try {
+                    rowIds = selectRowIds(db, NotePad.Categories.TABLE_NAME, where, whereArgs);
+                    count = db.delete(
+                            NotePad.Categories.TABLE_NAME,
+                            where,
+                            whereArgs
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             case CATEGORY_ID:
+                if (where == null) {
+                    count = mOpenHelper.getStatementCache().deleteById(
+                            NotePad.Categories.TABLE_NAME, NotePad.Categories._ID,
+                            ContentUris.parseId(uri));
+                    break;
+                }
+
                 finalWhere =
                         NotePad.Categories._ID +
                                 " = " +
@@ -941,14 +3128,28 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // Handle search history deletion
             case SEARCH_HISTORY:
-                count = db.delete(
-                        NotePad.SearchHistory.TABLE_NAME,
-                        where,
-                        whereArgs
-                );
+                db.beginTransaction();
+                try {
+                    rowIds = selectRowIds(db, NotePad.SearchHistory.TABLE_NAME, where, whereArgs);
+                    count = db.delete(
+                            NotePad.SearchHistory.TABLE_NAME,
+                            where,
+                            whereArgs
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             case SEARCH_HISTORY_ID:
+                if (where == null) {
+                    count = mOpenHelper.getStatementCache().deleteById(
+                            NotePad.SearchHistory.TABLE_NAME, NotePad.SearchHistory._ID,
+                            ContentUris.parseId(uri));
+                    break;
+                }
+
                 finalWhere =
                         NotePad.SearchHistory._ID +
                                 " = " +
@@ -972,9 +3173,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * and observers that have registered themselves for the provider are notified. Nothing
+         * changed if no rows were affected, so observers don't need to requery then.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri, rowIds);
+            notifyCategoryChange(uri);
+        }
 
         // Returns the number of rows deleted.
         return count;
@@ -1008,20 +3213,41 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         int count;
         String finalWhere;
 
+        // The rows updated through a directory URI, if few enough to notify one by one
+        long[] rowIds = null;
+
         // Does the update based on the incoming URI pattern
         switch (sUriMatcher.match(uri)) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
-                        whereArgs                 // The where clause column values to select on.
-                );
+                // A patch applies to the body of one note
+                if (isPatch(values)) {
+                    throw new IllegalArgumentException("Patches need a note URI: " + uri);
+                }
+                db.beginTransaction();
+                try {
+                    values = resolveCategory(db, values);
+                    rowIds = selectRowIds(db, NotePad.Notes.TABLE_NAME, toNotesTableWhere(where),
+                            whereArgs);
+
+                    if (isLongBody(values)) {
+                        // A long body is stored in chunks, so the notes it goes to are needed.
+                        count = updateLongNotes(db, values, toNotesTableWhere(where), whereArgs);
+                    } else {
+                        // Does the update and returns the number of rows updated.
+                        count = db.update(
+                                NotePad.Notes.TABLE_NAME, // The database table name.
+                                values,                   // A map of column names and new values.
+                                toNotesTableWhere(where), // The where clause column names.
+                                whereArgs                 // The where clause column values.
+                        );
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
@@ -1044,9 +3270,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // If there were additional selection criteria, append them to the final WHERE
                 // clause
                 if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
+                    finalWhere = finalWhere + " AND " + toNotesTableWhere(where);
+                }
+
+                values = resolveCategory(db, values);
+
+                // An edit of the body is stored as a revision instead of rewriting the body.
+                if (isPatch(values)) {
+                    if (where != null) {
+                        throw new IllegalArgumentException("Patches can't have a selection");
+                    }
+                    count = updateWithRevision(db, Long.parseLong(noteId), values);
+                    break;
+                }
+
+                // A long body is stored in chunks, the notes table gets the first one.
+                if (isLongBody(values)) {
+                    count = updateLongNotes(db, values, finalWhere, whereArgs);
+                    break;
                 }
 
+                // Without additional criteria, updates the note with a cached statement that
+                // takes the note ID as an argument. This is the path of every save in the editor.
+                if (where == null) {
+                    count = mOpenHelper.getStatementCache().updateById(
+                            NotePad.Notes.TABLE_NAME, NotePad.Notes._ID, Long.parseLong(noteId),
+                            values);
+                    break;
+                }
 
                 // Does the update and returns the number of rows updated.
                 count = db.update(
@@ -1061,16 +3312,30 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // Handle category updates
             case CATEGORIES:
-                count = db.update(
-                        NotePad.Categories.TABLE_NAME,
-                        values,
-                        where,
-                        whereArgs
-                );
+                db.beginTransaction();
+                try {
+                    rowIds = selectRowIds(db, NotePad.Categories.TABLE_NAME, where, whereArgs);
+                    count = db.update(
+                            NotePad.Categories.TABLE_NAME,
+                            values,
+                            where,
+                            whereArgs
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             case CATEGORY_ID:
                 String categoryId = uri.getPathSegments().get(1);
+                if (where == null) {
+                    count = mOpenHelper.getStatementCache().updateById(
+                            NotePad.Categories.TABLE_NAME, NotePad.Categories._ID,
+                            Long.parseLong(categoryId), values);
+                    break;
+                }
+
                 finalWhere =
                         NotePad.Categories._ID +
                                 " = " +
@@ -1090,16 +3355,30 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // Handle search history updates
             case SEARCH_HISTORY:
-                count = db.update(
-                        NotePad.SearchHistory.TABLE_NAME,
-                        values,
-                        where,
-                        whereArgs
-                );
+                db.beginTransaction();
+                try {
+                    rowIds = selectRowIds(db, NotePad.SearchHistory.TABLE_NAME, where, whereArgs);
+                    count = db.update(
+                            NotePad.SearchHistory.TABLE_NAME,
+                            values,
+                            where,
+                            whereArgs
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             case SEARCH_HISTORY_ID:
                 String historyId = uri.getPathSegments().get(1);
+                if (where == null) {
+                    count = mOpenHelper.getStatementCache().updateById(
+                            NotePad.SearchHistory.TABLE_NAME, NotePad.SearchHistory._ID,
+                            Long.parseLong(historyId), values);
+                    break;
+                }
+
                 finalWhere =
                         NotePad.SearchHistory._ID +
                                 " = " +
@@ -1124,14 +3403,510 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * and observers that have registered themselves for the provider are notified. Nothing
+         * changed if no rows were affected, so observers don't need to requery then.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri, rowIds);
+            notifyCategoryChange(uri);
+        }
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all the rows in a single transaction, so either every row is inserted or none is,
+     * and notifies listeners after the transaction commits instead of once per row.
+     *
+     * @return The number of rows inserted.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * @throws SQLException if an insertion fails.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean outermost = mChangeNotifier.beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues rowValues : values) {
+                insert(uri, rowValues);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mChangeNotifier.endBatch(outermost, successful);
+        }
+        return values.length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all the operations in a single transaction. If any operation fails, none of them
+     * takes effect. Listeners are notified after the transaction commits.
+     *
+     * @return The results of the operations, in order.
+     * @throws OperationApplicationException if an operation's expectations aren't met.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean outermost = mChangeNotifier.beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mChangeNotifier.endBatch(outermost, successful);
+        }
+    }
+
+    /**
+     * Returns the ids of the rows of a table that a where clause selects, or null if there are
+     * more than {@link ChangeNotifier#MAX_ROW_URIS} of them, in which case the directory URI is
+     * notified instead. Runs in the transaction of the write it is for, so that the write
+     * affects the same rows.
+     */
+    private static long[] selectRowIds(SQLiteDatabase db, String table, String where,
+                                       String[] whereArgs) {
+        Cursor c = db.query(table, new String[] { BaseColumns._ID }, where, whereArgs, null,
+                null, null, String.valueOf(ChangeNotifier.MAX_ROW_URIS + 1));
+        try {
+            if (c.getCount() > ChangeNotifier.MAX_ROW_URIS) {
+                return null;
+            }
+            long[] ids = new long[c.getCount()];
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Notifies listeners of a write through a URI: the URIs of the given rows of its directory,
+     * so that observers of other rows don't requery, or the URI itself if the rows are null.
+     */
+    private void notifyChange(Uri uri, long[] rowIds) {
+        if (rowIds == null) {
+            notifyChange(uri);
+            return;
+        }
+        Uri directory = uri.buildUpon().query(null).fragment(null).build();
+        for (long rowId : rowIds) {
+            notifyChange(ContentUris.withAppendedId(directory, rowId));
+        }
+    }
+
+    /**
+     * Notifies listeners that the data at a URI changed. The notification is coalesced with
+     * other changes made in the same short window or batch, see {@link ChangeNotifier}.
+     */
+    private void notifyChange(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match != SEARCH_HISTORY && match != SEARCH_HISTORY_ID) {
+            mNotesGeneration.incrementAndGet();
+        }
+        if (match == NOTES || match == NOTE_ID) {
+            mOpenHelper.schedule(mIndexRunnable, WORD_INDEX_DELAY_MILLIS);
+        }
+        mChangeNotifier.notifyChange(uri);
+
+        // Every change comes from a write, so the log has grown
+        mOpenHelper.scheduleCheckpoint();
+    }
+
+    /**
+     * Updates the notes selected by a where clause of the notes table with values that contain
+     * a long body, storing the chunks of the body for each of them.
+     *
+     * @return The number of notes updated.
+     */
+    private int updateLongNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        ContentValues noteValues = new ContentValues(values);
+        String body = splitBody(noteValues);
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                    where, whereArgs, null, null, null);
+            long[] ids;
+            try {
+                ids = new long[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    ids[i] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+
+            StatementCache statements = mOpenHelper.getStatementCache();
+            for (long id : ids) {
+                statements.updateById(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID, id,
+                        noteValues);
+                insertChunks(id, body);
+            }
+            db.setTransactionSuccessful();
+            return ids.length;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns true if the values of an update carry any of the patch columns
+     */
+    private static boolean isPatch(ContentValues values) {
+        return values != null && (values.containsKey(NotePad.Notes.COLUMN_NAME_PATCH_OFFSET)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_PATCH_DELETED)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_PATCH_TEXT));
+    }
+
+    /**
+     * Updates a note and appends the patch in the values to its revisions, compacting them into
+     * the note once there are many. A note stored in chunks is patched in its chunks instead.
+     *
+     * @return The number of notes updated.
+     */
+    private int updateWithRevision(SQLiteDatabase db, long noteId, ContentValues values) {
+        ContentValues noteValues = new ContentValues(values);
+        Integer offset = noteValues.getAsInteger(NotePad.Notes.COLUMN_NAME_PATCH_OFFSET);
+        Integer deleted = noteValues.getAsInteger(NotePad.Notes.COLUMN_NAME_PATCH_DELETED);
+        String text = noteValues.getAsString(NotePad.Notes.COLUMN_NAME_PATCH_TEXT);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_PATCH_OFFSET);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_PATCH_DELETED);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_PATCH_TEXT);
+        if (offset == null || deleted == null || text == null || offset < 0 || deleted < 0
+                || noteValues.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            throw new IllegalArgumentException("Invalid patch " + values);
+        }
+
+        StatementCache statements = mOpenHelper.getStatementCache();
+        db.beginTransaction();
+        try {
+            int count;
+            if (noteValues.size() > 0) {
+                count = statements.updateById(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID, noteId,
+                        noteValues);
+            } else {
+                count = (int) DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+                        NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) });
+            }
+
+            if (count > 0 && DatabaseUtils.queryNumEntries(db, CHUNKS_TABLE_NAME,
+                    CHUNK_NOTE_ID + " = ?", new String[] { String.valueOf(noteId) }) > 0) {
+                // Reads only return the first chunk of a long note, without the revisions that
+                // may reach into the other chunks, so the patch goes to the chunks right away
+                patchChunks(db, noteId, offset, deleted, text);
+            } else if (count > 0) {
+                ContentValues revision = new ContentValues();
+                revision.put(REVISION_NOTE_ID, noteId);
+                revision.put(REVISION_OFFSET, offset);
+                revision.put(REVISION_DELETED, deleted);
+                revision.put(REVISION_TEXT, text);
+                if (statements.insert(REVISIONS_TABLE_NAME, revision,
+                        SQLiteDatabase.CONFLICT_NONE) <= 0) {
+                    throw new SQLException("Failed to insert a revision of note " + noteId);
+                }
+
+                Cursor c = db.rawQuery("SELECT count(*), total(length(" + REVISION_TEXT + ")) FROM "
+                        + REVISIONS_TABLE_NAME + " WHERE " + REVISION_NOTE_ID + " = ?",
+                        new String[] { String.valueOf(noteId) });
+                boolean compact;
+                try {
+                    compact = c.moveToFirst()
+                            && (c.getInt(0) >= MAX_REVISIONS || c.getLong(1) >= MAX_REVISION_CHARS);
+                } finally {
+                    c.close();
+                }
+
+                if (compact) {
+                    compactNote(db, noteId);
+                }
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies a patch to a note stored in chunks. Only the chunks the patch falls in are read
+     * and written again, the first one in the notes table; the rest of the body is found
+     * through the lengths of the chunks. A chunk that grows past
+     * {@link NotePad.Notes#CHUNK_LENGTH} is split and the chunks after it move up, one that
+     * becomes empty is dropped. Out of range patches are clamped like revisions.
+     */
+    private void patchChunks(SQLiteDatabase db, long noteId, int offset, int deleted,
+            String text) {
+        String[] args = { String.valueOf(noteId) };
+        String first = DatabaseUtils.stringForQuery(db, "SELECT coalesce("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", '') FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = ?", args);
+        List<Integer> lengths = new ArrayList<Integer>();
+        lengths.add(first.length());
+        Cursor c = db.query(CHUNKS_TABLE_NAME, new String[] { CHUNK_LENGTH },
+                CHUNK_NOTE_ID + " = ?", args, null, null, CHUNK_INDEX);
+        try {
+            while (c.moveToNext()) {
+                lengths.add(c.getInt(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        // Finds the chunks from the one holding the start of the patch to the one holding its
+        // end; a patch at the end of a chunk goes to the start of the next one
+        int total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        int start = Math.min(offset, total);
+        int end = Math.min(start + deleted, total);
+        int firstIndex = -1;
+        int lastIndex = lengths.size() - 1;
+        int segmentStart = 0;
+        int position = 0;
+        for (int i = 0; i < lengths.size(); i++) {
+            int chunkEnd = position + lengths.get(i);
+            if (firstIndex < 0 && (start < chunkEnd || i == lastIndex)) {
+                firstIndex = i;
+                segmentStart = position;
+            }
+            if (firstIndex >= 0 && end <= chunkEnd) {
+                lastIndex = i;
+                break;
+            }
+            position = chunkEnd;
+        }
+
+        StringBuilder segment = new StringBuilder();
+        for (int i = firstIndex; i <= lastIndex; i++) {
+            String chunk = i == 0 ? first : readChunk(db, noteId, i);
+            segment.append(chunk != null ? chunk : "");
+        }
+        segment.replace(start - segmentStart, end - segmentStart, text);
+        String patched = segment.toString();
+        List<String> pieces = new ArrayList<String>();
+        for (int pieceStart = 0; pieceStart < patched.length(); ) {
+            int pieceEnd = getChunkEnd(patched, pieceStart);
+            pieces.add(patched.substring(pieceStart, pieceEnd));
+            pieceStart = pieceEnd;
+        }
+        if (firstIndex == 0 && pieces.isEmpty()) {
+            // The notes table always holds the first chunk, even an empty one
+            pieces.add("");
+        }
+
+        // Drops the chunks the pieces don't take up, and moves the later ones into place. The
+        // indexes pass through negative values so that no two chunks share one meanwhile.
+        int replaced = lastIndex - firstIndex + 1;
+        int shift = pieces.size() - replaced;
+        if (shift < 0) {
+            db.delete(CHUNKS_TABLE_NAME, CHUNK_NOTE_ID + " = ? AND " + CHUNK_INDEX + " > ? AND "
+                    + CHUNK_INDEX + " <= ?", new String[] { args[0],
+                    String.valueOf(firstIndex + pieces.size() - 1), String.valueOf(lastIndex) });
+        }
+        if (shift != 0 && lastIndex < lengths.size() - 1) {
+            db.execSQL("UPDATE " + CHUNKS_TABLE_NAME + " SET " + CHUNK_INDEX + " = -("
+                    + CHUNK_INDEX + " + " + shift + ") WHERE " + CHUNK_NOTE_ID + " = ? AND "
+                    + CHUNK_INDEX + " > " + lastIndex, args);
+            db.execSQL("UPDATE " + CHUNKS_TABLE_NAME + " SET " + CHUNK_INDEX + " = -"
+                    + CHUNK_INDEX + " WHERE " + CHUNK_NOTE_ID + " = ? AND " + CHUNK_INDEX
+                    + " < 0", args);
+        }
+
+        StatementCache statements = mOpenHelper.getStatementCache();
+        ContentValues chunk = new ContentValues();
+        for (int i = 0; i < pieces.size(); i++) {
+            int index = firstIndex + i;
+            String piece = pieces.get(i);
+            if (index == 0) {
+                writeFirstChunk(db, noteId, piece);
+                continue;
+            }
+            chunk.clear();
+            chunk.put(CHUNK_TEXT, piece);
+            chunk.put(CHUNK_LENGTH, piece.length());
+            if (i < replaced) {
+                db.update(CHUNKS_TABLE_NAME, chunk, CHUNK_NOTE_ID + " = ? AND " + CHUNK_INDEX
+                        + " = ?", new String[] { args[0], String.valueOf(index) });
+            } else {
+                chunk.put(CHUNK_NOTE_ID, noteId);
+                chunk.put(CHUNK_INDEX, index);
+                if (statements.insert(CHUNKS_TABLE_NAME, chunk,
+                        SQLiteDatabase.CONFLICT_NONE) < 0) {
+                    throw new SQLException("Failed to insert a chunk of note " + noteId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the first chunk of a note stored in chunks to the notes table, keeping the other
+     * chunks. Must run in a transaction.
+     */
+    private void writeFirstChunk(SQLiteDatabase db, long noteId, String chunk) {
+        StatementCache statements = mOpenHelper.getStatementCache();
+        ContentValues kept = new ContentValues();
+        kept.put(CHUNK_NOTE_ID, noteId);
+        statements.insert(CHUNKS_KEPT_TABLE_NAME, kept, SQLiteDatabase.CONFLICT_IGNORE);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, chunk);
+        statements.updateById(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID, noteId, values);
+        statements.deleteById(CHUNKS_KEPT_TABLE_NAME, CHUNK_NOTE_ID, noteId);
+    }
+
+    /**
+     * Writes the body of a note with its revisions applied back to the notes table, which drops
+     * the revisions and updates the full-text index and the snippets.
+     *
+     * @return true if the note had revisions.
+     */
+    private boolean compactNote(SQLiteDatabase db, long noteId) {
+        String[] args = { String.valueOf(noteId) };
+        if (DatabaseUtils.queryNumEntries(db, REVISIONS_TABLE_NAME,
+                REVISION_NOTE_ID + " = ?", args) == 0) {
+            return false;
+        }
+
+        String body = readBody(db, noteId);
+        if (body == null) {
+            return false;
+        }
+        body = applyRevisions(db, noteId, body);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        String longBody = splitBody(values);
+        mOpenHelper.getStatementCache().updateById(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID,
+                noteId, values);
+        if (longBody != null) {
+            insertChunks(noteId, longBody);
+        }
+        return true;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}.
+     * Supports {@link NotePad.Notes#METHOD_COMPACT}, with the URI of a note as the argument.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!NotePad.Notes.METHOD_COMPACT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        Uri uri = Uri.parse(arg);
+        if (sUriMatcher.match(uri) != NOTE_ID) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean compacted;
+        db.beginTransaction();
+        try {
+            compacted = compactNote(db, ContentUris.parseId(uri));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The snippets and the search results change
+        if (compacted) {
+            notifyChange(uri);
+        }
+        return null;
+    }
+
+    /**
+     * Notes are read with the name and color of their category, so a change to categories
+     * also changes the notes.
+     */
+    private void notifyCategoryChange(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match == CATEGORIES || match == CATEGORY_ID) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Replaces a category name in the values of a note by the id of that category. Categories
+     * that don't exist yet are added.
+     *
+     * @return The values to write to the notes table; the incoming values if they don't name a
+     * category.
+     */
+    private ContentValues resolveCategory(SQLiteDatabase db, ContentValues values) {
+        if (values == null || !values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            return values;
+        }
+        String name = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        if (name == null) {
+            name = DEFAULT_CATEGORY;
+        }
+
+        ContentValues resolved = new ContentValues(values);
+        resolved.remove(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        resolved.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, getCategoryId(db, name));
+        return resolved;
+    }
+
+    /**
+     * Returns the id of the category with the given name, adding the category with the default
+     * color if there is none.
+     */
+    private long getCategoryId(SQLiteDatabase db, String name) {
+        Cursor c = db.query(NotePad.Categories.TABLE_NAME,
+                new String[] { NotePad.Categories._ID },
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { name },
+                null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                return c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, name);
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, DEFAULT_CATEGORY_COLORS[0]);
+        values.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        long rowId = db.insert(NotePad.Categories.TABLE_NAME, null, values);
+        if (rowId <= 0) {
+            throw new SQLException("Failed to insert category " + name);
+        }
+        notifyChange(ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, rowId));
+        return rowId;
+    }
+
+    /**
+     * Notes are selected by their columns in the notes view, which include the name and color
+     * of the category. Updates and deletes go to the notes table, so a selection is applied to
+     * the view and the notes table is restricted to the ids it selects.
+     */
+    private static String toNotesTableWhere(String where) {
+        if (TextUtils.isEmpty(where)) {
+            return where;
+        }
+        return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM " + NOTES_VIEW_NAME
+                + " WHERE " + where + ")";
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -1143,4 +3918,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * A test package can call this to flush and inspect the change notifications of the
+     * provider.
+     *
+     * @return the change notifier of the provider.
+     */
+    ChangeNotifier getChangeNotifierForTest() {
+        return mChangeNotifier;
+    }
+
+    /**
+     * A test package can call this to inspect the SQL the provider runs for a query, e.g. its
+     * query plan, without running it.
+     *
+     * @return the query built for the arguments of a call to
+     * {@link #query(Uri, String[], String, String[], String)}.
+     */
+    BuiltQuery buildQueryForTest(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        return buildQuery(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
 }
\ No newline at end of file
@@ -7,8 +7,6 @@ import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 import android.widget.RemoteViews;
 
@@ -73,28 +71,16 @@ public class NoteWidgetProvider extends AppWidgetProvider {
                 views.setOnClickPendingIntent(R.id.widget_root, configPendingIntent);
 
             } else {
-                // 查询笔记数据
-                Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, noteId);
-                Cursor cursor = null;
-
+                // 从最近打开的笔记缓存读取笔记数据，笔记修改后缓存才会重新查询
                 try {
-                    cursor = context.getContentResolver().query(
-                            noteUri,
-                            new String[] {
-                                    NotePad.Notes.COLUMN_NAME_TITLE,
-                                    NotePad.Notes.COLUMN_NAME_NOTE,
-                                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-                                    NotePad.Notes.COLUMN_NAME_CATEGORY
-                            },
-                            null, null, null
-                    );
-
-                    if (cursor != null && cursor.moveToFirst()) {
+                    NoteCache.Note note = NoteCache.getInstance(context).get(noteId);
+
+                    if (note != null) {
                         // 获取笔记数据
-                        String title = cursor.getString(0);
-                        String content = cursor.getString(1);
-                        long modificationDate = cursor.getLong(2);
-                        String category = cursor.getString(3);
+                        String title = note.title;
+                        String content = note.note;
+                        long modificationDate = note.modified;
+                        String category = note.category;
 
                         // 格式化内容（限制长度）
                         String displayContent = content;
@@ -109,6 +95,9 @@ public class NoteWidgetProvider extends AppWidgetProvider {
                         views.setTextViewText(R.id.widget_title, title != null ? title : "无标题");
                         views.setTextViewText(R.id.widget_content, displayContent != null ? displayContent : "无内容");
                         views.setTextViewText(R.id.widget_category, category != null ? category : "默认分类");
+                        // 分类颜色取自分类仓库，仓库已加载时不查询数据库
+                        views.setTextColor(R.id.widget_category, CategoryRepository.getInstance(context)
+                                .getSnapshot().getColor(category));
                         views.setTextViewText(R.id.widget_date, formattedDate);
 
                         Log.d(TAG, "小部件内容更新: " + title);
@@ -128,10 +117,6 @@ public class NoteWidgetProvider extends AppWidgetProvider {
                     views.setTextViewText(R.id.widget_content, "请重新配置");
                     views.setTextViewText(R.id.widget_category, "");
                     views.setTextViewText(R.id.widget_date, "");
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
                 }
 
                 // 设置点击打开笔记编辑界面
@@ -0,0 +1,217 @@
+package com.example.android.notepad;
+
+import android.content.ContentProvider.PipeDataWriter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes the export of all notes, see {@link NotePad.Notes#EXPORT_MIME_TYPE}, to the pipe that
+ * {@link NotePadProvider} opens for the notes URI. Notes are read in pages ordered by id, each
+ * page starting after the last id of the previous one, so memory use doesn't grow with the
+ * number of notes and no page skips over the rows before it. Each note is written as soon as it
+ * is read; long bodies are written chunk by chunk.
+ *
+ * The pages are read outside of a transaction, so notes that change during the export may be
+ * exported either before or after the change.
+ */
+class NotesExporter implements PipeDataWriter<SQLiteDatabase> {
+
+    private static final String TAG = "NotesExporter";
+
+    /**
+     * The number of notes read per page
+     */
+    static final int PAGE_SIZE = 256;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The notes after an id, with flags for the revisions and chunks that make up their bodies
+    private static final String PAGE_QUERY = "SELECT "
+            + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+            + "EXISTS (SELECT 1 FROM " + NotePadProvider.REVISIONS_TABLE_NAME + " WHERE "
+            + NotePadProvider.REVISION_NOTE_ID + " = " + NotePadProvider.NOTES_VIEW_NAME + "."
+            + NotePad.Notes._ID + "), "
+            + "EXISTS (SELECT 1 FROM " + NotePadProvider.CHUNKS_TABLE_NAME + " WHERE "
+            + NotePadProvider.CHUNK_NOTE_ID + " = " + NotePadProvider.NOTES_VIEW_NAME + "."
+            + NotePad.Notes._ID + ")"
+            + " FROM " + NotePadProvider.NOTES_VIEW_NAME
+            + " WHERE " + NotePad.Notes._ID + " > ?"
+            + " ORDER BY " + NotePad.Notes._ID
+            + " LIMIT " + PAGE_SIZE;
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TITLE = 1;
+    private static final int COLUMN_NOTE = 2;
+    private static final int COLUMN_CREATE_DATE = 3;
+    private static final int COLUMN_MODIFICATION_DATE = 4;
+    private static final int COLUMN_CATEGORY = 5;
+    private static final int COLUMN_REVISED = 6;
+    private static final int COLUMN_CHUNKED = 7;
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+            Bundle opts, SQLiteDatabase db) {
+        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"), BUFFER_SIZE);
+            export(db, out);
+            out.flush();
+        } catch (IOException e) {
+            // The reader closed the pipe before the end of the export
+            Log.w(TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                fout.close();
+            } catch (IOException e) {
+                // continue
+            }
+        }
+    }
+
+    /**
+     * Writes all notes, one line each.
+     *
+     * @return The number of notes written.
+     */
+    static int export(SQLiteDatabase db, Writer out) throws IOException {
+        int count = 0;
+        String[] args = { String.valueOf(Long.MIN_VALUE) };
+        while (true) {
+            Cursor c = db.rawQuery(PAGE_QUERY, args);
+            int rows;
+            try {
+                rows = c.getCount();
+                while (c.moveToNext()) {
+                    writeNote(db, c, out);
+                    args[0] = String.valueOf(c.getLong(COLUMN_ID));
+                }
+            } finally {
+                c.close();
+            }
+            count += rows;
+            if (rows < PAGE_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    private static void writeNote(SQLiteDatabase db, Cursor c, Writer out) throws IOException {
+        long id = c.getLong(COLUMN_ID);
+        out.write("{\"" + NotePad.Notes._ID + "\":");
+        out.write(Long.toString(id));
+        writeName(out, NotePad.Notes.COLUMN_NAME_TITLE);
+        writeString(out, c.getString(COLUMN_TITLE));
+
+        writeName(out, NotePad.Notes.COLUMN_NAME_NOTE);
+        String note = c.getString(COLUMN_NOTE);
+        if (note == null) {
+            out.write("null");
+        } else {
+            if (c.getInt(COLUMN_REVISED) != 0) {
+                note = NotePadProvider.applyRevisions(db, id, note);
+            }
+            out.write('"');
+            writeEscaped(out, note);
+            if (c.getInt(COLUMN_CHUNKED) != 0) {
+                String chunk;
+                for (int index = 1; (chunk = NotePadProvider.readChunk(db, id, index)) != null;
+                        index++) {
+                    writeEscaped(out, chunk);
+                }
+            }
+            out.write('"');
+        }
+
+        writeName(out, NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+        writeNumber(out, c, COLUMN_CREATE_DATE);
+        writeName(out, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        writeNumber(out, c, COLUMN_MODIFICATION_DATE);
+        writeName(out, NotePad.Notes.COLUMN_NAME_CATEGORY);
+        writeString(out, c.getString(COLUMN_CATEGORY));
+        out.write("}\n");
+    }
+
+    private static void writeName(Writer out, String name) throws IOException {
+        out.write(",\"");
+        out.write(name);
+        out.write("\":");
+    }
+
+    private static void writeNumber(Writer out, Cursor c, int column) throws IOException {
+        out.write(c.isNull(column) ? "null" : Long.toString(c.getLong(column)));
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        writeEscaped(out, value);
+        out.write('"');
+    }
+
+    /**
+     * Writes text escaped for a JSON string, copying the runs of characters that need no
+     * escaping in one go. Line separators are escaped too, so that every note stays on one line
+     * for readers that split on them.
+     */
+    private static void writeEscaped(Writer out, String text) throws IOException {
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            String escape;
+            switch (ch) {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    escape = unicodeEscape(ch);
+                    break;
+                default:
+                    if (ch >= 0x20) {
+                        continue;
+                    }
+                    escape = unicodeEscape(ch);
+            }
+            out.write(text, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(text, start, length - start);
+    }
+
+    private static String unicodeEscape(char ch) {
+        String hex = Integer.toHexString(ch);
+        return "\\u0000".substring(0, 6 - hex.length()) + hex;
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 笔记导入
+ * 按行流式读取 JSON Lines 格式的笔记文件，provider 导出的格式（{@link NotePad.Notes#EXPORT_MIME_TYPE}）
+ * 可以直接导入。每行解析、校验后放入当前批次，凑满一批就通过 bulkInsert 在一个事务中提交。
+ * 读取和提交在同一个线程上交替进行，上一批提交完成后才继续读取，内存中最多只有一批笔记，
+ * 文件读得再快也不会堆积。
+ * 导入的笔记分配新的 ID，无法解析或内容不合法的行跳过并计数，空行忽略。
+ * {@link #importNotes(InputStream)} 会阻塞，必须在后台线程调用。
+ */
+public class NotesImporter {
+
+    private static final String TAG = "NotesImporter";
+
+    /**
+     * 默认每批提交的笔记数
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * 导入进度回调，每提交一批后在导入线程上调用
+     */
+    public interface ProgressListener {
+        void onProgress(Result progress);
+    }
+
+    /**
+     * 导入结果，也用于报告进度
+     */
+    public static class Result {
+        // 已提交的笔记数
+        public final int imported;
+        // 跳过的行数
+        public final int skipped;
+        // 已用时间
+        public final long elapsedMillis;
+        // 是否被取消
+        public final boolean cancelled;
+
+        Result(int imported, int skipped, long elapsedMillis, boolean cancelled) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.elapsedMillis = elapsedMillis;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * 每秒导入的笔记数
+         */
+        public long getRowsPerSecond() {
+            return imported * 1000L / Math.max(1, elapsedMillis);
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mBatchSize;
+    private final ProgressListener mListener;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * @param batchSize 每批提交的笔记数
+     * @param listener 进度回调，可以为 null
+     */
+    public NotesImporter(ContentResolver resolver, int batchSize, ProgressListener listener) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        mResolver = resolver;
+        mBatchSize = batchSize;
+        mListener = listener;
+    }
+
+    /**
+     * 取消导入，正在提交的一批完成后停止，已提交的笔记保留。可以在任意线程调用。
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * 从输入流导入笔记，读完或取消后返回，不关闭输入流
+     * @throws IOException 读取失败，之前提交的批次保留
+     */
+    public Result importNotes(InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<ContentValues> batch = new ArrayList<ContentValues>(mBatchSize);
+        int imported = 0;
+        int skipped = 0;
+        String line;
+        while (!mCancelled && (line = reader.readLine()) != null) {
+            if (TextUtils.isEmpty(line.trim())) {
+                continue;
+            }
+            ContentValues values = parseNote(line);
+            if (values == null) {
+                skipped++;
+                continue;
+            }
+            batch.add(values);
+            if (batch.size() == mBatchSize) {
+                imported += commit(batch);
+                reportProgress(imported, skipped, start);
+            }
+        }
+        if (!mCancelled && !batch.isEmpty()) {
+            imported += commit(batch);
+            reportProgress(imported, skipped, start);
+        }
+
+        Result result = new Result(imported, skipped, SystemClock.elapsedRealtime() - start,
+                mCancelled);
+        Log.i(TAG, "导入 " + result.imported + " 条笔记，跳过 " + result.skipped + " 行，用时 "
+                + result.elapsedMillis + " ms，每秒 " + result.getRowsPerSecond() + " 条");
+        return result;
+    }
+
+    /**
+     * 解析并校验一行，返回要插入的笔记；内容不合法时返回 null。
+     * 标题和正文至少有一项且必须是字符串，日期必须是非负整数，分类必须是非空字符串；
+     * 缺少的日期和分类由 provider 补上，其他字段（如导出的 _id）忽略。
+     */
+    static ContentValues parseNote(String line) {
+        JSONObject object;
+        try {
+            object = new JSONObject(line);
+        } catch (JSONException e) {
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        if (!putString(object, NotePad.Notes.COLUMN_NAME_TITLE, values)
+                || !putString(object, NotePad.Notes.COLUMN_NAME_NOTE, values)
+                || !putDate(object, NotePad.Notes.COLUMN_NAME_CREATE_DATE, values)
+                || !putDate(object, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, values)
+                || !putString(object, NotePad.Notes.COLUMN_NAME_CATEGORY, values)) {
+            return null;
+        }
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                && !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)
+                && TextUtils.isEmpty(values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY))) {
+            return null;
+        }
+        return values;
+    }
+
+    // 字段不存在或为 null 时不写入，是字符串时写入，否则不合法
+    private static boolean putString(JSONObject object, String key, ContentValues values) {
+        if (object.isNull(key)) {
+            return true;
+        }
+        Object value = object.opt(key);
+        if (!(value instanceof String)) {
+            return false;
+        }
+        values.put(key, (String) value);
+        return true;
+    }
+
+    // 字段不存在或为 null 时不写入，是非负整数时写入，否则不合法
+    private static boolean putDate(JSONObject object, String key, ContentValues values) {
+        if (object.isNull(key)) {
+            return true;
+        }
+        Object value = object.opt(key);
+        if (!(value instanceof Integer || value instanceof Long) || ((Number) value).longValue() < 0) {
+            return false;
+        }
+        values.put(key, ((Number) value).longValue());
+        return true;
+    }
+
+    // 在一个事务中提交一批笔记，并清空批次
+    private int commit(List<ContentValues> batch) {
+        int count = mResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                batch.toArray(new ContentValues[batch.size()]));
+        batch.clear();
+        return count;
+    }
+
+    private void reportProgress(int imported, int skipped, long start) {
+        if (mListener != null) {
+            mListener.onProgress(new Result(imported, skipped,
+                    SystemClock.elapsedRealtime() - start, false));
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.example.android.notepad;
 
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.app.ListActivity;
 import android.app.SearchManager;
 import android.appwidget.AppWidgetManager;
@@ -30,21 +31,20 @@ import android.widget.EditText;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
-import android.text.SpannableString;
-import android.text.Spannable;
-import android.text.style.BackgroundColorSpan;
-import android.text.style.StyleSpan;
-import android.graphics.Typeface;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
@@ -69,12 +69,13 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class NotesList extends ListActivity {
 
@@ -97,29 +98,15 @@ public class NotesList extends ListActivity {
     private boolean mSearchInContent = true;
     private boolean mCaseSensitive = false;
     private boolean mWholeWord = false;
-    private static final String[] PROJECTION = new String[] {
-            NotePad.Notes._ID, // 0
-            NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
-            NotePad.Notes.COLUMN_NAME_CATEGORY, // 3
-            NotePad.Notes.COLUMN_NAME_NOTE, // 4 - 新增，用于搜索和显示
-    };
+    // 全文搜索时按相关度排序，只显示最相关的 RELEVANCE_RESULTS 条
+    private boolean mSortByRelevance = false;
+    private static final int RELEVANCE_RESULTS = 200;
 
-    private static final int COLUMN_INDEX_TITLE = 1;
-    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
-    private static final int COLUMN_INDEX_CATEGORY = 3;
-    private static final int COLUMN_INDEX_NOTE = 4;
-
-    // 分类颜色映射
-    private static final Map<String, Integer> CATEGORY_COLORS = new HashMap<String, Integer>();
-    static {
-        CATEGORY_COLORS.put("默认分类", 0xFF2196F3);
-        CATEGORY_COLORS.put("工作", 0xFF4CAF50);
-        CATEGORY_COLORS.put("学习", 0xFFFF9800);
-        CATEGORY_COLORS.put("生活", 0xFF9C27B0);
-        CATEGORY_COLORS.put("想法", 0xFF607D8B);
-        CATEGORY_COLORS.put("购物清单", 0xFFFF5722);
-    }
+    // 分类名称和颜色由分类仓库统一提供；列表使用最近加载的快照，分类变化后在后台换成新快照
+    private CategoryRepository mCategoryRepository;
+    private CategoryRepository.Snapshot mCategorySnapshot;
+    // 分类管理对话框打开时的分类列表，分类变化时随之刷新
+    private CategoryAdapter mCategoryAdapter;
 
     private static final int[] COLOR_OPTIONS = {
             0xFFF44336, 0xFFE91E63, 0xFF9C27B0, 0xFF673AB7, 0xFF3F51B5,
@@ -131,8 +118,58 @@ public class NotesList extends ListActivity {
     // 分类筛选状态
     private String mCurrentFilterCategory = null;
     private NotesAdapter mAdapter;
+    private final SearchHighlighter mHighlighter = new SearchHighlighter();
+    // LIKE 搜索逐字输入时在上一次的结果中筛选
+    private final SearchRefiner mSearchRefiner = new SearchRefiner();
     private int selectedColor = 0xFF2196F3;
 
+    // 后台查询通道，新查询会取代同通道上未完成的旧查询
+    private static final String QUERY_NOTES = "notes";
+    private static final String QUERY_CATEGORY_NAMES = "category_names";
+    private static final String QUERY_CATEGORIES = "categories";
+    private static final String QUERY_CATEGORY_SNAPSHOT = "category_snapshot";
+    private QueryExecutor mQueryExecutor;
+
+    // 选择导入文件的请求码
+    private static final int REQUEST_IMPORT = 1;
+
+    // 正在进行的导入及其进度对话框，配置变化时导入由新的 Activity 接管
+    private ImportTask mImportTask;
+    private ProgressDialog mImportDialog;
+
+    // 笔记数据在界面暂停期间发生变化时置位，恢复时才重新查询
+    private boolean mResumed = false;
+    private boolean mNotesDirty = true;
+
+    /**
+     * 监听笔记数据变化。界面可见时在后台重新查询，暂停期间只记录变化，避免每次 onResume 都重新查询。
+     */
+    private final ContentObserver mNotesObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // 上一次搜索的结果可能已经不准确
+            mSearchRefiner.reset();
+            if (mResumed) {
+                // 保持当前滚动位置，优先加载可见的那一页
+                refreshNotesList(getListView().getFirstVisiblePosition());
+            } else {
+                mNotesDirty = true;
+            }
+        }
+    };
+
+    /**
+     * 监听分类变化，重新加载分类快照，刷新列表中分类标签的颜色和打开的分类管理列表
+     */
+    private final CategoryRepository.Listener mCategoryListener = new CategoryRepository.Listener() {
+        @Override
+        public void onCategoriesChanged() {
+            loadCategorySnapshot();
+            if (mCategoryAdapter != null) {
+                mCategoryAdapter.refreshData();
+            }
+        }
+    };
 
 
     @Override
@@ -151,6 +188,14 @@ public class NotesList extends ListActivity {
         // 初始化搜索历史管理器
         mSearchHistoryManager = new SearchHistoryManager(this);
 
+        // 初始化后台查询执行器
+        mQueryExecutor = new QueryExecutor();
+
+        // 在后台加载分类，之后分类变化时重新加载
+        mCategoryRepository = CategoryRepository.getInstance(this);
+        mCategoryRepository.addListener(mCategoryListener);
+        loadCategorySnapshot();
+
         // 处理搜索意图
         handleSearchIntent(getIntent());
 
@@ -173,24 +218,31 @@ public class NotesList extends ListActivity {
 
         // 初始化列表
         initializeList();
+
+        // 接管配置变化前开始的导入
+        mImportTask = (ImportTask) getLastNonConfigurationInstance();
+        if (mImportTask != null) {
+            mImportTask.attach(this);
+        }
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mImportTask;
     }
     /**
-     * 初始化列表数据
+     * 初始化列表数据。分页数据源由后台查询在 onResume 时填充。
      */
     private void initializeList() {
-        Cursor cursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
-                null,
-                null,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
-
         // 使用自定义的NotesAdapter
-        mAdapter = new NotesAdapter(this, cursor);
+        mAdapter = new NotesAdapter();
 
         // 设置列表适配器
         setListAdapter(mAdapter);
+
+        // 数据变化由 mNotesObserver 在后台重新查询，适配器自身不再在主线程 requery
+        getContentResolver().registerContentObserver(
+                NotePad.Notes.CONTENT_URI, true, mNotesObserver);
     }
 
     /**
@@ -324,39 +376,104 @@ public class NotesList extends ListActivity {
     }
 
     // 在 Adapter 的 getView 方法中处理搜索高亮
-    private class NotesAdapter extends CursorAdapter {
-        public NotesAdapter(Context context, Cursor c) {
-            super(context, c);
+    private class NotesAdapter extends BaseAdapter implements NotesPageSource.Listener {
+        private NotesPageSource mSource;
+
+        /**
+         * 替换分页数据源，旧数据源会被关闭
+         */
+        public void setSource(NotesPageSource source) {
+            if (mSource != null) {
+                mSource.close();
+            }
+            mSource = source;
+            if (source != null) {
+                source.setListener(this);
+            }
+            notifyDataSetChanged();
         }
 
         @Override
-        public View newView(Context context, Cursor cursor, ViewGroup parent) {
-            return getLayoutInflater().inflate(R.layout.noteslist_item, parent, false);
+        public void onPageLoaded() {
+            notifyDataSetChanged();
         }
 
         @Override
-        public void bindView(View view, Context context, Cursor cursor) {
+        public int getCount() {
+            return mSource == null ? 0 : mSource.getCount();
+        }
+
+        /**
+         * 结果数量的显示文本，还没统计完时显示为“1000+”
+         */
+        public String getCountText() {
+            int count = getCount();
+            return mSource != null && mSource.hasMore() ? count + "+" : String.valueOf(count);
+        }
+
+        /**
+         * 返回指定位置的笔记，所在页尚未加载时返回 null
+         */
+        @Override
+        public NotesPageSource.Row getItem(int position) {
+            return mSource == null ? null : mSource.getRow(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            NotesPageSource.Row row = getItem(position);
+            return row == null ? AdapterView.INVALID_ROW_ID : row.id;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            if (view == null) {
+                view = getLayoutInflater().inflate(R.layout.noteslist_item, parent, false);
+            }
+            bindView(view, getItem(position));
+            return view;
+        }
+
+        private void bindView(View view, NotesPageSource.Row row) {
             TextView titleView = view.findViewById(android.R.id.text1);
             TextView timestampView = view.findViewById(R.id.text2);
             TextView categoryView = view.findViewById(R.id.category_label);
+            TextView snippetView = view.findViewById(R.id.note_snippet);
             TextView searchIndicator = view.findViewById(R.id.search_match_indicator);
 
-            // 使用正确的列索引获取数据
-            String title = cursor.getString(COLUMN_INDEX_TITLE);
-            String note = cursor.getString(COLUMN_INDEX_NOTE);
-            String category = cursor.getString(COLUMN_INDEX_CATEGORY);
-            long timestamp = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+            // 所在页还在加载，先显示空行
+            if (row == null) {
+                titleView.setText(null);
+                timestampView.setText(null);
+                categoryView.setText(null);
+                snippetView.setVisibility(View.GONE);
+                searchIndicator.setVisibility(View.GONE);
+                return;
+            }
+
+            String title = row.title;
+            String category = row.category;
+            long timestamp = row.modified;
+
+            // 搜索词或大小写选项变化时高亮缓存随之失效
+            mHighlighter.setQuery(mCurrentSearchQuery, mCaseSensitive);
 
             // 设置基本内容
             timestampView.setText(formatTimestamp(timestamp));
             categoryView.setText(category);
+            if (mCategorySnapshot != null) {
+                categoryView.setTextColor(mCategorySnapshot.getColor(category));
+            }
+            bindSnippet(snippetView, row);
 
             // 处理搜索高亮
             if (mIsSearchMode && !TextUtils.isEmpty(mCurrentSearchQuery)) {
-                // 高级高亮：检查标题、内容和分类中的匹配
-                boolean titleMatch = containsSearchTerm(title, mCurrentSearchQuery);
-                boolean contentMatch = containsSearchTerm(note, mCurrentSearchQuery);
-                boolean categoryMatch = containsSearchTerm(category, mCurrentSearchQuery);
+                // 高级高亮：检查标题、内容和分类中的匹配，结果由 mHighlighter 按行缓存
+                boolean titleMatch = mHighlighter.matchesTitle(row.id, title);
+                // 内容是否匹配由 provider 计算摘要时一并给出，不必扫描整篇笔记
+                boolean contentMatch = row.snippetMatch >= 0;
+                boolean categoryMatch = mHighlighter.matchesCategory(category);
 
                 if (titleMatch || contentMatch || categoryMatch) {
                     // 显示搜索匹配指示器
@@ -379,7 +496,7 @@ public class NotesList extends ListActivity {
 
                     // 应用高级高亮
                     if (titleMatch) {
-                        highlightSearchText(titleView, title, mCurrentSearchQuery, true);
+                        titleView.setText(mHighlighter.highlightTitle(row.id, title));
                     } else {
                         titleView.setText(title);
                     }
@@ -395,75 +512,20 @@ public class NotesList extends ListActivity {
         }
 
         /**
-         * 检查文本是否包含搜索词（支持大小写不敏感）
+         * 显示内容摘要，搜索模式下高亮摘要中的匹配位置
          */
-        private boolean containsSearchTerm(String text, String searchQuery) {
-            if (TextUtils.isEmpty(text) || TextUtils.isEmpty(searchQuery)) {
-                return false;
-            }
-
-            if (mCaseSensitive) {
-                return text.contains(searchQuery);
-            } else {
-                return text.toLowerCase().contains(searchQuery.toLowerCase());
-            }
-        }
-
-        /**
-         * 高亮搜索文本（支持多关键词）
-         */
-        private void highlightSearchText(TextView textView, String text, String searchQuery, boolean isTitle) {
-            if (TextUtils.isEmpty(text) || TextUtils.isEmpty(searchQuery)) {
-                textView.setText(text);
+        private void bindSnippet(TextView snippetView, NotesPageSource.Row row) {
+            if (TextUtils.isEmpty(row.snippet)) {
+                snippetView.setVisibility(View.GONE);
                 return;
             }
+            snippetView.setVisibility(View.VISIBLE);
 
-            SpannableString spannable = new SpannableString(text);
-            String lowerText = mCaseSensitive ? text : text.toLowerCase();
-            String lowerQuery = mCaseSensitive ? searchQuery : searchQuery.toLowerCase();
-
-            // 分割搜索词（支持多个关键词，用空格分隔）
-            String[] keywords = searchQuery.split("\\s+");
-
-            for (String keyword : keywords) {
-                if (TextUtils.isEmpty(keyword.trim())) {
-                    continue;
-                }
-
-                String lowerKeyword = mCaseSensitive ? keyword : keyword.toLowerCase();
-                int startIndex = 0;
-
-                while ((startIndex = lowerText.indexOf(lowerKeyword, startIndex)) != -1) {
-                    int endIndex = startIndex + keyword.length();
-
-                    // 根据匹配位置设置不同的高亮颜色
-                    int highlightColor;
-                    if (isTitle) {
-                        highlightColor = 0x80FFEB3B; // 标题高亮：黄色，半透明
-                    } else {
-                        highlightColor = 0x8003A9F4; // 内容高亮：蓝色，半透明
-                    }
-
-                    spannable.setSpan(
-                            new BackgroundColorSpan(highlightColor),
-                            startIndex,
-                            endIndex,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-                    );
-
-                    // 加粗匹配的文本
-                    spannable.setSpan(
-                            new StyleSpan(Typeface.BOLD),
-                            startIndex,
-                            endIndex,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-                    );
-
-                    startIndex = endIndex;
-                }
+            if (mIsSearchMode) {
+                snippetView.setText(mHighlighter.highlightSnippet(row.id, row.snippet, row.snippetMatch));
+            } else {
+                snippetView.setText(row.snippet);
             }
-
-            textView.setText(spannable);
         }
     }
 
@@ -546,10 +608,11 @@ public class NotesList extends ListActivity {
     private void performRealTimeSearch(String query, boolean immediate) {
         Log.d(TAG, "performRealTimeSearch called, query: " + query + ", immediate: " + immediate);
 
-        // 取消之前的搜索任务
+        // 取消之前的搜索任务；正在执行的查询针对的是已经输入过去的内容，也一并取消
         if (mSearchRunnable != null) {
             mSearchHandler.removeCallbacks(mSearchRunnable);
         }
+        mQueryExecutor.cancel(QUERY_NOTES);
 
         // 如果查询为空，立即清除搜索
         if (TextUtils.isEmpty(query)) {
@@ -617,7 +680,7 @@ public class NotesList extends ListActivity {
         // 在标题栏显示结果数量
         String title = "笔记";
         if (resultCount > 0) {
-            title += " (" + resultCount + " 个结果)";
+            title += " (" + mAdapter.getCountText() + " 个结果)";
         }
         setTitle(title);
 
@@ -859,11 +922,183 @@ public class NotesList extends ListActivity {
                 showCategoryFilterDialog();
             }
             return true;
+        } else if (id == R.id.menu_import) {
+            // 选择要导入的笔记文件
+            Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.setType("*/*");
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(intent, REQUEST_IMPORT);
+            return true;
         }
         // 其他菜单项已在onCreateOptionsMenu中设置监听器
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_IMPORT && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            importNotes(data.getData());
+        }
+    }
+
+    /**
+     * 在后台线程导入笔记文件，每提交一批更新一次进度，可以中途取消
+     */
+    private void importNotes(Uri uri) {
+        if (mImportTask != null) {
+            Toast.makeText(this, "正在导入，请稍候", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mImportTask = new ImportTask(getApplicationContext().getContentResolver(), uri);
+        mImportTask.start();
+        mImportTask.attach(this);
+    }
+
+    /**
+     * 显示导入进度对话框，Activity 重建后按最近一次进度重新显示
+     * @param progress 最近一次进度，还没有提交任何一批时为 null
+     */
+    private void showImportDialog(NotesImporter.Result progress) {
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setTitle("导入笔记");
+        mImportDialog.setMessage("正在导入...");
+        mImportDialog.setCancelable(false);
+        mImportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "取消",
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface d, int which) {
+                        if (mImportTask != null) {
+                            mImportTask.cancel();
+                        }
+                    }
+                });
+        mImportDialog.show();
+        if (progress != null) {
+            showImportProgress(progress);
+        }
+    }
+
+    private void showImportProgress(NotesImporter.Result progress) {
+        if (mImportDialog != null) {
+            mImportDialog.setMessage("已导入 " + progress.imported + " 条笔记，每秒 "
+                    + progress.getRowsPerSecond() + " 条");
+        }
+    }
+
+    /**
+     * 导入结束，取消的导入与完成的导入分别提示
+     * @param result 导入结果，读取或提交失败时为 null
+     */
+    private void onImportFinished(NotesImporter.Result result) {
+        mImportTask = null;
+        if (mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        if (result == null) {
+            Toast.makeText(this, "导入失败", Toast.LENGTH_SHORT).show();
+        } else if (result.cancelled) {
+            Toast.makeText(this, "导入已取消，已导入 " + result.imported + " 条笔记",
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, "已导入 " + result.imported + " 条笔记，跳过 " + result.skipped
+                    + " 行", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * 在自己的后台线程上导入笔记文件的任务，导入可能持续很久，不占用 {@link QueryExecutor} 的查询线程。
+     * 配置变化时通过 {@link #onRetainNonConfigurationInstance()} 交给新的 Activity；
+     * 进度和结果在主线程上交给当前关联的 Activity，没有关联时保留，关联时再显示。
+     */
+    private static class ImportTask implements Runnable, NotesImporter.ProgressListener {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final NotesImporter mImporter;
+
+        // 以下只在主线程上访问
+        private NotesList mActivity;
+        private NotesImporter.Result mProgress;
+        private boolean mFinished;
+        private NotesImporter.Result mResult;
+
+        ImportTask(ContentResolver resolver, Uri uri) {
+            mResolver = resolver;
+            mUri = uri;
+            mImporter = new NotesImporter(resolver, NotesImporter.DEFAULT_BATCH_SIZE, this);
+        }
+
+        void start() {
+            new Thread(this, "NotesImporter").start();
+        }
+
+        void cancel() {
+            mImporter.cancel();
+        }
+
+        /**
+         * 关联显示进度和结果的 Activity，传入 null 解除关联。导入已经结束时马上交给新的 Activity
+         */
+        void attach(NotesList activity) {
+            mActivity = activity;
+            if (activity == null) {
+                return;
+            }
+            if (mFinished) {
+                activity.onImportFinished(mResult);
+            } else {
+                activity.showImportDialog(mProgress);
+            }
+        }
+
+        @Override
+        public void run() {
+            NotesImporter.Result result = null;
+            try {
+                InputStream in = mResolver.openInputStream(mUri);
+                if (in == null) {
+                    throw new FileNotFoundException("Unable to open " + mUri);
+                }
+                try {
+                    result = mImporter.importNotes(in);
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                // 读取或提交失败，之前提交的批次保留
+                Log.e(TAG, "导入笔记失败: " + mUri, e);
+            }
+
+            final NotesImporter.Result finalResult = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mFinished = true;
+                    mResult = finalResult;
+                    if (mActivity != null) {
+                        mActivity.onImportFinished(finalResult);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onProgress(final NotesImporter.Result progress) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mProgress = progress;
+                    if (mActivity != null) {
+                        mActivity.showImportProgress(progress);
+                    }
+                }
+            });
+        }
+    }
+
 
     /**
      * 格式化时间戳为易读的日期时间字符串
@@ -1022,11 +1257,19 @@ public class NotesList extends ListActivity {
      * 显示分类筛选对话框
      */
     private void showCategoryFilterDialog() {
+        // 在后台加载分类列表，加载完成后再显示对话框
+        loadCategories(new QueryExecutor.Callback<List<String>>() {
+            @Override
+            public void onResult(List<String> categories) {
+                showCategoryFilterDialog(categories);
+            }
+        });
+    }
+
+    private void showCategoryFilterDialog(final List<String> categories) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("选择分类筛选");
 
-        // 加载分类列表
-        final List<String> categories = loadCategories();
         categories.add(0, "所有分类"); // 添加"所有分类"选项
 
         final String[] categoryArray = categories.toArray(new String[0]);
@@ -1078,31 +1321,35 @@ public class NotesList extends ListActivity {
     }
 
     /**
-     * 从数据库加载分类列表
+     * 在后台从分类仓库取分类列表，仓库已加载时不查询数据库
      */
-    private List<String> loadCategories() {
-        List<String> categories = new ArrayList<>();
-
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[] { NotePad.Categories.COLUMN_NAME_NAME },
-                null, null, NotePad.Categories.DEFAULT_SORT_ORDER
-        );
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                String categoryName = cursor.getString(0);
-                categories.add(categoryName);
+    private void loadCategories(QueryExecutor.Callback<List<String>> callback) {
+        mQueryExecutor.submit(QUERY_CATEGORY_NAMES, new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return mCategoryRepository.getSnapshot().getNames();
             }
-            cursor.close();
-        }
-
-        // 确保至少有一个默认分类
-        if (categories.isEmpty()) {
-            categories.add("默认分类");
-        }
+        }, callback);
+    }
 
-        return categories;
+    /**
+     * 在后台加载分类快照，完成后用新的颜色重新显示列表
+     */
+    private void loadCategorySnapshot() {
+        mQueryExecutor.submit(QUERY_CATEGORY_SNAPSHOT, new Callable<CategoryRepository.Snapshot>() {
+            @Override
+            public CategoryRepository.Snapshot call() {
+                return mCategoryRepository.getSnapshot();
+            }
+        }, new QueryExecutor.Callback<CategoryRepository.Snapshot>() {
+            @Override
+            public void onResult(CategoryRepository.Snapshot snapshot) {
+                mCategorySnapshot = snapshot;
+                if (mAdapter != null) {
+                    mAdapter.notifyDataSetChanged();
+                }
+            }
+        });
     }
 
     /**
@@ -1121,9 +1368,10 @@ public class NotesList extends ListActivity {
         Button cancelButton = dialogView.findViewById(R.id.cancel_button);
         Button confirmButton = dialogView.findViewById(R.id.confirm_button);
 
-        // 加载分类列表
+        // 加载分类列表，对话框打开期间分类变化时自动刷新
         final CategoryAdapter categoryAdapter = new CategoryAdapter();
         categoriesList.setAdapter(categoryAdapter);
+        mCategoryAdapter = categoryAdapter;
 
         // 添加分类按钮点击事件
         addCategoryButton.setOnClickListener(new View.OnClickListener() {
@@ -1133,7 +1381,6 @@ public class NotesList extends ListActivity {
                 if (!TextUtils.isEmpty(categoryName)) {
                     addCategory(categoryName);
                     categoryNameInput.setText("");
-                    categoryAdapter.refreshData();
                 } else {
                     Toast.makeText(NotesList.this, "请输入分类名称", Toast.LENGTH_SHORT).show();
                 }
@@ -1141,6 +1388,14 @@ public class NotesList extends ListActivity {
         });
 
         final AlertDialog dialog = builder.create();
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface d) {
+                if (mCategoryAdapter == categoryAdapter) {
+                    mCategoryAdapter = null;
+                }
+            }
+        });
 
         // 设置取消按钮关闭对话框
         cancelButton.setOnClickListener(new View.OnClickListener() {
@@ -1168,11 +1423,10 @@ public class NotesList extends ListActivity {
     private void addCategory(String categoryName) {
         ContentValues values = new ContentValues();
         values.put(NotePad.Categories.COLUMN_NAME_NAME, categoryName);
-        values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF2196F3); // 默认蓝色
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, CategoryRepository.DEFAULT_COLOR);
 
         try {
             getContentResolver().insert(NotePad.Categories.CONTENT_URI, values);
-            CATEGORY_COLORS.put(categoryName, 0xFF2196F3); // 添加到颜色映射
             Toast.makeText(this, "分类添加成功", Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
             Toast.makeText(this, "分类添加失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
@@ -1183,7 +1437,7 @@ public class NotesList extends ListActivity {
     /**
      * 编辑分类
      */
-    private void editCategory(final String oldName, final int categoryId) {
+    private void editCategory(final String oldName, final long categoryId, int color) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         LayoutInflater inflater = getLayoutInflater();
         View dialogView = inflater.inflate(R.layout.edit_category_dialog, null);
@@ -1197,7 +1451,7 @@ public class NotesList extends ListActivity {
         categoryNameEdit.setText(oldName);
 
         // 创建颜色选择器
-        createColorPalette(colorPalette, CATEGORY_COLORS.get(oldName));
+        createColorPalette(colorPalette, color);
 
         final AlertDialog dialog = builder.create();
 
@@ -1283,7 +1537,7 @@ public class NotesList extends ListActivity {
     /**
      * 更新分类
      */
-    private void updateCategory(int categoryId, String oldName, String newName, int color) {
+    private void updateCategory(long categoryId, String oldName, String newName, int color) {
         ContentValues values = new ContentValues();
         values.put(NotePad.Categories.COLUMN_NAME_NAME, newName);
         values.put(NotePad.Categories.COLUMN_NAME_COLOR, color);
@@ -1293,12 +1547,7 @@ public class NotesList extends ListActivity {
         try {
             getContentResolver().update(categoryUri, values, null, null);
 
-            // 更新颜色映射
-            CATEGORY_COLORS.remove(oldName);
-            CATEGORY_COLORS.put(newName, color);
-
-            // 更新所有使用该分类的笔记
-            updateNotesCategory(oldName, newName);
+            // 笔记只保存分类 id，改名不需要更新笔记；分类仓库收到修改后自动更新
 
             Toast.makeText(this, "分类更新成功", Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
@@ -1308,24 +1557,24 @@ public class NotesList extends ListActivity {
     }
 
     /**
-     * 更新笔记的分类
+     * 把一个分类下的笔记移动到另一个分类
      */
-    private void updateNotesCategory(String oldCategory, String newCategory) {
+    private void updateNotesCategory(long oldCategoryId, String newCategory) {
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, newCategory);
 
         getContentResolver().update(
                 NotePad.Notes.CONTENT_URI,
                 values,
-                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?",
-                new String[] { oldCategory }
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(oldCategoryId) }
         );
     }
 
     /**
      * 删除分类
      */
-    private void deleteCategory(final int categoryId, final String categoryName) {
+    private void deleteCategory(final long categoryId, final String categoryName) {
         new AlertDialog.Builder(this)
                 .setTitle("确认删除")
                 .setMessage("确定要删除分类 \"" + categoryName + "\" 吗？所有属于该分类的笔记将被移动到\"默认分类\"。")
@@ -1333,15 +1582,12 @@ public class NotesList extends ListActivity {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         // 先将该分类下的笔记移动到默认分类
-                        updateNotesCategory(categoryName, "默认分类");
+                        updateNotesCategory(categoryId, "默认分类");
 
                         // 然后删除分类
                         Uri categoryUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, categoryId);
                         getContentResolver().delete(categoryUri, null, null);
 
-                        // 从颜色映射中移除
-                        CATEGORY_COLORS.remove(categoryName);
-
                         Toast.makeText(NotesList.this, "分类已删除", Toast.LENGTH_SHORT).show();
                         refreshNotesList();
                     }
@@ -1351,38 +1597,74 @@ public class NotesList extends ListActivity {
     }
 
     /**
-     * 刷新笔记列表（支持高级搜索）
+     * 刷新笔记列表并回到列表开头
      */
     private void refreshNotesList() {
+        refreshNotesList(0);
+    }
+
+    /**
+     * 刷新笔记列表（支持高级搜索）。总行数和第一页在后台线程读取，完成后在主线程替换列表的数据源，
+     * 其余页面在滚动时按需加载；新的刷新会取代尚未完成的旧查询。
+     * @param anchorPosition 需要首先加载的位置，通常是当前第一个可见项
+     */
+    private void refreshNotesList(final int anchorPosition) {
+        mNotesDirty = false;
+
         // 构建查询条件
+        Uri queryUri = getIntent().getData();
         String selection = null;
         String[] selectionArgs = null;
         List<String> selectionArgsList = new ArrayList<>();
 
-        // 处理分类筛选
+        // 处理分类筛选：先按名称查出分类 id，再走笔记表上的分类索引
         if (mCurrentFilterCategory != null && !mCurrentFilterCategory.equals("所有分类")) {
-            selection = NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
+            selection = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = (SELECT "
+                    + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                    + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = ?)";
             selectionArgsList.add(mCurrentFilterCategory);
         }
 
+        // LIKE 搜索的匹配范围：搜索选项和筛选条件相同、搜索词包含上一次的搜索词时，
+        // 只在上一次的结果中筛选；全词匹配不满足包含关系，不做增量搜索
+        String refineKey = null;
+        List<String> refineTerms = null;
+
         // 处理搜索查询
-        if (!TextUtils.isEmpty(mCurrentSearchQuery)) {
-            // 构建高级搜索条件
-            String searchCondition = buildAdvancedSearchCondition();
+        if (!TextUtils.isEmpty(mCurrentSearchQuery) && canUseFullTextSearch()) {
+            // 默认搜索选项下走全文索引，由 provider 完成匹配，与 LIKE 条件一样也匹配分类名称；
+            // 分类筛选条件叠加在匹配结果上
+            Uri.Builder searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, mCurrentSearchQuery);
+            if (mSortByRelevance) {
+                // 标题中的匹配优先，最相关的排在前面
+                searchUri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_RELEVANCE,
+                        String.valueOf(RELEVANCE_RESULTS));
+            }
+            if (mWholeWord) {
+                // 全词匹配使用分词后的全词索引，中文按相邻两字切分，可以匹配词语的任意部分
+                searchUri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_WHOLE_WORD, "true");
+            }
+            queryUri = searchUri.build();
+        } else if (!TextUtils.isEmpty(mCurrentSearchQuery)) {
+            // 构建高级搜索条件，参数按条件中的顺序加在分类参数之后
+            SearchQuery query = SearchQuery.parse(mCurrentSearchQuery);
+            String searchCondition = query.toLikeSelection(getSearchColumns(), mCaseSensitive,
+                    mWholeWord, selectionArgsList);
 
             if (selection == null) {
                 selection = searchCondition;
-                // 添加搜索参数
-                String[] searchArgs = getSearchArgs(mCurrentSearchQuery);
-                for (String arg : searchArgs) {
-                    selectionArgsList.add(arg);
-                }
             } else {
                 selection += " AND " + searchCondition;
-                // 添加搜索参数
-                String[] searchArgs = getSearchArgs(mCurrentSearchQuery);
-                for (String arg : searchArgs) {
-                    selectionArgsList.add(arg);
+            }
+
+            // 只有由普通词组成的搜索满足包含关系，带 OR、NOT、引号或字段的搜索每次完整查询
+            if (!mWholeWord && query.isSimple()) {
+                refineKey = mSearchInTitle + "|" + mSearchInContent + "|" + mCaseSensitive + "|"
+                        + mCurrentFilterCategory;
+                refineTerms = new ArrayList<String>();
+                for (String term : query.getTerms()) {
+                    refineTerms.add(mCaseSensitive ? term : term.toLowerCase());
                 }
             }
         }
@@ -1392,148 +1674,107 @@ public class NotesList extends ListActivity {
             selectionArgs = selectionArgsList.toArray(new String[0]);
         }
 
-        Log.d(TAG, "查询条件 - selection: " + selection + ", args: " + Arrays.toString(selectionArgs));
-
-        // 执行查询
-        Cursor newCursor = getContentResolver().query(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
-
-        // 更新适配器的游标
-        if (mAdapter != null) {
-            Cursor oldCursor = mAdapter.swapCursor(newCursor);
-            if (oldCursor != null) {
-                oldCursor.close();
-            }
-
-            // 如果有搜索词，保存搜索历史
-            if (!TextUtils.isEmpty(mCurrentSearchQuery) && newCursor != null) {
-                int resultCount = newCursor.getCount();
-                mSearchHistoryManager.saveSearchQuery(mCurrentSearchQuery, resultCount);
+        // 让 provider 把内容摘要截取在笔记中出现的第一个搜索词附近，并给出匹配位置；
+        // 大小写和全词选项与搜索一致，内容是否匹配才与搜索结果相符
+        List<String> terms = SearchQuery.parse(mCurrentSearchQuery).getContentTerms();
+        if (!terms.isEmpty()) {
+            Uri.Builder highlightUri = queryUri.buildUpon();
+            for (String term : terms) {
+                highlightUri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT, term);
             }
-        }
-
-        // 更新界面状态
-        updateUIState();
-    }
-
-    /**
-     * 构建高级搜索条件
-     */
-    private String buildAdvancedSearchCondition() {
-        List<String> conditions = new ArrayList<>();
-        String searchPattern = mCurrentSearchQuery;
-
-        // 处理大小写敏感
-        if (!mCaseSensitive) {
-            // 如果不区分大小写，使用LOWER函数
-            searchPattern = searchPattern.toLowerCase();
-        }
-
-        // 处理全词匹配
-        if (mWholeWord) {
-            searchPattern = " " + searchPattern + " ";
-        }
-
-        // 构建搜索模式
-        String likePattern = "%" + searchPattern + "%";
-
-        // 添加标题搜索条件
-        if (mSearchInTitle) {
             if (mCaseSensitive) {
-                conditions.add(NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?");
-            } else {
-                conditions.add("LOWER(" + NotePad.Notes.COLUMN_NAME_TITLE + ") LIKE ?");
+                highlightUri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_CASE_SENSITIVE,
+                        "true");
             }
-        }
-
-        // 添加内容搜索条件
-        if (mSearchInContent) {
-            if (mCaseSensitive) {
-                conditions.add(NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?");
-            } else {
-                conditions.add("LOWER(" + NotePad.Notes.COLUMN_NAME_NOTE + ") LIKE ?");
+            if (mWholeWord) {
+                highlightUri.appendQueryParameter(
+                        NotePad.Notes.QUERY_PARAMETER_HIGHLIGHT_WHOLE_WORD, "true");
             }
+            queryUri = highlightUri.build();
         }
 
-        // 添加分类搜索条件
-        if (mSearchInTitle && mSearchInContent) {
-            if (mCaseSensitive) {
-                conditions.add(NotePad.Notes.COLUMN_NAME_CATEGORY + " LIKE ?");
-            } else {
-                conditions.add("LOWER(" + NotePad.Notes.COLUMN_NAME_CATEGORY + ") LIKE ?");
-            }
-        }
-
-        // 如果没有选择任何搜索范围，默认搜索标题和内容
-        if (conditions.isEmpty()) {
-            if (mCaseSensitive) {
-                conditions.add(NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?");
-                conditions.add(NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?");
-            } else {
-                conditions.add("LOWER(" + NotePad.Notes.COLUMN_NAME_TITLE + ") LIKE ?");
-                conditions.add("LOWER(" + NotePad.Notes.COLUMN_NAME_NOTE + ") LIKE ?");
-            }
-        }
+        Log.d(TAG, "查询条件 - selection: " + selection + ", args: " + Arrays.toString(selectionArgs));
 
-        // 组合条件
-        if (conditions.size() == 1) {
-            return conditions.get(0);
-        } else {
-            StringBuilder sb = new StringBuilder("(");
-            for (int i = 0; i < conditions.size(); i++) {
-                if (i > 0) {
-                    sb.append(" OR ");
+        // 在后台执行查询
+        final Uri finalUri = queryUri;
+        final String finalSelection = selection;
+        final String[] finalSelectionArgs = selectionArgs;
+        final String searchQuery = mCurrentSearchQuery;
+        final String finalRefineKey = refineKey;
+        final List<String> finalRefineTerms = refineTerms;
+        mQueryExecutor.submit(QUERY_NOTES, new QueryExecutor.CancellableQuery<NotesPageSource>() {
+            @Override
+            public NotesPageSource call(CancellationSignal signal) {
+                String pageSelection = finalSelection;
+                String[] pageSelectionArgs = finalSelectionArgs;
+                if (finalRefineKey != null) {
+                    // 先查出匹配的笔记，分页和计数只按 ID 读取，不必每页重复 LIKE 扫描
+                    long[] ids = mSearchRefiner.search(getContentResolver(), finalUri, finalSelection,
+                            finalSelectionArgs, finalRefineKey, finalRefineTerms, signal);
+                    if (ids != null) {
+                        pageSelection = SearchRefiner.getIdSelection(ids);
+                        pageSelectionArgs = null;
+                    }
                 }
-                sb.append(conditions.get(i));
+                NotesPageSource source = new NotesPageSource(getContentResolver(), mQueryExecutor,
+                        finalUri, pageSelection, pageSelectionArgs);
+                source.loadInitial(anchorPosition, signal);
+                return source;
             }
-            sb.append(")");
-            return sb.toString();
-        }
+        }, new QueryExecutor.Callback<NotesPageSource>() {
+            @Override
+            public void onResult(NotesPageSource source) {
+                onNotesLoaded(source, searchQuery);
+            }
+        });
     }
 
     /**
-     * 获取搜索参数
+     * 后台查询完成后更新列表
      */
-    private String[] getSearchArgs(String query) {
-        List<String> args = new ArrayList<>();
-        String searchPattern = query;
-
-        if (!mCaseSensitive) {
-            searchPattern = searchPattern.toLowerCase();
-        }
-
-        if (mWholeWord) {
-            searchPattern = " " + searchPattern + " ";
+    private void onNotesLoaded(NotesPageSource source, String searchQuery) {
+        // 更新适配器的数据源
+        if (mAdapter == null) {
+            source.close();
+            return;
         }
 
-        String likePattern = "%" + searchPattern + "%";
-
-        // 根据搜索条件添加参数
-        if (mSearchInTitle) {
-            args.add(likePattern);
-        }
+        mAdapter.setSource(source);
 
-        if (mSearchInContent) {
-            args.add(likePattern);
+        // 如果有搜索词，保存搜索历史
+        if (!TextUtils.isEmpty(searchQuery)) {
+            mSearchHistoryManager.saveSearchQuery(searchQuery, source.getCount());
         }
 
-        // 如果同时搜索标题和内容，也搜索分类
-        if (mSearchInTitle && mSearchInContent) {
-            args.add(likePattern);
-        }
+        // 更新界面状态
+        updateUIState();
+    }
 
-        // 如果没有选择任何搜索范围，默认搜索标题和内容
-        if (args.isEmpty()) {
-            args.add(likePattern);
-            args.add(likePattern);
-        }
+    /**
+     * 判断当前搜索选项能否使用全文索引。全文索引按词前缀（全词匹配时按整词）匹配标题和内容
+     * （不含分类名称），不区分大小写；区分大小写或只搜索部分字段时仍使用 LIKE 条件。
+     */
+    private boolean canUseFullTextSearch() {
+        return mSearchInTitle && mSearchInContent && !mCaseSensitive;
+    }
 
-        return args.toArray(new String[0]);
+    /**
+     * 没有指定字段的搜索词要匹配的列：同时搜索标题和内容时也搜索分类名称，
+     * 没有选择任何搜索范围时搜索标题和内容
+     */
+    private String[] getSearchColumns() {
+        if (mSearchInTitle && mSearchInContent) {
+            return new String[] {
+                    NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_NOTE,
+                    NotePad.Notes.COLUMN_NAME_CATEGORY
+            };
+        } else if (mSearchInTitle) {
+            return new String[] { NotePad.Notes.COLUMN_NAME_TITLE };
+        } else if (mSearchInContent) {
+            return new String[] { NotePad.Notes.COLUMN_NAME_NOTE };
+        }
+        return new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
     }
 
     /**
@@ -1572,6 +1813,12 @@ public class NotesList extends ListActivity {
         wordCheckBox.setChecked(mWholeWord);
         layout.addView(wordCheckBox);
 
+// 按相关度排序复选框，只对全文搜索生效
+        final CheckBox relevanceCheckBox = new CheckBox(this);
+        relevanceCheckBox.setText("按相关度排序");
+        relevanceCheckBox.setChecked(mSortByRelevance);
+        layout.addView(relevanceCheckBox);
+
         builder.setView(layout);
 
         // 设置按钮
@@ -1583,6 +1830,7 @@ public class NotesList extends ListActivity {
                 mSearchInContent = contentCheckBox.isChecked();
                 mCaseSensitive = caseCheckBox.isChecked();
                 mWholeWord = wordCheckBox.isChecked();
+                mSortByRelevance = relevanceCheckBox.isChecked();
 
                 // 如果当前有搜索，重新执行搜索
                 if (!TextUtils.isEmpty(mCurrentSearchQuery)) {
@@ -1604,6 +1852,7 @@ public class NotesList extends ListActivity {
                 mSearchInContent = true;
                 mCaseSensitive = false;
                 mWholeWord = false;
+                mSortByRelevance = false;
 
                 Toast.makeText(NotesList.this, "搜索选项已重置", Toast.LENGTH_SHORT).show();
             }
@@ -1621,6 +1870,9 @@ public class NotesList extends ListActivity {
 
         if (mCurrentSearchQuery != null && !mCurrentSearchQuery.isEmpty()) {
             titleBuilder.append(" - 搜索: ").append(mCurrentSearchQuery);
+            if (mAdapter != null && mAdapter.getCount() > 0) {
+                titleBuilder.append(" (").append(mAdapter.getCountText()).append(" 个结果)");
+            }
         }
 
         if (mCurrentFilterCategory != null && !mCurrentFilterCategory.equals("所有分类")) {
@@ -1659,38 +1911,28 @@ public class NotesList extends ListActivity {
      * 分类列表适配器
      */
     private class CategoryAdapter extends BaseAdapter {
-        private List<Category> categories = new ArrayList<>();
+        private List<CategoryRepository.Category> categories = new ArrayList<>();
 
         public CategoryAdapter() {
             refreshData();
         }
 
+        /**
+         * 在后台从分类仓库取分类，完成后刷新列表
+         */
         public void refreshData() {
-            categories.clear();
-            Cursor cursor = getContentResolver().query(
-                    NotePad.Categories.CONTENT_URI,
-                    new String[] {
-                            NotePad.Categories._ID,
-                            NotePad.Categories.COLUMN_NAME_NAME,
-                            NotePad.Categories.COLUMN_NAME_COLOR
-                    },
-                    null, null, NotePad.Categories.DEFAULT_SORT_ORDER
-            );
-
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Category category = new Category();
-                    category.id = cursor.getInt(0);
-                    category.name = cursor.getString(1);
-                    category.color = cursor.getInt(2);
-                    categories.add(category);
-
-                    // 更新颜色映射
-                    CATEGORY_COLORS.put(category.name, category.color);
+            mQueryExecutor.submit(QUERY_CATEGORIES, new Callable<List<CategoryRepository.Category>>() {
+                @Override
+                public List<CategoryRepository.Category> call() {
+                    return mCategoryRepository.getSnapshot().getCategories();
                 }
-                cursor.close();
-            }
-            notifyDataSetChanged();
+            }, new QueryExecutor.Callback<List<CategoryRepository.Category>>() {
+                @Override
+                public void onResult(List<CategoryRepository.Category> loaded) {
+                    categories = loaded;
+                    notifyDataSetChanged();
+                }
+            });
         }
 
         @Override
@@ -1699,7 +1941,7 @@ public class NotesList extends ListActivity {
         }
 
         @Override
-        public Category getItem(int position) {
+        public CategoryRepository.Category getItem(int position) {
             return categories.get(position);
         }
 
@@ -1723,7 +1965,7 @@ public class NotesList extends ListActivity {
                 holder = (ViewHolder) convertView.getTag();
             }
 
-            final Category category = getItem(position);
+            final CategoryRepository.Category category = getItem(position);
             holder.nameView.setText(category.name);
             holder.colorView.setBackgroundColor(category.color);
 
@@ -1731,7 +1973,7 @@ public class NotesList extends ListActivity {
             holder.editButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    editCategory(category.name, category.id);
+                    editCategory(category.name, category.id, category.color);
                 }
             });
 
@@ -1754,15 +1996,6 @@ public class NotesList extends ListActivity {
         }
     }
 
-    /**
-     * 分类数据模型
-     */
-    private static class Category {
-        int id;
-        String name;
-        int color;
-    }
-
     @Override
     public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
 
@@ -1775,10 +2008,10 @@ public class NotesList extends ListActivity {
             return;
         }
 
-        // 获取选中项的数据
-        Cursor cursor = (Cursor) getListAdapter().getItem(info.position);
+        // 获取选中项的数据，所在页尚未加载时不显示菜单
+        NotesPageSource.Row row = mAdapter.getItem(info.position);
 
-        if (cursor == null) {
+        if (row == null) {
             return;
         }
 
@@ -1787,7 +2020,7 @@ public class NotesList extends ListActivity {
         inflater.inflate(R.menu.list_context_menu, menu);
 
         // 设置菜单标题为选中笔记的标题
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        menu.setHeaderTitle(row.title);
 
         // 添加其他Activity可以处理的操作
         Intent intent = new Intent(null, Uri.withAppendedPath(getIntent().getData(),
@@ -1848,6 +2081,11 @@ public class NotesList extends ListActivity {
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
 
+        // 所在页尚未加载的空行
+        if (id == AdapterView.INVALID_ROW_ID) {
+            return;
+        }
+
         // 构建新的URI
         Uri uri = ContentUris.withAppendedId(getIntent().getData(), id);
 
@@ -1864,14 +2102,48 @@ public class NotesList extends ListActivity {
     }
 
     /**
-     * 当从其他Activity返回时刷新列表
+     * 当从其他Activity返回时，只有在数据发生变化时才刷新列表
      */
     @Override
     protected void onResume() {
         super.onResume();
-        // 刷新列表以显示可能的更改
-        refreshNotesList();
+        mResumed = true;
+
+        // 刷新列表以显示暂停期间的更改
+        if (mNotesDirty) {
+            refreshNotesList(getListView().getFirstVisiblePosition());
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+
+        // 离开界面时写入尚未保存的搜索历史
+        mSearchHistoryManager.flush();
+    }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mNotesObserver);
+        mCategoryRepository.removeListener(mCategoryListener);
+        mQueryExecutor.shutdown();
+        if (mAdapter != null) {
+            mAdapter.setSource(null);
+        }
+        if (mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        if (mImportTask != null) {
+            mImportTask.attach(null);
+            // 配置变化时由新的 Activity 接管，否则没有界面能显示结果，停止导入
+            if (!isChangingConfigurations()) {
+                mImportTask.cancel();
+            }
+        }
     }
 
     /**
@@ -0,0 +1,367 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.util.SparseArray;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 笔记列表的分页数据源
+ * 按 (modified DESC, _id DESC) 排序，每次只读取固定大小的一页，列表滚动到哪一页才加载哪一页。
+ * 已知上一页最后一行时用键集条件 (modified, _id) 定位下一页，跳转到未加载过的位置时退回 OFFSET 查询。
+ * 内存中只缓存最近访问的若干页，因此内存占用和首屏耗时与笔记总数无关。
+ * 总行数也分段统计：一次最多数 {@link #COUNT_STEP} 行，超过时先按这个数目显示，
+ * 列表滚动到末尾附近时再往后数一段，因此首屏不必数完所有匹配的笔记。
+ * 按相关度排序的搜索（URI 带 {@link NotePad.Notes#QUERY_PARAMETER_RELEVANCE}）由 provider 决定顺序，
+ * 只有最相关的若干条，分页只用 OFFSET。
+ *
+ * 除 {@link #loadInitial(int, CancellationSignal)} 外，所有方法都必须在主线程调用；页面查询通过
+ * {@link QueryExecutor} 在后台执行，被取代时正在执行的查询随之取消。
+ */
+public class NotesPageSource implements Closeable {
+
+    /**
+     * 每页行数
+     */
+    public static final int PAGE_SIZE = 50;
+
+    // 最多缓存的页数，超出时淘汰最久未访问的页
+    private static final int MAX_CACHED_PAGES = 8;
+
+    // 距离页尾不足这么多行时预取下一页
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /**
+     * 一次最多统计的行数
+     */
+    public static final int COUNT_STEP = 1000;
+
+    // 后台查询通道前缀，新数据源的同一页会取代旧数据源尚未完成的加载
+    private static final String QUERY_PAGE = "notes_page_";
+
+    // 继续统计总行数的后台查询通道
+    private static final String QUERY_COUNT = "notes_count";
+
+    static final String SORT_ORDER = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+            + NotePad.Notes._ID + " DESC";
+
+    // 排在 (modified, _id) 之后的行
+    static final String KEYSET_SELECTION = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR ("
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = ? AND " + NotePad.Notes._ID + " < ?)";
+
+    // 列表只需要这些列，测试检查查询计划时也使用
+    static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 3
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 4 - 内容摘要，由 provider 截取，不读取整篇笔记
+            NotePad.Notes.COLUMN_NAME_SNIPPET_MATCH, // 5 - 搜索词在摘要中的位置
+    };
+
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_TITLE = 1;
+    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
+    private static final int COLUMN_INDEX_CATEGORY = 3;
+    private static final int COLUMN_INDEX_SNIPPET = 4;
+    private static final int COLUMN_INDEX_SNIPPET_MATCH = 5;
+
+    /**
+     * 列表中的一行笔记
+     */
+    public static class Row {
+        public long id;
+        public String title;
+        public long modified;
+        public String category;
+        public String snippet;
+        // 搜索词在摘要中的位置，内容不包含搜索词时为 -1
+        public int snippetMatch;
+    }
+
+    /**
+     * 页面加载完成的回调，在主线程调用
+     */
+    public interface Listener {
+        void onPageLoaded();
+    }
+
+    private final ContentResolver mResolver;
+    private final QueryExecutor mExecutor;
+    private final Uri mUri;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    // 按相关度排序时最多的行数，否则为 0
+    private final int mRelevance;
+
+    private int mCount;
+    // 已统计的行数之后是否还有行，以及是否正在继续统计
+    private boolean mHasMore;
+    private boolean mCounting;
+    private Listener mListener;
+    private boolean mClosed;
+
+    // 最近访问的页，按访问顺序淘汰
+    private final Map<Integer, List<Row>> mPages =
+            new LinkedHashMap<Integer, List<Row>>(MAX_CACHED_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<Row>> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+
+    // 每个加载过的页最后一行的 (modified, _id)，页被淘汰后仍保留，用于键集定位相邻页
+    private final SparseArray<long[]> mPageEnds = new SparseArray<long[]>();
+
+    // 正在加载的页
+    private final Set<Integer> mLoading = new HashSet<Integer>();
+
+    public NotesPageSource(ContentResolver resolver, QueryExecutor executor, Uri uri,
+                           String selection, String[] selectionArgs) {
+        mResolver = resolver;
+        mExecutor = executor;
+        mUri = uri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        String relevance = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_RELEVANCE);
+        mRelevance = relevance == null ? 0 : Integer.parseInt(relevance);
+    }
+
+    /**
+     * 同步读取总行数和指定位置所在的页，在后台线程调用，完成后再交给主线程使用。
+     * @param anchorPosition 需要首先显示的位置，超出总行数时加载最后一页
+     * @param signal 取消查询的信号，取消后抛出 {@link android.os.OperationCanceledException}，可以为 null
+     */
+    public void loadInitial(int anchorPosition, CancellationSignal signal) {
+        setCount(0, queryCount(0, signal));
+        if (mCount == 0) {
+            return;
+        }
+
+        int page = Math.min(anchorPosition, mCount - 1) / PAGE_SIZE;
+        putPage(page, queryPage(page, null, signal));
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 已统计的行数，{@link #hasMore()} 为 true 时实际行数更多
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * 是否还有没统计的行；列表滚动到末尾附近时会继续统计，完成后通过 {@link Listener} 通知
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /**
+     * 获取指定位置的行。所在页尚未加载时发起后台加载并返回 null，加载完成后通过 {@link Listener} 通知。
+     */
+    public Row getRow(int position) {
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+
+        int page = position / PAGE_SIZE;
+        int offset = position % PAGE_SIZE;
+
+        // 接近页尾时提前加载下一页，避免滚动时出现空行
+        if (offset >= PAGE_SIZE - PREFETCH_DISTANCE && (page + 1) * PAGE_SIZE < mCount) {
+            requestPage(page + 1);
+        }
+
+        // 接近已统计的末尾时继续往后统计
+        if (mHasMore && position >= mCount - PREFETCH_DISTANCE) {
+            requestCount();
+        }
+
+        List<Row> rows = mPages.get(page);
+        if (rows == null) {
+            requestPage(page);
+            return null;
+        }
+        return offset < rows.size() ? rows.get(offset) : null;
+    }
+
+    /**
+     * 释放缓存的页面，之后完成的加载结果会被丢弃
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mListener = null;
+        mPages.clear();
+        mPageEnds.clear();
+        mLoading.clear();
+    }
+
+    private void requestCount() {
+        if (mClosed || mCounting) {
+            return;
+        }
+        mCounting = true;
+
+        final int counted = mCount;
+        mExecutor.submit(QUERY_COUNT, new QueryExecutor.CancellableQuery<Integer>() {
+            @Override
+            public Integer call(CancellationSignal signal) {
+                return queryCount(counted, signal);
+            }
+        }, new QueryExecutor.FailureCallback<Integer>() {
+            @Override
+            public void onResult(Integer count) {
+                if (mClosed) {
+                    return;
+                }
+                mCounting = false;
+                setCount(counted, count);
+                if (mListener != null) {
+                    mListener.onPageLoaded();
+                }
+            }
+
+            @Override
+            public void onFailed() {
+                // 统计失败或被取消时允许之后再次统计，列表再滚动到末尾附近时重试
+                mCounting = false;
+            }
+        });
+    }
+
+    /**
+     * 记录从 counted 行之后统计到的行数，多出的一行只表示后面还有
+     */
+    private void setCount(int counted, int count) {
+        mHasMore = count > COUNT_STEP;
+        mCount = counted + Math.min(count, COUNT_STEP);
+    }
+
+    private void requestPage(final int page) {
+        if (mClosed || mPages.containsKey(page) || mLoading.contains(page)) {
+            return;
+        }
+        mLoading.add(page);
+
+        // 上一页的末行在主线程取出，后台只读取不可变的查询参数；按相关度排序时不能用键集定位
+        final long[] after = page > 0 && mRelevance == 0 ? mPageEnds.get(page - 1) : null;
+        mExecutor.submit(QUERY_PAGE + page, new QueryExecutor.CancellableQuery<List<Row>>() {
+            @Override
+            public List<Row> call(CancellationSignal signal) {
+                return queryPage(page, after, signal);
+            }
+        }, new QueryExecutor.FailureCallback<List<Row>>() {
+            @Override
+            public void onResult(List<Row> rows) {
+                if (mClosed) {
+                    return;
+                }
+                mLoading.remove(page);
+                putPage(page, rows);
+                if (mListener != null) {
+                    mListener.onPageLoaded();
+                }
+            }
+
+            @Override
+            public void onFailed() {
+                // 加载失败或被取消时允许再次加载，再显示到这一页时重试
+                mLoading.remove(page);
+            }
+        });
+    }
+
+    private void putPage(int page, List<Row> rows) {
+        mPages.put(page, rows);
+        if (!rows.isEmpty()) {
+            Row last = rows.get(rows.size() - 1);
+            mPageEnds.put(page, new long[] { last.modified, last.id });
+        }
+    }
+
+    /**
+     * 统计 offset 行之后的行数，最多数到 {@link #COUNT_STEP} + 1 行，在后台线程执行
+     */
+    private int queryCount(int offset, CancellationSignal signal) {
+        Uri uri = mUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_COUNT, "true")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(COUNT_STEP + 1))
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET, String.valueOf(offset))
+                .build();
+        Cursor cursor = mResolver.query(uri, null, mSelection, mSelectionArgs, null, signal);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 读取一页数据，在后台线程执行
+     * @param after 上一页最后一行的 (modified, _id)，为 null 时按页号计算 OFFSET
+     */
+    private List<Row> queryPage(int page, long[] after, CancellationSignal signal) {
+        Uri.Builder uri = mUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE));
+        String selection = mSelection;
+        String[] selectionArgs = mSelectionArgs;
+
+        if (after != null) {
+            // 键集定位：只需跳过索引上的比较，不必像 OFFSET 那样扫描前面所有行
+            selection = selection == null ? KEYSET_SELECTION
+                    : "(" + selection + ") AND (" + KEYSET_SELECTION + ")";
+            int length = selectionArgs == null ? 0 : selectionArgs.length;
+            String[] args = new String[length + 3];
+            if (length > 0) {
+                System.arraycopy(selectionArgs, 0, args, 0, length);
+            }
+            args[length] = String.valueOf(after[0]);
+            args[length + 1] = String.valueOf(after[0]);
+            args[length + 2] = String.valueOf(after[1]);
+            selectionArgs = args;
+        } else if (page > 0) {
+            uri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET,
+                    String.valueOf(page * PAGE_SIZE));
+        }
+
+        List<Row> rows = new ArrayList<Row>(PAGE_SIZE);
+        Cursor cursor = mResolver.query(uri.build(), PROJECTION, selection, selectionArgs, SORT_ORDER,
+                signal);
+        if (cursor == null) {
+            return rows;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Row row = new Row();
+                row.id = cursor.getLong(COLUMN_INDEX_ID);
+                row.title = cursor.getString(COLUMN_INDEX_TITLE);
+                row.modified = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+                row.category = cursor.getString(COLUMN_INDEX_CATEGORY);
+                row.snippet = cursor.getString(COLUMN_INDEX_SNIPPET);
+                row.snippetMatch = cursor.getInt(COLUMN_INDEX_SNIPPET_MATCH);
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.android.notepad;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 后台查询执行器
+ * 在后台线程上执行 ContentResolver 查询，并把结果投递回主线程。
+ * 每个查询属于一个通道（如笔记列表、分类列表），同一通道上新提交的查询会取代旧查询：
+ * 尚未开始的旧查询直接取消，已经执行完的旧查询结果在投递时丢弃（Cursor 等结果会被关闭）。
+ * 每个查询都带有一个 {@link CancellationSignal}，正在执行的旧查询通过它取消：传给
+ * ContentResolver.query() 后，数据库查询和读取后续行都会中止，后台线程可以马上开始新查询。
+ */
+public class QueryExecutor {
+
+    private static final String TAG = "QueryExecutor";
+
+    /**
+     * 查询结果回调，在主线程上调用
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * 还需要知道查询没有结果的回调：查询失败、被取消或被取代时在主线程调用 {@link #onFailed()}，
+     * 调用方可以借此清除“正在加载”之类的状态。每次提交的查询只会回调 onResult 和 onFailed 之一。
+     */
+    public interface FailureCallback<T> extends Callback<T> {
+        void onFailed();
+    }
+
+    /**
+     * 可以取消的查询，在后台线程上执行
+     */
+    public interface CancellableQuery<T> {
+        /**
+         * @param signal 查询被取代或执行器停止时取消，应传给 ContentResolver.query()；
+         *               取消后查询可以抛出 {@link OperationCanceledException}
+         */
+        T call(CancellationSignal signal) throws Exception;
+    }
+
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 各通道最新提交的序号和未完成的任务，只在主线程上访问
+    private final Map<String, Integer> mGenerations = new HashMap<String, Integer>();
+    private final Map<String, Future<?>> mPending = new HashMap<String, Future<?>>();
+    private final Map<String, CancellationSignal> mSignals = new HashMap<String, CancellationSignal>();
+    private final Map<String, Callback<?>> mCallbacks = new HashMap<String, Callback<?>>();
+    private boolean mShutdown;
+
+    public QueryExecutor() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    /**
+     * 在指定通道上提交查询，取代该通道上尚未完成的查询。必须在主线程调用。
+     * @param channel 查询通道
+     * @param query 在后台线程执行的查询
+     * @param callback 在主线程接收结果的回调，被取代的查询不会回调 onResult
+     */
+    public <T> void submit(String channel, final Callable<T> query, Callback<T> callback) {
+        submit(channel, new CancellableQuery<T>() {
+            @Override
+            public T call(CancellationSignal signal) throws Exception {
+                return query.call();
+            }
+        }, callback);
+    }
+
+    /**
+     * 在指定通道上提交可以取消的查询，取代并取消该通道上尚未完成的查询，正在执行的也会中止。
+     * 必须在主线程调用。
+     * @param channel 查询通道
+     * @param query 在后台线程执行的查询
+     * @param callback 在主线程接收结果的回调，被取代的查询不会回调 onResult；
+     *                 {@link FailureCallback} 在查询失败、被取消或被取代时回调 onFailed
+     */
+    public <T> void submit(final String channel, final CancellableQuery<T> query,
+                           final Callback<T> callback) {
+        if (mShutdown) {
+            return;
+        }
+
+        Integer last = mGenerations.get(channel);
+        final int generation = last == null ? 1 : last + 1;
+        mGenerations.put(channel, generation);
+
+        // 旧查询如果还没开始执行，就不必再执行了
+        Future<?> previous = mPending.remove(channel);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        // 已经在执行的旧查询也不必等它完成
+        CancellationSignal previousSignal = mSignals.remove(channel);
+        if (previousSignal != null) {
+            previousSignal.cancel();
+        }
+        notifyFailed(mCallbacks.remove(channel));
+
+        final CancellationSignal signal = new CancellationSignal();
+        mSignals.put(channel, signal);
+        mCallbacks.put(channel, callback);
+        mPending.put(channel, mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (signal.isCanceled()) {
+                    return;
+                }
+                final T result;
+                try {
+                    result = query.call(signal);
+                } catch (OperationCanceledException e) {
+                    // 被新查询取代或被取消，取代和取消时已经通知过了
+                    return;
+                } catch (Exception e) {
+                    Log.e(TAG, "后台查询失败: " + channel, e);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mShutdown || !isCurrent(channel, generation)) {
+                                return;
+                            }
+                            mPending.remove(channel);
+                            mSignals.remove(channel);
+                            notifyFailed(mCallbacks.remove(channel));
+                        }
+                    });
+                    return;
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mShutdown || !isCurrent(channel, generation)) {
+                            discard(result);
+                            return;
+                        }
+                        mPending.remove(channel);
+                        mSignals.remove(channel);
+                        mCallbacks.remove(channel);
+                        callback.onResult(result);
+                    }
+                });
+            }
+        }));
+    }
+
+    /**
+     * 取消指定通道上尚未完成的查询，正在执行的也会中止，结果不再回调。必须在主线程调用。
+     */
+    public void cancel(String channel) {
+        // 增加序号，已经执行完、等待投递的结果也会被丢弃
+        Integer last = mGenerations.get(channel);
+        if (last != null) {
+            mGenerations.put(channel, last + 1);
+        }
+        Future<?> pending = mPending.remove(channel);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        CancellationSignal signal = mSignals.remove(channel);
+        if (signal != null) {
+            signal.cancel();
+        }
+        notifyFailed(mCallbacks.remove(channel));
+    }
+
+    /**
+     * 停止执行器，丢弃所有未完成的查询。必须在主线程调用。
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Future<?> future : mPending.values()) {
+            future.cancel(false);
+        }
+        mPending.clear();
+        for (CancellationSignal signal : mSignals.values()) {
+            signal.cancel();
+        }
+        mSignals.clear();
+        mCallbacks.clear();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 通知没有结果的查询，在主线程上另行投递，回调中可以马上在同一通道上提交新查询
+     */
+    private void notifyFailed(final Callback<?> callback) {
+        if (!(callback instanceof FailureCallback)) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ((FailureCallback<?>) callback).onFailed();
+            }
+        });
+    }
+
+    private boolean isCurrent(String channel, int generation) {
+        Integer current = mGenerations.get(channel);
+        return current != null && current == generation;
+    }
+
+    /**
+     * 释放被丢弃的结果占用的资源
+     */
+    private static void discard(Object result) {
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable) result).close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭被丢弃的查询结果失败", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.android.notepad;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StyleSpan;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 搜索结果高亮
+ * 搜索词按 {@link SearchQuery} 解析，高亮其中要求包含的各个词和短语，排除的词不高亮。
+ * 每个 (笔记, 搜索词) 只计算一次匹配位置，生成的 Spannable 按笔记 id 缓存，搜索词变化时整体失效；
+ * 第 n 处匹配使用的高亮样式对象在所有行之间共享，列表滚动时命中缓存就不再扫描字符串或分配对象。
+ * 只在主线程使用。
+ */
+public class SearchHighlighter {
+
+    private static final int TITLE_HIGHLIGHT_COLOR = 0x80FFEB3B; // 标题高亮：黄色，半透明
+    private static final int SNIPPET_HIGHLIGHT_COLOR = 0x8003A9F4; // 内容高亮：蓝色，半透明
+
+    // 与列表分页缓存的行数相当，超出时清空重建
+    private static final int MAX_CACHED_ROWS = 400;
+
+    /**
+     * 一行文本的高亮结果
+     */
+    private static class Entry {
+        // 计算时的原文，用于发现同一 id 的内容已经变化
+        String text;
+        int matchOffset;
+        boolean matched;
+        CharSequence styled;
+    }
+
+    private String mQuery = "";
+    private boolean mCaseSensitive;
+    // 摘要中可能高亮的词，即 provider 定位摘要所用的内容搜索词
+    private String[] mSnippetKeywords = new String[0];
+    // 按大小写选项处理过的关键词，每次搜索只解析一次
+    private String[] mFoldedKeywords = new String[0];
+
+    private final LongSparseArray<Entry> mTitles = new LongSparseArray<Entry>();
+    private final LongSparseArray<Entry> mSnippets = new LongSparseArray<Entry>();
+    private final Map<String, Boolean> mCategoryMatches = new HashMap<String, Boolean>();
+
+    // 按匹配序号复用的样式对象
+    private final List<BackgroundColorSpan> mTitleBackgrounds = new ArrayList<BackgroundColorSpan>();
+    private final List<StyleSpan> mTitleStyles = new ArrayList<StyleSpan>();
+    private final BackgroundColorSpan mSnippetBackground = new BackgroundColorSpan(SNIPPET_HIGHLIGHT_COLOR);
+
+    /**
+     * 设置当前搜索词，与上次不同时清空缓存
+     */
+    public void setQuery(String query, boolean caseSensitive) {
+        if (query == null) {
+            query = "";
+        }
+        if (query.equals(mQuery) && caseSensitive == mCaseSensitive) {
+            return;
+        }
+
+        mQuery = query;
+        mCaseSensitive = caseSensitive;
+
+        List<String> terms = SearchQuery.parse(query).getTerms();
+        List<String> contentTerms = SearchQuery.parse(query).getContentTerms();
+        mSnippetKeywords = contentTerms.toArray(new String[contentTerms.size()]);
+        mFoldedKeywords = new String[terms.size()];
+        for (int i = 0; i < mFoldedKeywords.length; i++) {
+            mFoldedKeywords[i] = fold(terms.get(i));
+        }
+
+        mTitles.clear();
+        mSnippets.clear();
+        mCategoryMatches.clear();
+    }
+
+    /**
+     * 标题是否包含任一搜索词
+     */
+    public boolean matchesTitle(long id, String title) {
+        return getTitleEntry(id, title).matched;
+    }
+
+    /**
+     * 返回标题的显示文本：匹配时为高亮各个关键词的 Spannable，否则为原标题
+     */
+    public CharSequence highlightTitle(long id, String title) {
+        return getTitleEntry(id, title).styled;
+    }
+
+    /**
+     * 分类名称是否包含任一搜索词
+     */
+    public boolean matchesCategory(String category) {
+        if (category == null || mFoldedKeywords.length == 0) {
+            return false;
+        }
+        Boolean matched = mCategoryMatches.get(category);
+        if (matched == null) {
+            matched = containsKeyword(fold(category));
+            mCategoryMatches.put(category, matched);
+        }
+        return matched;
+    }
+
+    /**
+     * 返回内容摘要的显示文本，高亮 provider 给出的匹配位置上的搜索词
+     * @param matchOffset 笔记中出现的第一个搜索词在摘要中的位置，没有匹配时为 -1
+     */
+    public CharSequence highlightSnippet(long id, String snippet, int matchOffset) {
+        Entry entry = mSnippets.get(id);
+        if (entry != null && entry.matchOffset == matchOffset && entry.text.equals(snippet)) {
+            return entry.styled;
+        }
+
+        entry = new Entry();
+        entry.text = snippet;
+        entry.matchOffset = matchOffset;
+        int length = matchOffset >= 0 && matchOffset < snippet.length()
+                ? getSnippetMatchLength(snippet, matchOffset) : 0;
+        entry.matched = length > 0;
+        if (entry.matched) {
+            // 匹配可能被摘要截断
+            int end = Math.min(matchOffset + length, snippet.length());
+            SpannableString spannable = new SpannableString(snippet);
+            spannable.setSpan(mSnippetBackground, matchOffset, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            entry.styled = spannable;
+        } else {
+            entry.styled = snippet;
+        }
+        put(mSnippets, id, entry);
+        return entry.styled;
+    }
+
+    /**
+     * 返回摘要中从 offset 开始的搜索词长度，有多个时取最长的；摘要截断的词只比较剩下的部分
+     */
+    private int getSnippetMatchLength(String snippet, int offset) {
+        int length = 0;
+        for (String keyword : mSnippetKeywords) {
+            int compared = Math.min(keyword.length(), snippet.length() - offset);
+            if (keyword.length() > length
+                    && snippet.regionMatches(!mCaseSensitive, offset, keyword, 0, compared)) {
+                length = keyword.length();
+            }
+        }
+        return length;
+    }
+
+    private Entry getTitleEntry(long id, String title) {
+        if (title == null) {
+            title = "";
+        }
+        Entry entry = mTitles.get(id);
+        if (entry != null && entry.text.equals(title)) {
+            return entry;
+        }
+
+        entry = new Entry();
+        entry.text = title;
+        String folded = fold(title);
+        entry.matched = containsKeyword(folded);
+        entry.styled = entry.matched ? buildTitleSpans(title, folded) : title;
+        put(mTitles, id, entry);
+        return entry;
+    }
+
+    private CharSequence buildTitleSpans(String title, String folded) {
+        SpannableString spannable = new SpannableString(title);
+        int count = 0;
+        for (String keyword : mFoldedKeywords) {
+            int start = 0;
+            while ((start = folded.indexOf(keyword, start)) != -1) {
+                int end = start + keyword.length();
+                if (end > title.length()) {
+                    // 大小写转换改变了长度，位置无法对应到原文
+                    break;
+                }
+
+                // 同一段文本里每处匹配需要不同的样式对象，不同行之间可以共用
+                if (count == mTitleBackgrounds.size()) {
+                    mTitleBackgrounds.add(new BackgroundColorSpan(TITLE_HIGHLIGHT_COLOR));
+                    mTitleStyles.add(new StyleSpan(Typeface.BOLD));
+                }
+                spannable.setSpan(mTitleBackgrounds.get(count), start, end,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                spannable.setSpan(mTitleStyles.get(count), start, end,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                count++;
+                start = end;
+            }
+        }
+        return spannable;
+    }
+
+    private boolean containsKeyword(String folded) {
+        for (String keyword : mFoldedKeywords) {
+            if (folded.contains(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String fold(String text) {
+        return mCaseSensitive ? text : text.toLowerCase();
+    }
+
+    private static void put(LongSparseArray<Entry> cache, long id, Entry entry) {
+        if (cache.size() >= MAX_CACHED_ROWS && cache.indexOfKey(id) < 0) {
+            cache.clear();
+        }
+        cache.put(id, entry);
+    }
+}
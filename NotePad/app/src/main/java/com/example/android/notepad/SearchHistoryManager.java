@@ -1,27 +1,77 @@
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * 搜索历史管理类
- * 用于管理搜索历史的增删改查
+ * 用于管理搜索历史的增删改查。
+ * 保存搜索记录时只写入内存中的缓冲区，同一搜索词只保留最新的一条；停止搜索一段时间后，
+ * 在后台线程上把缓冲区的记录和超出 {@link #MAX_HISTORY_ITEMS} 条的清理放在一个事务中写入，
+ * 搜索本身不必等待数据库。读取、删除历史记录前先写入缓冲区，保证读到的记录完整。
  */
 public class SearchHistoryManager {
 
     private static final String TAG = "SearchHistoryManager";
-    private static final int MAX_HISTORY_ITEMS = 20; // 最大历史记录数量
+    static final int MAX_HISTORY_ITEMS = 20; // 最大历史记录数量
+
+    // 最后一次保存后多久写入缓冲区
+    static final long FLUSH_DELAY_MILLIS = 1000;
+
+    // 只保留最新的 MAX_HISTORY_ITEMS 条记录，一条语句删除其余的记录
+    private static final String TRIM_SELECTION = NotePad.SearchHistory._ID + " NOT IN (SELECT "
+            + NotePad.SearchHistory._ID + " FROM " + NotePad.SearchHistory.TABLE_NAME
+            + " ORDER BY " + NotePad.SearchHistory.DEFAULT_SORT_ORDER
+            + " LIMIT " + MAX_HISTORY_ITEMS + ")";
+
+    // 所有搜索历史共用的写入线程，保证写入顺序
+    private static final ExecutorService sWriter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
 
     private Context mContext;
     private ContentResolver mContentResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 尚未写入的搜索记录，按搜索词合并，由 this 保护
+    private final Map<String, ContentValues> mPending = new LinkedHashMap<String, ContentValues>();
+
+    // 写入数据库时持有，读取前的写入要等待正在进行的后台写入完成
+    private final Object mWriteLock = new Object();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
 
     public SearchHistoryManager(Context context) {
         mContext = context;
@@ -29,7 +79,7 @@ public class SearchHistoryManager {
     }
 
     /**
-     * 保存搜索记录
+     * 保存搜索记录，只写入缓冲区，不会阻塞
      * @param query 搜索关键词
      * @param resultCount 搜索结果数量
      */
@@ -38,61 +88,61 @@ public class SearchHistoryManager {
             return;
         }
 
-        try {
-            // 保存搜索记录
-            ContentValues values = new ContentValues();
-            values.put(NotePad.SearchHistory.COLUMN_NAME_QUERY, query);
-            values.put(NotePad.SearchHistory.COLUMN_NAME_RESULT_COUNT, resultCount);
-            values.put(NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP, System.currentTimeMillis());
-
-            mContentResolver.insert(NotePad.SearchHistory.CONTENT_URI, values);
-
-            // 清理过期的历史记录（保持最多MAX_HISTORY_ITEMS条）
-            cleanupOldHistory();
-
-        } catch (Exception e) {
-            Log.e(TAG, "保存搜索历史失败: " + e.getMessage(), e);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.SearchHistory.COLUMN_NAME_QUERY, query);
+        values.put(NotePad.SearchHistory.COLUMN_NAME_RESULT_COUNT, resultCount);
+        values.put(NotePad.SearchHistory.COLUMN_NAME_TIMESTAMP, System.currentTimeMillis());
+        synchronized (this) {
+            // 重复的搜索词移到最后，只保留最新的结果数量和时间
+            mPending.remove(query);
+            mPending.put(query, values);
         }
+
+        mMainHandler.removeCallbacks(mFlushRunnable);
+        mMainHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
     }
 
     /**
-     * 清理过期的历史记录
+     * 立即在后台写入缓冲区中的记录，例如离开界面时
      */
-    private void cleanupOldHistory() {
-        try {
-            // 获取当前所有历史记录，按时间倒序
-            Cursor cursor = mContentResolver.query(
-                    NotePad.SearchHistory.CONTENT_URI,
-                    new String[] { NotePad.SearchHistory._ID },
-                    null, null,
-                    NotePad.SearchHistory.DEFAULT_SORT_ORDER
-            );
-
-            if (cursor != null && cursor.getCount() > MAX_HISTORY_ITEMS) {
-                cursor.moveToPosition(MAX_HISTORY_ITEMS);
-                List<Integer> idsToDelete = new ArrayList<>();
+    public void flush() {
+        mMainHandler.removeCallbacks(mFlushRunnable);
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+            }
+        });
+    }
 
-                while (cursor.moveToNext()) {
-                    int id = cursor.getInt(0);
-                    idsToDelete.add(id);
+    /**
+     * 在当前线程把缓冲区中的记录和清理在一个事务中写入，等待正在进行的写入完成
+     */
+    void writePending() {
+        synchronized (mWriteLock) {
+            ArrayList<ContentProviderOperation> operations;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return;
                 }
-
-                // 删除多余的记录
-                for (Integer id : idsToDelete) {
-                    Uri deleteUri = Uri.withAppendedPath(
-                            NotePad.SearchHistory.CONTENT_URI,
-                            String.valueOf(id)
-                    );
-                    mContentResolver.delete(deleteUri, null, null);
+                operations = new ArrayList<ContentProviderOperation>(mPending.size() + 1);
+                for (ContentValues values : mPending.values()) {
+                    operations.add(ContentProviderOperation
+                            .newInsert(NotePad.SearchHistory.CONTENT_URI)
+                            .withValues(values)
+                            .build());
                 }
+                mPending.clear();
             }
-
-            if (cursor != null) {
-                cursor.close();
+            operations.add(ContentProviderOperation.newDelete(NotePad.SearchHistory.CONTENT_URI)
+                    .withSelection(TRIM_SELECTION, null)
+                    .build());
+
+            try {
+                mContentResolver.applyBatch(NotePad.AUTHORITY, operations);
+            } catch (Exception e) {
+                Log.e(TAG, "保存搜索历史失败: " + e.getMessage(), e);
             }
-
-        } catch (Exception e) {
-            Log.e(TAG, "清理搜索历史失败: " + e.getMessage(), e);
         }
     }
 
@@ -102,6 +152,7 @@ public class SearchHistoryManager {
      */
     public List<SearchHistoryItem> getSearchHistory() {
         List<SearchHistoryItem> historyList = new ArrayList<>();
+        writePending();
 
         try {
             Cursor cursor = mContentResolver.query(
@@ -139,13 +190,19 @@ public class SearchHistoryManager {
      * 清除所有搜索历史
      */
     public void clearAllHistory() {
-        try {
-            mContentResolver.delete(
-                    NotePad.SearchHistory.CONTENT_URI,
-                    null, null
-            );
-        } catch (Exception e) {
-            Log.e(TAG, "清除搜索历史失败: " + e.getMessage(), e);
+        // 等待正在进行的写入完成，缓冲区中的记录直接丢弃
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.clear();
+            }
+            try {
+                mContentResolver.delete(
+                        NotePad.SearchHistory.CONTENT_URI,
+                        null, null
+                );
+            } catch (Exception e) {
+                Log.e(TAG, "清除搜索历史失败: " + e.getMessage(), e);
+            }
         }
     }
 
@@ -154,6 +211,7 @@ public class SearchHistoryManager {
      * @param id 历史记录ID
      */
     public void deleteHistoryItem(int id) {
+        writePending();
         try {
             Uri deleteUri = Uri.withAppendedPath(
                     NotePad.SearchHistory.CONTENT_URI,
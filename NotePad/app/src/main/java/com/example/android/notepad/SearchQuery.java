@@ -0,0 +1,501 @@
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A parsed search query. The query language is:
+ * <ul>
+ * <li>words separated by spaces, all of which must match; {@code AND} may be written
+ * between them;</li>
+ * <li>{@code OR} between two parts, either of which must match; it binds less tightly than
+ * AND;</li>
+ * <li>{@code NOT} or a leading {@code -} in front of a part that must not match;</li>
+ * <li>double quotes around a phrase matched as a whole;</li>
+ * <li>{@code title:} or {@code category:} in front of a word or phrase, matching it only in
+ * the title or the category name;</li>
+ * <li>parentheses for grouping.</li>
+ * </ul>
+ * The operators are only recognized in capitals, so that "or" and "not" can still be searched
+ * for. The parser never fails: the query is typed one character at a time, so an unclosed quote
+ * or parenthesis extends to the end of the query and dangling operators are ignored.
+ *
+ * The query is parsed into a tree of {@link Node}s, which the provider compiles into a
+ * full-text search plan and the notes list into LIKE conditions. Instances are immutable.
+ */
+public class SearchQuery {
+
+    /**
+     * A term matched in any of the searched fields
+     */
+    public static final int FIELD_ANY = 0;
+
+    /**
+     * A term matched in the title only
+     */
+    public static final int FIELD_TITLE = 1;
+
+    /**
+     * A term matched in the category name only
+     */
+    public static final int FIELD_CATEGORY = 2;
+
+    private static final String TITLE_PREFIX = "title:";
+    private static final String CATEGORY_PREFIX = "category:";
+
+    /**
+     * A GLOB character class matching a character that can't be part of a word: anything but
+     * digits and the Latin, Greek and Cyrillic letters
+     */
+    private static final String NON_WORD_CLASS = "[^0-9A-Za-z\u00C0-\u024F\u0370-\u04FF]";
+
+    /**
+     * A node of the parsed query
+     */
+    abstract static class Node {
+    }
+
+    /**
+     * A word or a phrase to look for
+     */
+    static class Term extends Node {
+        final String text;
+        final int field;
+        final boolean phrase;
+
+        Term(String text, int field, boolean phrase) {
+            this.text = text;
+            this.field = field;
+            this.phrase = phrase;
+        }
+    }
+
+    /**
+     * A part that must not match
+     */
+    static class Not extends Node {
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+    }
+
+    /**
+     * Parts that must all match, or any of which must match
+     */
+    static class Group extends Node {
+        final boolean and;
+        final List<Node> operands;
+
+        Group(boolean and, List<Node> operands) {
+            this.and = and;
+            this.operands = Collections.unmodifiableList(operands);
+        }
+    }
+
+    private final Node mRoot;
+    private final boolean mSimple;
+    private final List<String> mTerms;
+    private final List<String> mContentTerms;
+
+    private SearchQuery(Node root) {
+        mRoot = root;
+        mSimple = root == null || isSimple(root);
+        List<String> terms = new ArrayList<String>();
+        List<String> contentTerms = new ArrayList<String>();
+        if (root != null) {
+            collectTerms(root, terms, false);
+            collectTerms(root, contentTerms, true);
+        }
+        mTerms = Collections.unmodifiableList(terms);
+        mContentTerms = Collections.unmodifiableList(contentTerms);
+    }
+
+    /**
+     * Parses a search query.
+     */
+    public static SearchQuery parse(String query) {
+        return new SearchQuery(new Parser(tokenize(query == null ? "" : query)).parseQuery());
+    }
+
+    /**
+     * Returns true if the query has nothing to look for. An empty query matches nothing.
+     */
+    public boolean isEmpty() {
+        return mRoot == null;
+    }
+
+    /**
+     * Returns true if the query is only unquoted words that must all match in any field. Each
+     * word of a simple query whose text contains this one's text contains one of this query's
+     * words, so such a query matches a subset of this one's notes.
+     */
+    public boolean isSimple() {
+        return mSimple;
+    }
+
+    /**
+     * Returns the words and phrases the matching notes contain, in query order, excluding
+     * those that must not match.
+     */
+    public List<String> getTerms() {
+        return mTerms;
+    }
+
+    /**
+     * Returns the terms that may match in the note body: those of {@link #getTerms} that
+     * don't name the title or the category.
+     */
+    public List<String> getContentTerms() {
+        return mContentTerms;
+    }
+
+    /**
+     * Returns the root of the parsed query, or null if it is empty.
+     */
+    Node getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Compiles the query into LIKE conditions for the given columns. A term of any field is
+     * looked for in each of the columns. The note column stands for the whole body, so the
+     * chunks of a long note after the first one are searched with it.
+     *
+     * A whole-word term is matched with GLOB instead, requiring a character that isn't a
+     * letter or digit, or the start or end of the text, next to each end of the term that is
+     * one. CJK text has no such boundaries, so there a term is matched anywhere, as the
+     * whole-word index of the provider does.
+     *
+     * @param columns The columns searched for terms that don't name a field.
+     * @param caseSensitive Whether case matters. If not, both sides are lower-cased.
+     * @param wholeWord Whether each term must match whole words.
+     * @param args The list the arguments of the conditions are added to.
+     * @return The conditions, or "0" if the query is empty.
+     */
+    public String toLikeSelection(String[] columns, boolean caseSensitive, boolean wholeWord,
+                                  List<String> args) {
+        if (mRoot == null) {
+            return "0";
+        }
+        return toLike(mRoot, columns, caseSensitive, wholeWord, args);
+    }
+
+    private static String toLike(Node node, String[] columns, boolean caseSensitive,
+                                 boolean wholeWord, List<String> args) {
+        if (node instanceof Not) {
+            return "NOT " + toLike(((Not) node).operand, columns, caseSensitive, wholeWord, args);
+        }
+        if (node instanceof Group) {
+            Group group = (Group) node;
+            StringBuilder sb = new StringBuilder("(");
+            for (Node operand : group.operands) {
+                if (sb.length() > 1) {
+                    sb.append(group.and ? " AND " : " OR ");
+                }
+                sb.append(toLike(operand, columns, caseSensitive, wholeWord, args));
+            }
+            return sb.append(')').toString();
+        }
+
+        Term term = (Term) node;
+        String[] termColumns;
+        if (term.field == FIELD_TITLE) {
+            termColumns = new String[] { NotePad.Notes.COLUMN_NAME_TITLE };
+        } else if (term.field == FIELD_CATEGORY) {
+            termColumns = new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY };
+        } else {
+            termColumns = columns;
+        }
+        String text = caseSensitive ? term.text : term.text.toLowerCase();
+        String pattern;
+        if (wholeWord) {
+            pattern = toWholeWordPattern(text);
+        } else {
+            pattern = "%" + NotePadProvider.escapeLikePattern(text) + "%";
+        }
+
+        StringBuilder sb = new StringBuilder("(");
+        for (String column : termColumns) {
+            if (sb.length() > 1) {
+                sb.append(" OR ");
+            }
+            sb.append(toLike(column, caseSensitive, wholeWord));
+            args.add(pattern);
+            if (column.equals(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                // The rest of a long body is in its chunks
+                sb.append(" OR ").append(NotePadProvider.getChunksCondition(
+                        toLike(NotePadProvider.CHUNK_TEXT, caseSensitive, wholeWord)));
+                args.add(pattern);
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Returns the condition matching a column against a pattern argument
+     */
+    private static String toLike(String column, boolean caseSensitive, boolean wholeWord) {
+        String value = caseSensitive ? column : "LOWER(" + column + ")";
+        if (wholeWord) {
+            // Spaces around the text give words at its start and end a boundary
+            return "(' ' || " + value + " || ' ') GLOB ?";
+        }
+        return value + " LIKE ? ESCAPE '\\'";
+    }
+
+    /**
+     * Returns the GLOB pattern matching the text as whole words in a value padded with a space
+     * at each end, see {@link #toLikeSelection}
+     */
+    static String toWholeWordPattern(String text) {
+        return (isWordEdge(text.codePointAt(0)) ? "*" + NON_WORD_CLASS : "*")
+                + escapeGlobPattern(text)
+                + (isWordEdge(text.codePointBefore(text.length())) ? NON_WORD_CLASS + "*" : "*");
+    }
+
+    /**
+     * Returns true if a character at the end of a term needs a word boundary next to it: a
+     * letter or digit outside the CJK blocks
+     */
+    private static boolean isWordEdge(int codePoint) {
+        return Character.isLetterOrDigit(codePoint) && !WordSegmenter.isCjk(codePoint);
+    }
+
+    /**
+     * Escapes the GLOB wildcards in a literal by putting each into a character class of its own
+     */
+    static String escapeGlobPattern(String literal) {
+        return literal.replace("[", "[[]").replace("*", "[*]").replace("?", "[?]");
+    }
+
+    private static boolean isSimple(Node node) {
+        if (node instanceof Term) {
+            Term term = (Term) node;
+            return term.field == FIELD_ANY && !term.phrase;
+        }
+        if (node instanceof Group && ((Group) node).and) {
+            for (Node operand : ((Group) node).operands) {
+                if (!(operand instanceof Term) || !isSimple(operand)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void collectTerms(Node node, List<String> terms, boolean contentOnly) {
+        if (node instanceof Term) {
+            Term term = (Term) node;
+            if (!contentOnly || term.field == FIELD_ANY) {
+                terms.add(term.text);
+            }
+        } else if (node instanceof Group) {
+            for (Node operand : ((Group) node).operands) {
+                collectTerms(operand, terms, contentOnly);
+            }
+        }
+    }
+
+    /*
+     * Tokens are operators, parentheses and terms. "-" directly in front of a part is a NOT.
+     */
+    private static final Object AND = "AND";
+    private static final Object OR = "OR";
+    private static final Object NOT = "NOT";
+    private static final Object OPEN = "(";
+    private static final Object CLOSE = ")";
+
+    private static List<Object> tokenize(String query) {
+        List<Object> tokens = new ArrayList<Object>();
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(OPEN);
+                i++;
+            } else if (c == ')') {
+                tokens.add(CLOSE);
+                i++;
+            } else if (c == '-' && i + 1 < length && !Character.isWhitespace(query.charAt(i + 1))) {
+                tokens.add(NOT);
+                i++;
+            } else if (c == '"') {
+                i = readPhrase(query, i, FIELD_ANY, tokens);
+            } else {
+                int start = i;
+                while (i < length && !isDelimiter(query.charAt(i))) {
+                    i++;
+                }
+                String word = query.substring(start, i);
+                int field = getField(word);
+                if (field != FIELD_ANY) {
+                    // The value follows the field prefix directly; a prefix without one is dropped
+                    String value = word.substring(word.indexOf(':') + 1);
+                    if (value.length() > 0) {
+                        tokens.add(new Term(value, field, false));
+                    } else if (i < length && query.charAt(i) == '"') {
+                        i = readPhrase(query, i, field, tokens);
+                    }
+                } else if (word.equals(AND) || word.equals(OR) || word.equals(NOT)) {
+                    tokens.add(word.equals(AND) ? AND : word.equals(OR) ? OR : NOT);
+                } else {
+                    tokens.add(new Term(word, FIELD_ANY, false));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Reads the phrase starting at the quote at start, up to the closing quote or the end of the
+     * query. Adds it to the tokens unless it is blank, and returns the position after it.
+     */
+    private static int readPhrase(String query, int start, int field, List<Object> tokens) {
+        int end = query.indexOf('"', start + 1);
+        String phrase = query.substring(start + 1, end < 0 ? query.length() : end).trim();
+        if (phrase.length() > 0) {
+            tokens.add(new Term(phrase.replaceAll("\\s+", " "), field, true));
+        }
+        return end < 0 ? query.length() : end + 1;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == '"';
+    }
+
+    /**
+     * Returns the field named by the prefix of a word, or {@link #FIELD_ANY} if it has none
+     */
+    private static int getField(String word) {
+        String lower = word.toLowerCase(Locale.ROOT);
+        if (lower.startsWith(TITLE_PREFIX)) {
+            return FIELD_TITLE;
+        }
+        if (lower.startsWith(CATEGORY_PREFIX)) {
+            return FIELD_CATEGORY;
+        }
+        return FIELD_ANY;
+    }
+
+    /**
+     * A recursive descent parser over the tokens. Each method returns null for a part without
+     * any terms, which its caller then leaves out.
+     */
+    private static class Parser {
+        private final List<Object> mTokens;
+        private int mPosition;
+
+        Parser(List<Object> tokens) {
+            mTokens = tokens;
+        }
+
+        Node parseQuery() {
+            Node root = null;
+            while (mPosition < mTokens.size()) {
+                // A stray closing parenthesis is skipped
+                Node node = parseOr();
+                if (node != null) {
+                    root = root == null ? node : group(true, root, node);
+                }
+                if (peek() == CLOSE) {
+                    mPosition++;
+                }
+            }
+            return root;
+        }
+
+        private Node parseOr() {
+            List<Node> operands = new ArrayList<Node>();
+            add(operands, parseAnd());
+            while (peek() == OR) {
+                mPosition++;
+                add(operands, parseAnd());
+            }
+            return operands.isEmpty() ? null : operands.size() == 1 ? operands.get(0)
+                    : new Group(false, operands);
+        }
+
+        private Node parseAnd() {
+            List<Node> operands = new ArrayList<Node>();
+            while (true) {
+                Object token = peek();
+                if (token == AND) {
+                    mPosition++;
+                } else if (token == null || token == OR || token == CLOSE) {
+                    break;
+                } else {
+                    add(operands, parseUnary());
+                }
+            }
+            if (operands.isEmpty()) {
+                return null;
+            }
+            // A query of only exclusions can't be answered from an index; it is kept as is
+            return operands.size() == 1 ? operands.get(0) : new Group(true, flatten(operands));
+        }
+
+        private Node parseUnary() {
+            Object token = mTokens.get(mPosition++);
+            if (token == NOT) {
+                Object next = peek();
+                if (next == null || next == OR || next == CLOSE || next == AND) {
+                    return null;
+                }
+                Node operand = parseUnary();
+                if (operand == null) {
+                    return null;
+                }
+                // NOT NOT x is x
+                return operand instanceof Not ? ((Not) operand).operand : new Not(operand);
+            }
+            if (token == OPEN) {
+                Node node = parseOr();
+                if (peek() == CLOSE) {
+                    mPosition++;
+                }
+                return node;
+            }
+            return (Term) token;
+        }
+
+        private Object peek() {
+            return mPosition < mTokens.size() ? mTokens.get(mPosition) : null;
+        }
+
+        private static void add(List<Node> operands, Node node) {
+            if (node != null) {
+                operands.add(node);
+            }
+        }
+
+        private static Node group(boolean and, Node first, Node second) {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(first);
+            operands.add(second);
+            return new Group(and, flatten(operands));
+        }
+
+        /**
+         * Lifts the operands of nested AND groups into the list
+         */
+        private static List<Node> flatten(List<Node> operands) {
+            List<Node> flat = new ArrayList<Node>();
+            for (Node operand : operands) {
+                if (operand instanceof Group && ((Group) operand).and) {
+                    flat.addAll(((Group) operand).operands);
+                } else {
+                    flat.add(operand);
+                }
+            }
+            return flat;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import java.util.List;
+
+/**
+ * 增量搜索
+ * LIKE 搜索逐字输入时，上一次的每个搜索词都包含在新的某个搜索词中，匹配的笔记一定在上一次的结果之中。
+ * 这里记住上一次匹配的笔记 ID，下一次只在这些笔记里用 LIKE 条件筛选，不必再扫描所有笔记；
+ * 包含关系按解析后的搜索词判断，不按原始文本：输入到一半的运算符（如 "meeting O" 到 "meeting OR"）
+ * 文本上包含，解析出的搜索词却不包含。
+ * 上一次的搜索词不都包含在新的搜索词中、搜索选项或筛选条件变化、笔记数据变化后，退回完整查询。
+ * 结果超过 {@link #MAX_IDS} 条时不记录，避免 IN 列表过长，下一次同样做完整查询。
+ * 全词匹配时搜索词两端要求词的边界，包含关系不再成立，调用方不应使用本类。
+ * 可以在任意线程使用，查询在后台线程执行。
+ */
+public class SearchRefiner {
+
+    /**
+     * 最多记录的匹配笔记数
+     */
+    static final int MAX_IDS = 1000;
+
+    private static final String[] ID_PROJECTION = new String[] { NotePad.Notes._ID };
+
+    // 上一次搜索的选项和筛选条件、搜索词和匹配的笔记 ID（升序），没有可用结果时 mIds 为 null
+    private String mKey;
+    private List<String> mTerms;
+    private long[] mIds;
+
+    // 失效序号，笔记数据变化时增加，用来丢弃变化之前开始的查询结果
+    private int mGeneration;
+
+    /**
+     * 笔记数据已变化，丢弃记住的结果
+     */
+    public synchronized void reset() {
+        mGeneration++;
+        mKey = null;
+        mTerms = null;
+        mIds = null;
+    }
+
+    /**
+     * 查询匹配的笔记 ID，能利用上一次的结果时只在其中筛选。在后台线程调用。
+     * @param uri 笔记 URI
+     * @param selection 搜索条件，包括筛选条件
+     * @param key 搜索选项和筛选条件，不同时不能利用上一次的结果
+     * @param terms 解析出的搜索词（不区分大小写时为小写），见 {@link SearchQuery#getTerms()}，
+     *              搜索须是 {@link SearchQuery#isSimple()} 的
+     * @param signal 取消查询的信号，可以为 null
+     * @return 匹配的笔记 ID（升序），超过 {@link #MAX_IDS} 条时返回 null
+     */
+    public long[] search(ContentResolver resolver, Uri uri, String selection, String[] selectionArgs,
+                         String key, List<String> terms, CancellationSignal signal) {
+        int generation;
+        long[] candidates = null;
+        synchronized (this) {
+            generation = mGeneration;
+            if (mIds != null && key.equals(mKey) && containsTerms(terms, mTerms)) {
+                candidates = mIds;
+            }
+        }
+
+        long[] ids;
+        if (candidates != null && candidates.length == 0) {
+            // 上一次没有匹配，这一次也不会有
+            ids = candidates;
+        } else {
+            if (candidates != null) {
+                selection = getIdSelection(candidates)
+                        + (selection == null ? "" : " AND (" + selection + ")");
+            }
+            ids = queryIds(resolver, uri, selection, selectionArgs, signal);
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mKey = key;
+                mTerms = terms;
+                mIds = ids;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 上一次的每个搜索词是否都包含在某个新的搜索词中；这时匹配新搜索词的笔记都匹配上一次的搜索词
+     */
+    static boolean containsTerms(List<String> terms, List<String> previousTerms) {
+        for (String previous : previousTerms) {
+            boolean contained = false;
+            for (String term : terms) {
+                if (term.contains(previous)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 选出指定笔记的条件，ID 是数字，直接写入语句，不受参数个数限制
+     */
+    public static String getIdSelection(long[] ids) {
+        StringBuilder selection = new StringBuilder(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
+
+    private static long[] queryIds(ContentResolver resolver, Uri uri, String selection,
+                                   String[] selectionArgs, CancellationSignal signal) {
+        Cursor cursor = resolver.query(uri, ID_PROJECTION, selection, selectionArgs,
+                NotePad.Notes._ID, signal);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            long[] ids = new long[Math.min(cursor.getCount(), MAX_IDS + 1)];
+            if (ids.length > MAX_IDS) {
+                return null;
+            }
+            for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
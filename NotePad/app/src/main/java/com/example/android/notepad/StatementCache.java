@@ -0,0 +1,209 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps compiled statements for the fixed-shape writes of {@link NotePadProvider}: inserts, and
+ * updates and deletes of a single row by id. The row id and the values are bound as arguments,
+ * so saving the same note again reuses the statement instead of parsing and planning a new one.
+ * Statements are keyed by their SQL, which depends only on the table and the written columns.
+ *
+ * A statement is taken out of the cache while it executes, so concurrent callers never share
+ * one; a caller that finds it missing compiles another. This class is thread-safe.
+ */
+class StatementCache {
+
+    private static final String TAG = "StatementCache";
+
+    /**
+     * The maximum number of statements kept
+     */
+    static final int MAX_STATEMENTS = 16;
+
+    private final SQLiteDatabase mDb;
+
+    // Least recently used first, guarded by this
+    private final LinkedHashMap<String, SQLiteStatement> mStatements =
+            new LinkedHashMap<String, SQLiteStatement>(MAX_STATEMENTS, 0.75f, true);
+    private boolean mClosed;
+
+    // Statistics, guarded by this
+    private long mHitCount;
+    private long mMissCount;
+
+    StatementCache(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Inserts a row, like {@link SQLiteDatabase#insertWithOnConflict}.
+     *
+     * @return The row ID of the new row, or -1 if an error occurred.
+     */
+    long insert(String table, ContentValues values, int conflictAlgorithm) {
+        List<String> columns = getColumns(values);
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        StringBuilder sql = new StringBuilder("INSERT");
+        if (conflictAlgorithm == SQLiteDatabase.CONFLICT_REPLACE) {
+            sql.append(" OR REPLACE");
+        }
+        sql.append(" INTO ").append(table).append(" (");
+        appendList(sql, columns, "");
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(')');
+
+        try {
+            SQLiteStatement statement = acquire(sql.toString());
+            try {
+                bindValues(statement, columns, values);
+                return statement.executeInsert();
+            } finally {
+                release(sql.toString(), statement);
+            }
+        } catch (SQLException e) {
+            // SQLiteDatabase.insert() reports errors the same way
+            Log.e(TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Updates the row with the given id.
+     *
+     * @return The number of rows updated.
+     */
+    int updateById(String table, String idColumn, long id, ContentValues values) {
+        List<String> columns = getColumns(values);
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        appendList(sql, columns, " = ?");
+        sql.append(" WHERE ").append(idColumn).append(" = ?");
+
+        SQLiteStatement statement = acquire(sql.toString());
+        try {
+            bindValues(statement, columns, values);
+            statement.bindLong(columns.size() + 1, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(sql.toString(), statement);
+        }
+    }
+
+    /**
+     * Deletes the row with the given id.
+     *
+     * @return The number of rows deleted.
+     */
+    int deleteById(String table, String idColumn, long id) {
+        String sql = "DELETE FROM " + table + " WHERE " + idColumn + " = ?";
+        SQLiteStatement statement = acquire(sql);
+        try {
+            statement.bindLong(1, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Closes the cached statements. Statements in use are closed when they are released.
+     */
+    synchronized void close() {
+        mClosed = true;
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    /**
+     * @return The number of writes that reused a compiled statement.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return The number of writes that compiled a statement.
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private SQLiteStatement acquire(String sql) {
+        synchronized (this) {
+            SQLiteStatement statement = mStatements.remove(sql);
+            if (statement != null) {
+                mHitCount++;
+                return statement;
+            }
+            mMissCount++;
+        }
+        // Compiles outside of the lock
+        return mDb.compileStatement(sql);
+    }
+
+    private void release(String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (!mClosed && !mStatements.containsKey(sql)) {
+                mStatements.put(sql, statement);
+                statement = null;
+                if (mStatements.size() > MAX_STATEMENTS) {
+                    Iterator<SQLiteStatement> eldest = mStatements.values().iterator();
+                    statement = eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the columns of the values in a stable order, so that the same columns always map
+     * to the same statement
+     */
+    private static List<String> getColumns(ContentValues values) {
+        List<String> columns = new ArrayList<String>(values.keySet());
+        Collections.sort(columns);
+        return columns;
+    }
+
+    private static void appendList(StringBuilder sql, List<String> columns, String suffix) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns.get(i)).append(suffix);
+        }
+    }
+
+    private static void bindValues(SQLiteStatement statement, List<String> columns,
+            ContentValues values) {
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.example.android.notepad;
 
 import android.app.Activity;
 import android.content.ContentValues;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
@@ -40,17 +39,8 @@ public class TitleEditor extends Activity {
      */
     public static final String EDIT_TITLE_ACTION = "com.android.notepad.action.EDIT_TITLE";
 
-    // Creates a projection that returns the note ID and the note contents.
-    private static final String[] PROJECTION = new String[] {
-            NotePad.Notes._ID, // 0
-            NotePad.Notes.COLUMN_NAME_TITLE, // 1
-    };
-
-    // The position of the title column in a Cursor returned by the provider.
-    private static final int COLUMN_INDEX_TITLE = 1;
-
-    // A Cursor object that will contain the results of querying the provider for a note.
-    private Cursor mCursor;
+    // The note whose title is being edited, or null if it couldn't be read.
+    private NoteCache.Note mNote;
 
     // An EditText object for preserving the edited title.
     private EditText mText;
@@ -74,21 +64,15 @@ public class TitleEditor extends Activity {
         mUri = getIntent().getData();
 
         /*
-         * Using the URI passed in with the triggering Intent, gets the note.
+         * Using the URI passed in with the triggering Intent, gets the note from the cache of
+         * recently opened notes. The note editor usually has just read it.
          *
-         * Note: This is being done on the UI thread. It will block the thread until the query
+         * Note: A miss is queried on the UI thread. It will block the thread until the query
          * completes. In a sample app, going against a simple provider based on a local database,
          * the block will be momentary, but in a real app you should use
          * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
-
-        mCursor = managedQuery(
-            mUri,        // The URI for the note that is to be retrieved.
-            PROJECTION,  // The columns to retrieve
-            null,        // No selection criteria are used, so no where columns are needed.
-            null,        // No where columns are used, so no where values are needed.
-            null         // No sort order is needed.
-        );
+        mNote = NoteCache.getInstance(this).get(mUri);
 
         // Gets the View ID for the EditText box
         mText = (EditText) this.findViewById(R.id.title);
@@ -104,16 +88,16 @@ public class TitleEditor extends Activity {
     protected void onResume() {
         super.onResume();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-        if (mCursor != null) {
-
-            // The Cursor was just retrieved, so its index is set to one record *before* the first
-            // record retrieved. This moves it to the first record.
-            mCursor.moveToFirst();
+        // Verifies that the note was read in onCreate(). If it was, gets it again in case the
+        // title changed while paused; the cache only queries the provider after a change.
+        if (mNote != null) {
+            NoteCache.Note note = NoteCache.getInstance(this).get(mUri);
+            if (note != null) {
+                mNote = note;
+            }
 
             // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mText.setText(mNote.title);
         }
     }
 
@@ -132,10 +116,8 @@ public class TitleEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-
-        if (mCursor != null) {
+        // Verifies that the note was read in onCreate().
+        if (mNote != null) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
@@ -0,0 +1,125 @@
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into the tokens of the whole-word index. Runs of letters and digits outside the
+ * CJK blocks are words. CJK text has no spaces between words, so a run of CJK characters is
+ * split into the overlapping pairs of characters it is made of, followed by its last character
+ * alone: "会议记录" becomes "会议 议记 记录 录". Any CJK string then occurs in the text exactly
+ * when its pairs occur as a phrase, which the index can answer without scanning the notes.
+ *
+ * The index's tokenizer splits the segmented text on the spaces between tokens and folds case,
+ * so the same segmentation is applied to the notes and to the search terms.
+ */
+public class WordSegmenter {
+
+    private WordSegmenter() {
+    }
+
+    /**
+     * Segments the title or body of a note for the index.
+     */
+    public static String segment(String text) {
+        if (text == null) {
+            return "";
+        }
+        List<String> tokens = new ArrayList<String>();
+        split(text, true, tokens);
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(token);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Segments a search term into the tokens of the phrase to look for. A CJK run at the end of
+     * the term may continue in the note, so it isn't followed by its last character alone; if
+     * it is a single character, the last token has to be matched as a prefix instead, see
+     * {@link #isPrefixToken}.
+     *
+     * @return The tokens, empty if the term has no letters or digits.
+     */
+    public static List<String> segmentTerm(String term) {
+        List<String> tokens = new ArrayList<String>();
+        split(term, false, tokens);
+        return tokens;
+    }
+
+    /**
+     * Returns true if the last token of a segmented term has to be matched as a prefix: a
+     * single CJK character, which the index holds as the start of a pair.
+     */
+    public static boolean isPrefixToken(String token) {
+        int codePoint = token.codePointAt(0);
+        return isCjk(codePoint) && Character.charCount(codePoint) == token.length();
+    }
+
+    /**
+     * Returns true for the letters the tokenizers don't separate into words, the same range
+     * {@link NotePadProvider#isIndexableTerm} treats as unsplit.
+     */
+    static boolean isCjk(int codePoint) {
+        return codePoint >= 0x2E80 && Character.isLetterOrDigit(codePoint);
+    }
+
+    /**
+     * Splits text into tokens.
+     *
+     * @param closed Whether the end of the text ends a CJK run, which is true for a note but
+     * not for a search term.
+     */
+    private static void split(String text, boolean closed, List<String> tokens) {
+        StringBuilder word = new StringBuilder();
+        List<Integer> run = new ArrayList<Integer>();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (isCjk(codePoint)) {
+                addWord(word, tokens);
+                run.add(codePoint);
+            } else {
+                addRun(run, true, tokens);
+                if (Character.isLetterOrDigit(codePoint)) {
+                    word.appendCodePoint(codePoint);
+                } else {
+                    addWord(word, tokens);
+                }
+            }
+        }
+        addWord(word, tokens);
+        addRun(run, closed, tokens);
+    }
+
+    private static void addWord(StringBuilder word, List<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    /**
+     * Adds the pairs of a CJK run, and its last character if the run is closed or has only
+     * one character.
+     */
+    private static void addRun(List<Integer> run, boolean closed, List<String> tokens) {
+        if (run.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < run.size(); i++) {
+            sb.setLength(0);
+            tokens.add(sb.appendCodePoint(run.get(i)).appendCodePoint(run.get(i + 1)).toString());
+        }
+        if (closed || run.size() == 1) {
+            sb.setLength(0);
+            tokens.add(sb.appendCodePoint(run.get(run.size() - 1)).toString());
+        }
+        run.clear();
+    }
+}